@@ -0,0 +1,94 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start and stop PushNotificationService through PushServiceClient the way the app does
+ * A stop comes in over the binding, so the instance outlives it until the client unbinds and the next start reaches
+ * the same, cleaned up instance
+ */
+@RunWith(AndroidJUnit4.class)
+public class PushServiceLifecycleTest {
+    private static final long TIMEOUT_MS = 10000;
+    // Nothing listens there, the relay stays in its reconnect loop, which is all the test needs
+    private static final String RELAY = "ws://127.0.0.1:9";
+    private static final String PUBKEY = "7f3b0a8e5c1d2f4a6b8c9d0e1f2a3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c";
+
+    private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    private final PushServiceClient client = PushServiceClient.get(instrumentation.getTargetContext());
+
+    @After
+    public void tearDown() {
+        instrumentation.runOnMainSync(client::stop);
+    }
+
+    @Test
+    public void startStopStartStopOnOneInstance() throws Exception {
+        for (int round = 1; round <= 2; round++) {
+            instrumentation.runOnMainSync(() -> client.start(config()));
+            Map<String, Object> running = awaitState(true);
+            assertEquals("round " + round, 1, ((List<?>) running.get("relays")).size());
+
+            instrumentation.runOnMainSync(client::stop);
+            Map<String, Object> stopped = awaitState(false);
+            // The sockets went with the stop, also the second time
+            assertTrue("round " + round, ((List<?>) stopped.get("relays")).isEmpty());
+        }
+    }
+
+    private static PushServiceClient.Config config() {
+        PushServiceClient.Config config = new PushServiceClient.Config();
+        config.relays = Collections.singletonList(RELAY);
+        config.pubkey = PUBKEY;
+        config.mode = PushNotificationService.MODE_PERSISTENT;
+        return config;
+    }
+
+    /**
+     * Poll the state of the service until it runs or doesn't
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> awaitState(boolean running) throws Exception {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (true) {
+            final BlockingQueue<Bundle> replies = new ArrayBlockingQueue<>(1);
+            instrumentation.runOnMainSync(() -> client.state(data -> replies.add(data != null ? data : new Bundle())));
+            Bundle reply = replies.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(reply);
+            Map<String, Object> state = (Map<String, Object>) reply.getSerializable(PushServiceClient.KEY_VALUE);
+            if (state == null) {
+                // No instance to ask, the stopped one is gone already
+                state = new HashMap<>();
+                state.put("running", false);
+                state.put("relays", Collections.emptyList());
+            }
+            if (Boolean.valueOf(running).equals(state.get("running"))) {
+                return state;
+            }
+            assertTrue("service never got to running=" + running + ", last state " + state,
+                    SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(100);
+        }
+    }
+}
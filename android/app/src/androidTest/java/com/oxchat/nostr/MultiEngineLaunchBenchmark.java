@@ -0,0 +1,167 @@
+package com.oxchat.nostr;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.oxchat.nostr.channel.AppPreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.embedding.engine.renderer.FlutterUiDisplayListener;
+
+/**
+ * Time to first frame and PSS of a MultiEngineActivity launch: a standalone engine per launch, as withNewEngine
+ * creates it (the old path), against an engine spawned from FlutterEngines' group
+ * Both engines are started here and handed over through FlutterEngineCache, so the first frame can be watched on the
+ * renderer without hooks in the activity; the clock starts before the engine, as in showFlutterActivity
+ *
+ * Flutter debug builds run Dart in JIT mode, so measure a profile build:
+ * ./gradlew :app:connectedAndroidTest -PtestBuildType=profile
+ *   -Pandroid.testInstrumentationRunnerArguments.class=com.oxchat.nostr.MultiEngineLaunchBenchmark
+ * Medians go to logcat (tag MultiEngineLaunch) and to the instrumentation status
+ */
+@RunWith(AndroidJUnit4.class)
+public class MultiEngineLaunchBenchmark {
+    private static final String TAG = "MultiEngineLaunch";
+    private static final String NEW_ENGINE_ID = "benchmark_new_engine";
+    private static final int RUNS = 7;
+    private static final long FIRST_FRAME_TIMEOUT_S = 30;
+    // Lets the engine of the last launch go away, as between two taps
+    private static final long SETTLE_MS = 2000;
+
+    private enum Mode {
+        NEW, GROUP
+    }
+
+    private static final class Sample {
+        final long firstFrameMs;
+        final long pssKb;
+
+        Sample(long firstFrameMs, long pssKb) {
+            this.firstFrameMs = firstFrameMs;
+            this.pssKb = pssKb;
+        }
+    }
+
+    private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+    private final Context context = instrumentation.getTargetContext();
+
+    @Test
+    public void compareLaunches() throws Exception {
+        // Loads the Flutter library and the Dart VM, which stay for every later launch whatever the path
+        launch(Mode.NEW);
+
+        long[][] firstFrameMs = new long[Mode.values().length][RUNS];
+        long[][] pssKb = new long[Mode.values().length][RUNS];
+        // Modes take turns so drift of the device (heat, background work) hits both alike
+        for (int run = 0; run < RUNS; run++) {
+            for (Mode mode : Mode.values()) {
+                Sample sample = launch(mode);
+                firstFrameMs[mode.ordinal()][run] = sample.firstFrameMs;
+                pssKb[mode.ordinal()][run] = sample.pssKb;
+            }
+        }
+
+        Bundle results = new Bundle();
+        for (Mode mode : Mode.values()) {
+            String name = mode.name().toLowerCase();
+            long firstFrame = median(firstFrameMs[mode.ordinal()]);
+            long pss = median(pssKb[mode.ordinal()]);
+            results.putLong(name + ".first_frame_ms", firstFrame);
+            results.putLong(name + ".pss_kb", pss);
+            Log.i(TAG, name + ": first frame " + firstFrame + "ms, PSS +" + pss + " KB (median of " + RUNS
+                    + ", first frames " + Arrays.toString(firstFrameMs[mode.ordinal()])
+                    + ", PSS " + Arrays.toString(pssKb[mode.ordinal()]) + ")");
+        }
+        instrumentation.sendStatus(0, results);
+    }
+
+    /**
+     * Launch once and wait for the first frame
+     * @return time to first frame, and the PSS the launch added to the process
+     */
+    private Sample launch(final Mode mode) throws Exception {
+        Runtime.getRuntime().gc();
+        final long pssBefore = Debug.getPss();
+
+        final CountDownLatch firstFrame = new CountDownLatch(1);
+        final long[] firstFrameAt = new long[1];
+        final FlutterUiDisplayListener listener = new FlutterUiDisplayListener() {
+            @Override
+            public void onFlutterUiDisplayed() {
+                if (firstFrame.getCount() > 0) {
+                    firstFrameAt[0] = SystemClock.uptimeMillis();
+                    firstFrame.countDown();
+                }
+            }
+
+            @Override
+            public void onFlutterUiNoLongerDisplayed() {
+            }
+        };
+
+        final long[] launchedAt = new long[1];
+        final Intent[] intent = new Intent[1];
+        final String route = MultiEngineActivity.getFullRoute("/", null);
+        instrumentation.runOnMainSync(() -> {
+            launchedAt[0] = SystemClock.uptimeMillis();
+            String engineId;
+            if (mode == Mode.NEW) {
+                engineId = NEW_ENGINE_ID;
+                FlutterEngineCache.getInstance().put(engineId, newStandaloneEngine(route));
+            } else {
+                engineId = FlutterEngines.spawn(context, route);
+            }
+            FlutterEngineCache.getInstance().get(engineId).getRenderer().addIsFlutterUiDisplayedListener(listener);
+            intent[0] = MultiEngineActivity.withCachedEngine(engineId).build(context);
+        });
+
+        try (ActivityScenario<MultiEngineActivity> scenario = ActivityScenario.launch(intent[0])) {
+            assertTrue(mode + " launch showed no frame", firstFrame.await(FIRST_FRAME_TIMEOUT_S, TimeUnit.SECONDS));
+            // Read here rather than in the app, walking smaps takes a while
+            long pssAfter = Debug.getPss();
+            return new Sample(firstFrameAt[0] - launchedAt[0], pssAfter - pssBefore);
+        } finally {
+            // Closing the scenario destroyed the activity and with it the engine, in both modes
+            FlutterEngineCache.getInstance().remove(NEW_ENGINE_ID);
+            instrumentation.waitForIdleSync();
+            SystemClock.sleep(SETTLE_MS);
+        }
+    }
+
+    /**
+     * An engine of its own, set up like the one withNewEngine makes MultiEngineActivity create
+     */
+    private FlutterEngine newStandaloneEngine(String route) {
+        FlutterEngine engine = new FlutterEngine(context);
+        engine.getPlugins().add(new AppPreferences());
+        engine.getNavigationChannel().setInitialRoute(route);
+        engine.getDartExecutor().executeDartEntrypoint(DartExecutor.DartEntrypoint.createDefault());
+        return engine;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
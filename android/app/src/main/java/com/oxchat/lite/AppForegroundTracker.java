@@ -0,0 +1,126 @@
+package com.oxchat.lite;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Whether any app Activity is started, kept up to date by Activity lifecycle callbacks
+ * The state is mirrored into a small memory-mapped file so a push service in another process reads it
+ * without a binder call: [int pid of the writer][int started activity count]
+ *
+ * A flag left behind by a process that died in the foreground is ignored once that pid is gone
+ */
+public final class AppForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private static final String TAG = "AppForegroundTracker";
+    private static final String FLAG_FILE_NAME = "app_foreground.flag";
+    private static final int FLAG_SIZE = 8;
+    private static final int OFFSET_PID = 0;
+    private static final int OFFSET_STARTED = 4;
+
+    private static MappedByteBuffer flag;
+    // Fallback when the flag file can't be mapped, only valid in the Activity process
+    private static volatile int localStarted;
+
+    private int started;
+
+    private AppForegroundTracker() {
+    }
+
+    /**
+     * Register the tracker, call once from Application.onCreate()
+     */
+    public static void install(Application application) {
+        application.registerActivityLifecycleCallbacks(new AppForegroundTracker());
+        mapFlag(application);
+    }
+
+    /**
+     * Whether an app Activity is visible, callable from any thread and any app process
+     */
+    public static boolean isAppInForeground(Context context) {
+        MappedByteBuffer buffer = mapFlag(context);
+        if (buffer == null) {
+            return localStarted > 0;
+        }
+        int count = buffer.getInt(OFFSET_STARTED);
+        if (count <= 0) {
+            return false;
+        }
+        int pid = buffer.getInt(OFFSET_PID);
+        return pid == Process.myPid() || new File("/proc/" + pid).exists();
+    }
+
+    private static synchronized MappedByteBuffer mapFlag(Context context) {
+        if (flag == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), FLAG_FILE_NAME);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                // The mapping stays valid after the channel is closed
+                flag = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FLAG_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to map foreground flag", e);
+            }
+        }
+        return flag;
+    }
+
+    private void publish() {
+        localStarted = started;
+        MappedByteBuffer buffer = flag;
+        if (buffer != null) {
+            buffer.putInt(OFFSET_PID, Process.myPid());
+            buffer.putInt(OFFSET_STARTED, started);
+        }
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        started++;
+        if (started == 1) {
+            Log.d(TAG, "App moved to foreground");
+        }
+        publish();
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        started = Math.max(0, started - 1);
+        if (activity.isChangingConfigurations()) {
+            // Recreated right away, don't report a background flicker
+            return;
+        }
+        if (started == 0) {
+            Log.d(TAG, "App moved to background");
+        }
+        publish();
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
@@ -0,0 +1,199 @@
+package com.oxchat.lite;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Round notification avatars of users and groups, in an in-memory LRU backed by a size-capped disk cache
+ * Images come only from put(), get() never goes to the network: a miss in both levels just shows no avatar
+ * Bitmaps are scaled and rounded once in put(), so a hit is ready for the notification as is
+ *
+ * Disk files are PNGs named by the SHA-256 of the key, their modification time is the LRU order of the disk level
+ */
+final class AvatarCache {
+    private static final String TAG = "AvatarCache";
+    static final int DEFAULT_MEMORY_BYTES = 2 * 1024 * 1024;
+    static final long DEFAULT_DISK_BYTES = 4 * 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final int sizePx;
+    private final long maxDiskBytes;
+    private final LruCache<String, Bitmap> memory;
+    // Keys known to have no avatar on disk either, so a miss doesn't hit the file system every burst
+    private final LruCache<String, Boolean> misses = new LruCache<>(256);
+
+    AvatarCache(File dir, int sizePx, int maxMemoryBytes, long maxDiskBytes) {
+        this.dir = dir;
+        this.sizePx = sizePx;
+        this.maxDiskBytes = maxDiskBytes;
+        this.memory = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Avatar of a pubkey or group id, from memory or else from disk
+     * @return null if none was put
+     */
+    Bitmap get(String key) {
+        if (key == null || key.isEmpty()) return null;
+        Bitmap bitmap = memory.get(key);
+        if (bitmap != null) {
+            PushMetrics.get().increment(PushMetrics.AVATAR_HIT_MEMORY);
+            return bitmap;
+        }
+        if (misses.get(key) != null) {
+            PushMetrics.get().increment(PushMetrics.AVATAR_MISS);
+            return null;
+        }
+        File file = fileFor(key);
+        bitmap = file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+        if (bitmap == null) {
+            misses.put(key, Boolean.TRUE);
+            PushMetrics.get().increment(PushMetrics.AVATAR_MISS);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        memory.put(key, bitmap);
+        PushMetrics.get().increment(PushMetrics.AVATAR_HIT_DISK);
+        return bitmap;
+    }
+
+    /**
+     * Decode, crop, scale and round an encoded image (PNG, JPEG, WebP), then store it in both levels
+     * Does file I/O and decoding, call off the service and main threads
+     */
+    boolean put(String key, byte[] image) {
+        if (key == null || key.isEmpty() || image == null || image.length == 0) return false;
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.w(TAG, "Undecodable avatar for " + key);
+            return false;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // Power of two subsampling keeps the decoded bitmap small, the final scale happens in round()
+        int shortSide = Math.min(bounds.outWidth, bounds.outHeight);
+        options.inSampleSize = 1;
+        while (shortSide / (options.inSampleSize * 2) >= sizePx) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (decoded == null) {
+            Log.w(TAG, "Undecodable avatar for " + key);
+            return false;
+        }
+        Bitmap rounded = round(decoded);
+        decoded.recycle();
+        memory.put(key, rounded);
+        misses.remove(key);
+        writeToDisk(key, rounded);
+        return true;
+    }
+
+    void remove(String key) {
+        memory.remove(key);
+        fileFor(key).delete();
+    }
+
+    /**
+     * Drop the memory level, the disk level stays
+     */
+    void trimMemory() {
+        memory.evictAll();
+        misses.evictAll();
+    }
+
+    /**
+     * Center-cropped circle of sizePx
+     */
+    private Bitmap round(Bitmap source) {
+        Bitmap output = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        int side = Math.min(source.getWidth(), source.getHeight());
+        float scale = (float) sizePx / side;
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate(-(source.getWidth() - side) / 2f * scale, -(source.getHeight() - side) / 2f * scale);
+        BitmapShader shader = new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        shader.setLocalMatrix(matrix);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(shader);
+        new Canvas(output).drawCircle(sizePx / 2f, sizePx / 2f, sizePx / 2f, paint);
+        return output;
+    }
+
+    private void writeToDisk(String key, Bitmap bitmap) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+        File file = fileFor(key);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write avatar for " + key, e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Delete the least recently used files until the directory fits maxDiskBytes
+     */
+    private void trimDisk() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= maxDiskBytes) break;
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return new File(dir, Hex.encode(hash) + ".png");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
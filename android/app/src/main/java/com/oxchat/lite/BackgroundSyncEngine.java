@@ -0,0 +1,236 @@
+package com.oxchat.lite;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.oxchat.nostr.FlutterEngines;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * Headless Flutter engine running the app's backgroundSyncMain entrypoint, so messages are fetched and decrypted
+ * while the app is closed and the chats are ready when the notification is opened
+ *
+ * At most one engine and one sync call at a time: pushes that arrive during a sync are folded into one follow-up
+ * call. The engine stops when it is idle for 30s, once it ran 2 minutes or used 20s of process CPU time, or when the
+ * app comes to the foreground; after hitting a budget no engine starts for 10 minutes, so a push storm can't keep it
+ * alive
+ *
+ * Callable from any thread, the engine itself lives on the main thread
+ */
+final class BackgroundSyncEngine {
+    private static final String TAG = "BackgroundSyncEngine";
+    static final String ENGINE_ID = "background_sync";
+    static final String DART_ENTRYPOINT = "backgroundSyncMain";
+    static final String CHANNEL = "com.oxchat.lite/background_sync";
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+    static final long DEFAULT_MAX_RUN_MS = 2 * 60 * 1000;
+    static final long DEFAULT_MAX_CPU_MS = 20 * 1000;
+    static final long DEFAULT_COOLDOWN_MS = 10 * 60 * 1000;
+    private static final long BUDGET_CHECK_INTERVAL_MS = 5 * 1000;
+
+    private static BackgroundSyncEngine instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private FlutterEngine engine;
+    private MethodChannel channel;
+    private long startedAt;
+    private long startCpuMs;
+    private long cooldownUntil;
+    private boolean syncInFlight;
+    // Groups of requests that came in during a sync call, null if none did
+    private Set<String> pendingGroups;
+    // Told on the main thread whenever a request or stop leaves no engine running
+    private Runnable stopListener;
+
+    private final Runnable idleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            stop("idle");
+        }
+    };
+    private final Runnable budgetCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (engine == null) return;
+            if (AppForegroundTracker.isAppInForeground(context)) {
+                // The app's own engine takes over, the synced messages are already stored
+                stop("app in foreground");
+                return;
+            }
+            long runMs = SystemClock.elapsedRealtime() - startedAt;
+            long cpuMs = Process.getElapsedCpuTime() - startCpuMs;
+            if (runMs > DEFAULT_MAX_RUN_MS || cpuMs > DEFAULT_MAX_CPU_MS) {
+                PushMetrics.get().increment(PushMetrics.BACKGROUND_SYNC_BUDGET_EXCEEDED);
+                cooldownUntil = SystemClock.elapsedRealtime() + DEFAULT_COOLDOWN_MS;
+                stop("budget exceeded after " + runMs + "ms, " + cpuMs + "ms CPU");
+                return;
+            }
+            mainHandler.postDelayed(this, BUDGET_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private BackgroundSyncEngine(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * One per process, the engine outlives a service instance and is picked up by the next one
+     */
+    static synchronized BackgroundSyncEngine get(Context context) {
+        if (instance == null) {
+            instance = new BackgroundSyncEngine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Sync new messages of these groups, starting the engine if needed
+     */
+    void requestSync(final Set<String> groups) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onSyncRequested(groups);
+            }
+        });
+    }
+
+    /**
+     * Main thread only
+     */
+    void setStopListener(Runnable listener) {
+        stopListener = listener;
+    }
+
+    /**
+     * Stop the engine if it runs, e.g. when push is turned off
+     */
+    void shutdown() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stop("shutdown");
+            }
+        });
+    }
+
+    private void onSyncRequested(Set<String> groups) {
+        if (engine == null && !start()) {
+            notifyStopped();
+            return;
+        }
+        mainHandler.removeCallbacks(idleTimeout);
+        if (syncInFlight) {
+            if (pendingGroups == null) {
+                pendingGroups = new LinkedHashSet<>();
+            }
+            pendingGroups.addAll(groups);
+            PushMetrics.get().increment(PushMetrics.BACKGROUND_SYNC_COALESCED);
+            return;
+        }
+        invokeSync(groups);
+    }
+
+    private boolean start() {
+        long now = SystemClock.elapsedRealtime();
+        if (now < cooldownUntil) {
+            PushMetrics.get().increment(PushMetrics.BACKGROUND_SYNC_THROTTLED);
+            Log.d(TAG, "In cooldown for another " + (cooldownUntil - now) + "ms, not starting");
+            return false;
+        }
+        FlutterEngineCache cache = FlutterEngineCache.getInstance();
+        engine = cache.get(ENGINE_ID);
+        if (engine == null) {
+            try {
+                engine = FlutterEngines.spawnHeadless(context, DART_ENTRYPOINT);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to start background sync engine", e);
+                return false;
+            }
+            cache.put(ENGINE_ID, engine);
+            Log.d(TAG, "Background sync engine started");
+        }
+        channel = new MethodChannel(engine.getDartExecutor(), CHANNEL);
+        startedAt = now;
+        startCpuMs = Process.getElapsedCpuTime();
+        PushMetrics.get().increment(PushMetrics.BACKGROUND_SYNC_RUNS);
+        mainHandler.postDelayed(budgetCheck, BUDGET_CHECK_INTERVAL_MS);
+        return true;
+    }
+
+    private void invokeSync(Set<String> groups) {
+        syncInFlight = true;
+        final FlutterEngine syncEngine = engine;
+        channel.invokeMethod("sync", new ArrayList<>(groups), new MethodChannel.Result() {
+            @Override
+            public void success(Object result) {
+                onSyncDone(syncEngine);
+            }
+
+            @Override
+            public void error(String code, String message, Object details) {
+                Log.w(TAG, "Background sync failed: " + code + " " + message);
+                onSyncDone(syncEngine);
+            }
+
+            @Override
+            public void notImplemented() {
+                Log.w(TAG, "Dart entrypoint has no sync handler");
+                onSyncDone(syncEngine);
+            }
+        });
+    }
+
+    private void onSyncDone(FlutterEngine syncEngine) {
+        if (engine != syncEngine) {
+            // Stopped while the call was running
+            return;
+        }
+        syncInFlight = false;
+        if (pendingGroups != null) {
+            Set<String> groups = pendingGroups;
+            pendingGroups = null;
+            invokeSync(groups);
+            return;
+        }
+        mainHandler.postDelayed(idleTimeout, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    private void stop(String reason) {
+        mainHandler.removeCallbacks(idleTimeout);
+        mainHandler.removeCallbacks(budgetCheck);
+        syncInFlight = false;
+        pendingGroups = null;
+        if (engine == null) {
+            notifyStopped();
+            return;
+        }
+        PushMetrics metrics = PushMetrics.get();
+        metrics.record(PushMetrics.BACKGROUND_SYNC_DURATION_MS, SystemClock.elapsedRealtime() - startedAt);
+        metrics.record(PushMetrics.BACKGROUND_SYNC_CPU_MS, Process.getElapsedCpuTime() - startCpuMs);
+        FlutterEngineCache.getInstance().remove(ENGINE_ID);
+        engine.destroy();
+        engine = null;
+        channel = null;
+        Log.d(TAG, "Background sync engine stopped: " + reason);
+        notifyStopped();
+    }
+
+    private void notifyStopped() {
+        if (stopListener != null) {
+            stopListener.run();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.oxchat.lite;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs BackgroundSyncEngine in the app process on behalf of PushNotificationService, whose :push process never
+ * loads Flutter
+ * Started once per burst with its groups, stops itself as soon as the engine is gone
+ */
+public class BackgroundSyncService extends Service {
+    private static final String TAG = "BackgroundSyncService";
+    private static final String EXTRA_GROUP_IDS = "group_ids";
+
+    private BackgroundSyncEngine engine;
+    private int lastStartId;
+
+    /**
+     * Sync new messages of these groups in the app process, callable from any process of the app
+     */
+    static void requestSync(Context context, Set<String> groups) {
+        Intent intent = new Intent(context, BackgroundSyncService.class);
+        intent.putStringArrayListExtra(EXTRA_GROUP_IDS, new ArrayList<>(groups));
+        try {
+            context.startService(intent);
+        } catch (IllegalStateException e) {
+            // Background start limits: allowed while the push service is in the foreground, not from a batched sync
+            Log.w(TAG, "Background sync not started: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop a running engine, e.g. when push is turned off
+     */
+    static void shutdown(Context context) {
+        context.stopService(new Intent(context, BackgroundSyncService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        engine = BackgroundSyncEngine.get(this);
+        engine.setStopListener(new Runnable() {
+            @Override
+            public void run() {
+                stopSelf(lastStartId);
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        lastStartId = startId;
+        List<String> groups = intent != null ? intent.getStringArrayListExtra(EXTRA_GROUP_IDS) : null;
+        if (groups == null) {
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+        engine.requestSync(new LinkedHashSet<>(groups));
+        // A sync is only worth it right after its burst, a restarted process doesn't redo it
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        engine.setStopListener(null);
+        engine.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+package com.oxchat.lite;
+
+import java.util.Random;
+
+/**
+ * Connection state of one push relay
+ * All transitions go through this class; the socket itself is opened and closed through Callbacks
+ *
+ * IDLE -> CONNECTING -> OPEN -> SUBSCRIBED, with AUTHENTICATING while a NIP-42 challenge is answered
+ * Any drop goes to BACKOFF (or IDLE while there is no network); BACKOFF waits a jittered exponential delay
+ *
+ * Clock, Scheduler and Random are injected so the machine can be driven deterministically
+ * Not thread-safe: confined to the push service thread, which also runs the Scheduler
+ */
+final class ConnectionStateMachine {
+    enum State {
+        IDLE,
+        CONNECTING,
+        OPEN,
+        AUTHENTICATING,
+        SUBSCRIBED,
+        BACKOFF
+    }
+
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    interface Scheduler {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    interface Callbacks {
+        void openSocket();
+
+        void closeSocket();
+
+        void onStateChanged(State from, State to);
+    }
+
+    static final long BASE_BACKOFF_MS = 2000; // 2 seconds
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000; // 5 minutes
+    // A connection that stayed up this long resets the backoff
+    static final long STABLE_CONNECTION_MS = 30000; // 30 seconds
+
+    private final Callbacks callbacks;
+    private final Scheduler scheduler;
+    private final Clock clock;
+    private final Random random;
+    private final Runnable backoffRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onBackoffElapsed();
+        }
+    };
+
+    private State state = State.IDLE;
+    private boolean started = false; // Whether the owner wants the relay connected
+    private boolean networkAvailable = true;
+    private int attempt = 0; // Consecutive failed connections, drives the backoff delay
+    private long openedAt = -1;
+
+    ConnectionStateMachine(Callbacks callbacks, Scheduler scheduler, Clock clock, Random random) {
+        this.callbacks = callbacks;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    boolean isOpen() {
+        return state == State.OPEN || state == State.AUTHENTICATING || state == State.SUBSCRIBED;
+    }
+
+    int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Keep the relay connected; a no-op unless IDLE
+     */
+    void start() {
+        started = true;
+        if (state == State.IDLE && networkAvailable) {
+            connect();
+        }
+    }
+
+    /**
+     * Close the socket and stay IDLE until start() is called again
+     */
+    void stop() {
+        started = false;
+        scheduler.cancel(backoffRunnable);
+        State previous = state;
+        moveTo(State.IDLE);
+        if (previous != State.IDLE && previous != State.BACKOFF) {
+            callbacks.closeSocket();
+        }
+        attempt = 0;
+    }
+
+    void onSocketOpen() {
+        if (state != State.CONNECTING) return;
+        openedAt = clock.elapsedRealtime();
+        moveTo(State.OPEN);
+    }
+
+    /**
+     * A NIP-42 challenge arrived, subscriptions are pending until AUTH is answered
+     */
+    void onAuthChallenge() {
+        if (isOpen()) {
+            moveTo(State.AUTHENTICATING);
+        }
+    }
+
+    /**
+     * The REQ has been sent on the open socket
+     */
+    void onSubscribed() {
+        if (isOpen()) {
+            moveTo(State.SUBSCRIBED);
+        }
+    }
+
+    /**
+     * The socket closed or failed
+     */
+    void onSocketClosed() {
+        if (state == State.IDLE || state == State.BACKOFF) return;
+        if (openedAt >= 0 && clock.elapsedRealtime() - openedAt >= STABLE_CONNECTION_MS) {
+            attempt = 0;
+        }
+        openedAt = -1;
+        scheduleReconnect();
+    }
+
+    /**
+     * A default network appeared: reconnect right away instead of waiting out the backoff
+     */
+    void onNetworkAvailable() {
+        networkAvailable = true;
+        if (started && (state == State.IDLE || state == State.BACKOFF)) {
+            scheduler.cancel(backoffRunnable);
+            attempt = 0;
+            connect();
+        }
+    }
+
+    /**
+     * No network: stop retrying until one appears, open sockets are left to fail on their own
+     */
+    void onNetworkLost() {
+        networkAvailable = false;
+        if (state == State.BACKOFF) {
+            scheduler.cancel(backoffRunnable);
+            moveTo(State.IDLE);
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half of the delay is fixed, half is random
+     * Keeps retries spread out without ever collapsing to an immediate reconnect
+     */
+    long nextBackoffDelayMs() {
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    private void connect() {
+        moveTo(State.CONNECTING);
+        callbacks.openSocket();
+    }
+
+    private void scheduleReconnect() {
+        if (!started || !networkAvailable) {
+            moveTo(State.IDLE);
+            return;
+        }
+        long delay = nextBackoffDelayMs();
+        attempt++;
+        moveTo(State.BACKOFF);
+        scheduler.schedule(backoffRunnable, delay);
+    }
+
+    private void onBackoffElapsed() {
+        if (state == State.BACKOFF && started && networkAvailable) {
+            connect();
+        }
+    }
+
+    private void moveTo(State next) {
+        State previous = state;
+        if (previous == next) return;
+        state = next;
+        callbacks.onStateChanged(previous, next);
+    }
+}
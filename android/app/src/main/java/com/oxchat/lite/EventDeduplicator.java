@@ -0,0 +1,39 @@
+package com.oxchat.lite;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of event ids seen across all relays
+ * The first relay to deliver an event wins; later copies are reported as duplicates with their delay
+ */
+final class EventDeduplicator {
+    private final LinkedHashMap<String, Long> firstSeenAt;
+
+    EventDeduplicator(final int maxEntries) {
+        // Access order, so ids still being re-delivered stay in the cache
+        firstSeenAt = new LinkedHashMap<String, Long>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Record an event id
+     * @return -1 if this is the first delivery, otherwise the time the id was first seen
+     */
+    synchronized long markSeen(String eventId, long nowMs) {
+        Long seenAt = firstSeenAt.get(eventId);
+        if (seenAt != null) {
+            return seenAt;
+        }
+        firstSeenAt.put(eventId, nowMs);
+        return -1;
+    }
+
+    synchronized void clear() {
+        firstSeenAt.clear();
+    }
+}
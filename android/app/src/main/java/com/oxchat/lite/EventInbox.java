@@ -0,0 +1,413 @@
+package com.oxchat.lite;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of verified push EVENTs, so the Flutter app shows them on open without asking the relays again
+ * Every event gets an offset, counting up from 1 for the lifetime of the app install; Flutter drains everything
+ * after the last offset it acknowledged in one read of the log tail
+ *
+ * Log file: [4 bytes magic "OXIB"][1 byte version][long base offset][long acknowledged offset], then per event
+ * [int length][int CRC32][canonical event JSON, UTF-8]; a torn record at the end is cut off on load
+ * Index file: [long offset][long log position] for every INDEX_INTERVAL-th event, so a drain seeks close to its
+ * offset and scans at most INDEX_INTERVAL records
+ * When the log outgrows maxBytes it is compacted: acknowledged events go first, then the oldest until half the cap
+ * is free; the rewrite goes to a temp file that is renamed over the log. The index is deleted before the rename and
+ * written afresh after it, a log without an index gets its index rebuilt on load
+ */
+public final class EventInbox {
+    private static final String TAG = "EventInbox";
+    private static final String DIR_NAME = "push_inbox";
+    private static final String LOG_FILE_NAME = "events.log";
+    private static final String INDEX_FILE_NAME = "events.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte[] MAGIC = {'O', 'X', 'I', 'B'};
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 8 + 8;
+    private static final int ACKED_POSITION = MAGIC.length + 1 + 8;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int INDEX_INTERVAL = 32;
+    static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    // Larger events are not kept, the app fetches them from the relays as before
+    static final int MAX_EVENT_BYTES = 64 * 1024;
+
+    /**
+     * Events after an offset
+     */
+    public static final class Batch {
+        public final List<String> events;
+        // Offset of the last event in events, or the offset asked for if there are none
+        public final long lastOffset;
+        // Events after the offset asked for were dropped by compaction, the app has to catch up from the relays
+        public final boolean gap;
+        // Offset the app acknowledged with this drain, -1 for a batch that wasn't read from this inbox
+        final long acknowledgedOffset;
+
+        Batch(List<String> events, long lastOffset, boolean gap) {
+            this(events, lastOffset, gap, -1);
+        }
+
+        Batch(List<String> events, long lastOffset, boolean gap, long acknowledgedOffset) {
+            this.events = events;
+            this.lastOffset = lastOffset;
+            this.gap = gap;
+            this.acknowledgedOffset = acknowledgedOffset;
+        }
+    }
+
+    private static EventInbox instance;
+
+    private final File logFile;
+    private final File indexFile;
+    private final long maxBytes;
+    private final CRC32 crc = new CRC32();
+    private FileChannel log;
+    private FileChannel index;
+    // Offset of the first event in the log, and of the next one to be appended
+    private long baseOffset = 1;
+    private long nextOffset = 1;
+    private long ackedOffset;
+    // In-memory copy of the index file
+    private long[] indexOffsets = new long[16];
+    private long[] indexPositions = new long[16];
+    private int indexSize;
+
+    EventInbox(File dir, long maxBytes) {
+        this.logFile = new File(dir, LOG_FILE_NAME);
+        this.indexFile = new File(dir, INDEX_FILE_NAME);
+        this.maxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open inbox, starting empty", e);
+            reset(1, 0);
+        }
+    }
+
+    public static synchronized EventInbox get(Context context) {
+        if (instance == null) {
+            instance = new EventInbox(new File(context.getApplicationContext().getFilesDir(), DIR_NAME), DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Append one event, its JSON as UTF-8
+     * @return offset of the event, or -1 if it wasn't stored
+     */
+    synchronized long append(byte[] json) {
+        if (log == null || json.length > MAX_EVENT_BYTES) return -1;
+        try {
+            int recordLength = RECORD_HEADER_LENGTH + json.length;
+            if (log.size() + recordLength > maxBytes) {
+                compact(maxBytes / 2 - recordLength);
+            }
+            long position = log.size();
+            if ((nextOffset - baseOffset) % INDEX_INTERVAL == 0) {
+                addIndexEntry(nextOffset, position, true);
+            }
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            record.putInt(json.length).putInt(checksum(json, 0, json.length)).put(json);
+            record.flip();
+            writeFully(log, record, position);
+            PushMetrics.get().increment(PushMetrics.INBOX_APPENDED);
+            return nextOffset++;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append event", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Push appended events to storage, called once per burst instead of once per event
+     */
+    synchronized void sync() {
+        if (log == null) return;
+        try {
+            log.force(false);
+            index.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to sync inbox", e);
+        }
+    }
+
+    /**
+     * Events after afterOffset, read with one bulk read of the log tail
+     * afterOffset is only taken as acknowledged once the batch reached the app, see acknowledge(Batch)
+     */
+    public synchronized Batch drain(long afterOffset) {
+        long startNanos = System.nanoTime();
+        List<String> events = new ArrayList<>();
+        if (log == null) return new Batch(events, afterOffset, false);
+        try {
+            boolean gap = afterOffset < baseOffset - 1;
+            if (afterOffset >= nextOffset) {
+                // Offset of a log that was lost, e.g. to a corrupt file, everything here is new to the app
+                gap = true;
+                afterOffset = baseOffset - 1;
+            }
+            long first = Math.max(afterOffset + 1, baseOffset);
+            if (first >= nextOffset) {
+                return new Batch(events, Math.max(afterOffset, nextOffset - 1), gap, afterOffset);
+            }
+            // Nearest indexed event at or before the first one wanted
+            int slot = Arrays.binarySearch(indexOffsets, 0, indexSize, first);
+            if (slot < 0) {
+                slot = -slot - 2;
+            }
+            long offset = slot >= 0 ? indexOffsets[slot] : baseOffset;
+            long position = slot >= 0 ? indexPositions[slot] : HEADER_LENGTH;
+            long length = log.size() - position;
+            ByteBuffer tail = ByteBuffer.allocate((int) length);
+            readFully(log, tail, position);
+            byte[] bytes = tail.array();
+            int cursor = 0;
+            while (cursor + RECORD_HEADER_LENGTH <= bytes.length) {
+                int size = tail.getInt(cursor);
+                int start = cursor + RECORD_HEADER_LENGTH;
+                if (offset >= first) {
+                    events.add(new String(bytes, start, size, StandardCharsets.UTF_8));
+                }
+                cursor = start + size;
+                offset++;
+            }
+            PushMetrics.get().record(PushMetrics.INBOX_DRAIN_US, (System.nanoTime() - startNanos) / 1000);
+            return new Batch(events, offset - 1, gap, afterOffset);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to drain inbox", e);
+            return new Batch(events, afterOffset, false);
+        }
+    }
+
+    /**
+     * Drop every event, offsets keep counting so the app's acknowledged offset stays meaningful
+     */
+    public synchronized void clear() {
+        closeChannels();
+        reset(nextOffset, nextOffset - 1);
+    }
+
+    /**
+     * The batch reached the app: the offset it drained after is acknowledged, events up to it are dropped first by
+     * the next compaction
+     */
+    synchronized void acknowledge(Batch batch) {
+        long offset = Math.min(batch.acknowledgedOffset, nextOffset - 1);
+        if (log == null || offset <= ackedOffset) return;
+        ackedOffset = offset;
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(ackedOffset).flip();
+        try {
+            writeFully(log, buffer, ACKED_POSITION);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to acknowledge offset " + offset, e);
+        }
+    }
+
+    private void open() throws IOException {
+        if (!logFile.exists()) {
+            reset(1, 0);
+            return;
+        }
+        log = new RandomAccessFile(logFile, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        if (log.size() < HEADER_LENGTH) {
+            throw new IOException("Truncated inbox header");
+        }
+        readFully(log, header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        byte version = header.get();
+        if (!Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION) {
+            throw new IOException("Unsupported inbox file, version " + version);
+        }
+        baseOffset = header.getLong();
+        ackedOffset = header.getLong();
+
+        // Index entries past the end of the log belong to records lost in a crash
+        index = new RandomAccessFile(indexFile, "rw").getChannel();
+        long indexLength = index.size() - index.size() % 16;
+        ByteBuffer entries = ByteBuffer.allocate((int) indexLength);
+        readFully(index, entries, 0);
+        entries.flip();
+        indexSize = 0;
+        while (entries.remaining() >= 16) {
+            long offset = entries.getLong();
+            long position = entries.getLong();
+            if (position >= log.size() || (indexSize > 0 && offset <= indexOffsets[indexSize - 1])) break;
+            addIndexEntry(offset, position, false);
+        }
+        index.truncate((long) indexSize * 16);
+
+        // Scan from the last indexed record to the end, cutting off a record torn by a crash
+        long offset = indexSize > 0 ? indexOffsets[indexSize - 1] : baseOffset;
+        long position = indexSize > 0 ? indexPositions[indexSize - 1] : HEADER_LENGTH;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        while (position + RECORD_HEADER_LENGTH <= log.size()) {
+            recordHeader.clear();
+            readFully(log, recordHeader, position);
+            int size = recordHeader.getInt(0);
+            if (size < 0 || size > MAX_EVENT_BYTES || position + RECORD_HEADER_LENGTH + size > log.size()) break;
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            readFully(log, payload, position + RECORD_HEADER_LENGTH);
+            if (checksum(payload.array(), 0, size) != recordHeader.getInt(4)) break;
+            if ((offset - baseOffset) % INDEX_INTERVAL == 0
+                    && (indexSize == 0 || indexOffsets[indexSize - 1] < offset)) {
+                addIndexEntry(offset, position, true);
+            }
+            position += RECORD_HEADER_LENGTH + size;
+            offset++;
+        }
+        if (position < log.size()) {
+            Log.w(TAG, "Cutting off " + (log.size() - position) + " bytes of torn records");
+            log.truncate(position);
+        }
+        nextOffset = offset;
+        Log.d(TAG, "Opened inbox with events " + baseOffset + ".." + (nextOffset - 1) + ", acknowledged " + ackedOffset);
+    }
+
+    /**
+     * Start a fresh, empty log whose first event gets offset base
+     */
+    private void reset(long base, long acked) {
+        closeChannels();
+        logFile.delete();
+        indexFile.delete();
+        baseOffset = base;
+        nextOffset = base;
+        ackedOffset = acked;
+        indexSize = 0;
+        try {
+            log = new RandomAccessFile(logFile, "rw").getChannel();
+            index = new RandomAccessFile(indexFile, "rw").getChannel();
+            writeFully(log, header(base, acked), 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create inbox", e);
+            closeChannels();
+        }
+    }
+
+    /**
+     * Rewrite the log keeping at most keepBytes of the newest events, dropping acknowledged events first
+     */
+    private void compact(long keepBytes) throws IOException {
+        long startNanos = System.nanoTime();
+        ByteBuffer records = ByteBuffer.allocate((int) (log.size() - HEADER_LENGTH));
+        readFully(log, records, HEADER_LENGTH);
+        byte[] bytes = records.array();
+        // Record start positions (relative to the records) of every event in the log
+        int count = (int) (nextOffset - baseOffset);
+        int[] starts = new int[count + 1];
+        int cursor = 0;
+        for (int i = 0; i < count; i++) {
+            starts[i] = cursor;
+            cursor += RECORD_HEADER_LENGTH + records.getInt(cursor);
+        }
+        starts[count] = cursor;
+        int acknowledged = (int) Math.max(0, Math.min(count, ackedOffset - baseOffset + 1));
+        int first = acknowledged;
+        while (first < count && starts[count] - starts[first] > keepBytes) {
+            first++;
+        }
+        int dropped = first - acknowledged;
+        if (dropped > 0) {
+            PushMetrics.get().increment(PushMetrics.INBOX_DROPPED, dropped);
+        }
+        long newBase = baseOffset + first;
+
+        File tempLog = new File(logFile.getPath() + TEMP_SUFFIX);
+        try (FileChannel out = new RandomAccessFile(tempLog, "rw").getChannel()) {
+            out.truncate(0);
+            writeFully(out, header(newBase, ackedOffset), 0);
+            writeFully(out, ByteBuffer.wrap(bytes, starts[first], starts[count] - starts[first]), HEADER_LENGTH);
+            out.force(false);
+        }
+        // The old index would point into the new log if a crash came between the two, so it goes before the rename;
+        // a crash before the new one is written leaves no index, and open() rebuilds it from the log
+        closeChannels();
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Failed to delete inbox index");
+        }
+        if (!tempLog.renameTo(logFile)) {
+            throw new IOException("Failed to replace inbox log");
+        }
+        log = new RandomAccessFile(logFile, "rw").getChannel();
+        index = new RandomAccessFile(indexFile, "rw").getChannel();
+        baseOffset = newBase;
+        indexSize = 0;
+        for (int i = first; i < count; i += INDEX_INTERVAL) {
+            addIndexEntry(baseOffset + i - first, HEADER_LENGTH + starts[i] - starts[first], true);
+        }
+        PushMetrics.get().increment(PushMetrics.INBOX_COMPACTIONS);
+        Log.d(TAG, "Compacted inbox to events " + baseOffset + ".." + (nextOffset - 1) + " in "
+                + (System.nanoTime() - startNanos) / 1000 + "us");
+    }
+
+    private void addIndexEntry(long offset, long position, boolean persist) throws IOException {
+        if (indexSize == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexOffsets[indexSize] = offset;
+        indexPositions[indexSize] = position;
+        indexSize++;
+        if (persist) {
+            ByteBuffer entry = ByteBuffer.allocate(16);
+            entry.putLong(offset).putLong(position).flip();
+            writeFully(index, entry, (long) (indexSize - 1) * 16);
+        }
+    }
+
+    private static ByteBuffer header(long base, long acked) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).put(FORMAT_VERSION).putLong(base).putLong(acked).flip();
+        return header;
+    }
+
+    private int checksum(byte[] bytes, int offset, int length) {
+        crc.reset();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private void closeChannels() {
+        try {
+            if (log != null) log.close();
+            if (index != null) index.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close inbox files", e);
+        }
+        log = null;
+        index = null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of inbox file");
+            position += read;
+        }
+    }
+}
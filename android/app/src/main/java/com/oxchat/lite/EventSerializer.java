@@ -0,0 +1,255 @@
+package com.oxchat.lite;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Canonical NIP-01 event serializer and id hasher
+ * Writes [0,pubkey,created_at,kind,tags,content] as UTF-8 straight into a reusable buffer that is fed to SHA-256
+ * as it fills, so computing an id allocates no intermediate JSON tree or String
+ *
+ * Strings are escaped like Jackson, which nostr-java serializes with: \n \" \\ \r \t \b \f, other control characters
+ * below 0x20 as \\u00XX with upper case hex, every other character verbatim
+ * Not thread-safe: one instance per thread
+ */
+final class EventSerializer {
+    private static final int BUFFER_SIZE = 1024;
+    private static final byte[] HEX_UPPER = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private final MessageDigest sha256;
+    private final char[] digits = new char[20];
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    // While hashing a full buffer is flushed into the digest, otherwise it grows to hold the whole output
+    private boolean hashing;
+
+    EventSerializer() {
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Event id: SHA-256 of the canonical serialization, 32 bytes
+     */
+    byte[] computeId(String pubkey, long createdAt, int kind, String[][] tags, String content) {
+        position = 0;
+        hashing = true;
+        sha256.reset();
+        writeByte('[');
+        writeByte('0');
+        writeByte(',');
+        writeString(pubkey);
+        writeByte(',');
+        writeLong(createdAt);
+        writeByte(',');
+        writeLong(kind);
+        writeByte(',');
+        writeTags(tags);
+        writeByte(',');
+        writeString(content);
+        writeByte(']');
+        sha256.update(buffer, 0, position);
+        position = 0;
+        return sha256.digest();
+    }
+
+    /**
+     * Signed event object: {"id":..,"pubkey":..,"created_at":..,"kind":..,"tags":..,"content":..,"sig":..}
+     */
+    String serializeEvent(String id, String pubkey, long createdAt, int kind, String[][] tags, String content, String sig) {
+        writeEvent(id, pubkey, createdAt, kind, tags, content, sig);
+        String json = new String(buffer, 0, position, StandardCharsets.UTF_8);
+        reset();
+        return json;
+    }
+
+    /**
+     * Same as serializeEvent, as UTF-8 bytes without going through a String
+     */
+    byte[] serializeEventUtf8(String id, String pubkey, long createdAt, int kind, String[][] tags, String content, String sig) {
+        writeEvent(id, pubkey, createdAt, kind, tags, content, sig);
+        byte[] json = Arrays.copyOf(buffer, position);
+        reset();
+        return json;
+    }
+
+    private void writeEvent(String id, String pubkey, long createdAt, int kind, String[][] tags, String content, String sig) {
+        position = 0;
+        hashing = false;
+        writeByte('{');
+        writeField("id");
+        writeString(id);
+        writeByte(',');
+        writeField("pubkey");
+        writeString(pubkey);
+        writeByte(',');
+        writeField("created_at");
+        writeLong(createdAt);
+        writeByte(',');
+        writeField("kind");
+        writeLong(kind);
+        writeByte(',');
+        writeField("tags");
+        writeTags(tags);
+        writeByte(',');
+        writeField("content");
+        writeString(content);
+        writeByte(',');
+        writeField("sig");
+        writeString(sig);
+        writeByte('}');
+    }
+
+    private void reset() {
+        position = 0;
+        if (buffer.length > BUFFER_SIZE) {
+            // Don't hold on to a buffer grown by one large event
+            buffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void writeTags(String[][] tags) {
+        writeByte('[');
+        for (int i = 0; i < tags.length; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeByte('[');
+            String[] tag = tags[i];
+            for (int j = 0; j < tag.length; j++) {
+                if (j > 0) {
+                    writeByte(',');
+                }
+                writeString(tag[j]);
+            }
+            writeByte(']');
+        }
+        writeByte(']');
+    }
+
+    private void writeField(String name) {
+        writeString(name);
+        writeByte(':');
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            writeByte(digits[--count]);
+        }
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeString(String s) {
+        writeByte('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    writeEscape('"');
+                    break;
+                case '\\':
+                    writeEscape('\\');
+                    break;
+                case '\n':
+                    writeEscape('n');
+                    break;
+                case '\r':
+                    writeEscape('r');
+                    break;
+                case '\t':
+                    writeEscape('t');
+                    break;
+                case '\b':
+                    writeEscape('b');
+                    break;
+                case '\f':
+                    writeEscape('f');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writeUnicodeEscape(c);
+                    } else if (c < 0x80) {
+                        writeByte(c);
+                    } else if (c < 0x800) {
+                        ensureCapacity(2);
+                        buffer[position++] = (byte) (0xc0 | (c >> 6));
+                        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                        ensureCapacity(4);
+                        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        // Unpaired surrogate, encoded as '?' like String.getBytes(UTF_8) does
+                        writeByte('?');
+                    } else {
+                        ensureCapacity(3);
+                        buffer[position++] = (byte) (0xe0 | (c >> 12));
+                        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                    }
+                    break;
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeEscape(char c) {
+        ensureCapacity(2);
+        buffer[position++] = '\\';
+        buffer[position++] = (byte) c;
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[position++] = '\\';
+        buffer[position++] = 'u';
+        buffer[position++] = '0';
+        buffer[position++] = '0';
+        buffer[position++] = HEX_UPPER[c >> 4];
+        buffer[position++] = HEX_UPPER[c & 0x0f];
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    private void ensureCapacity(int count) {
+        if (position + count <= buffer.length) {
+            return;
+        }
+        if (hashing) {
+            sha256.update(buffer, 0, position);
+            position = 0;
+        } else {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+        }
+    }
+}
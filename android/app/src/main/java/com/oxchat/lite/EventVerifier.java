@@ -0,0 +1,134 @@
+package com.oxchat.lite;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.acinq.secp256k1.Secp256k1;
+
+/**
+ * Checks the NIP-01 id and Schnorr signature of incoming EVENTs before they may wake the app
+ * Bursts are verified on a small worker pool; ids whose signature already checked out are kept in an LRU, so the copy
+ * every other relay delivers only costs the id hash
+ */
+final class EventVerifier {
+    private static final String TAG = "EventVerifier";
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_CACHE_SIZE = 2048;
+
+    interface Callback {
+        /**
+         * Called on a worker thread
+         */
+        void onVerified(RelayFrame frame, boolean valid);
+    }
+
+    private final Secp256k1 secp256k1;
+    private final ExecutorService executor;
+    // One serializer per worker, EventSerializer is not thread-safe
+    private final ThreadLocal<EventSerializer> serializers = new ThreadLocal<EventSerializer>() {
+        @Override
+        protected EventSerializer initialValue() {
+            return new EventSerializer();
+        }
+    };
+    private final LinkedHashMap<String, Boolean> verifiedIds;
+
+    EventVerifier(Secp256k1 secp256k1, int threads, final int cacheSize) {
+        this.secp256k1 = secp256k1;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "EventVerifier-" + count.incrementAndGet());
+                    }
+                });
+        this.verifiedIds = new LinkedHashMap<String, Boolean>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Verify on the worker pool, the callback runs there too
+     */
+    void verify(final RelayFrame frame, final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onVerified(frame, isValid(frame));
+            }
+        });
+    }
+
+    /**
+     * Whether an EVENT frame has every field an event needs, checked before it is verified, stored or notified
+     * whether or not signatures can be verified
+     */
+    static boolean isWellFormed(RelayFrame frame) {
+        if (frame.eventId == null || frame.pubkey == null || frame.sig == null || frame.tags == null
+                || frame.content == null || frame.kind < 0 || frame.createdAt < 0) {
+            return false;
+        }
+        for (String[] tag : frame.tags) {
+            if (tag == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the event id matches its canonical serialization and the signature matches the id and pubkey
+     */
+    boolean isValid(RelayFrame frame) {
+        long startNanos = System.nanoTime();
+        if (!isWellFormed(frame)) {
+            Log.w(TAG, "Malformed EVENT " + frame.eventId);
+            return false;
+        }
+        try {
+            // Recomputed even for cached ids: the id is what binds the tags and content to the signature
+            byte[] id = serializers.get().computeId(frame.pubkey, frame.createdAt, frame.kind, frame.tags, frame.content);
+            if (!Hex.encode(id).equals(frame.eventId)) {
+                Log.w(TAG, "EVENT id does not match its content: " + frame.eventId);
+                return false;
+            }
+            synchronized (verifiedIds) {
+                if (verifiedIds.get(frame.eventId) != null) {
+                    PushMetrics.get().increment(PushMetrics.EVENTS_VERIFY_CACHED);
+                    return true;
+                }
+            }
+            byte[] pubkey = Hex.decode(frame.pubkey);
+            byte[] sig = Hex.decode(frame.sig);
+            if (pubkey.length != 32 || sig.length != 64 || !secp256k1.verifySchnorr(sig, id, pubkey)) {
+                Log.w(TAG, "Bad signature on EVENT " + frame.eventId);
+                return false;
+            }
+            synchronized (verifiedIds) {
+                verifiedIds.put(frame.eventId, Boolean.TRUE);
+            }
+            PushMetrics.get().record(PushMetrics.VERIFY_TIME_US, (System.nanoTime() - startNanos) / 1000);
+            return true;
+        } catch (RuntimeException e) {
+            // Bad hex, or a pubkey secp256k1 rejects
+            Log.w(TAG, "Failed to verify EVENT " + frame.eventId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (verifiedIds) {
+            verifiedIds.clear();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.oxchat.lite;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * ConnectionStateMachine.Scheduler and Clock backed by a Handler and SystemClock, what relay connections run on in the app
+ * Other hosts (a plain JVM driving a local relay) supply their own
+ */
+final class HandlerScheduler implements ConnectionStateMachine.Scheduler, ConnectionStateMachine.Clock {
+    private final Handler handler;
+
+    HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        if (delayMs <= 0) {
+            handler.post(task);
+        } else {
+            handler.postDelayed(task, delayMs);
+        }
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,101 @@
+package com.oxchat.lite;
+
+import java.util.Arrays;
+
+/**
+ * Table-driven lowercase hex codec for event ids, keys and signatures
+ */
+final class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    // Nibble value per ASCII character, -1 for characters that are not hex digits
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private Hex() {
+    }
+
+    static String encode(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            out[j++] = DIGITS[b >>> 4];
+            out[j++] = DIGITS[b & 0x0f];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decode a hex string of even length, upper or lower case
+     * @throws IllegalArgumentException on odd length or a character that is not a hex digit
+     */
+    static byte[] decode(CharSequence hex) {
+        int len = hex.length();
+        if ((len & 1) != 0) {
+            throw new IllegalArgumentException("Hex string has odd length: " + len);
+        }
+        byte[] out = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            out[i / 2] = (byte) ((nibble(hex.charAt(i)) << 4) | nibble(hex.charAt(i + 1)));
+        }
+        return out;
+    }
+
+    /**
+     * Decode hex held as ASCII bytes, e.g. a decrypted key, without turning it into a String that can't be wiped
+     * @throws IllegalArgumentException on odd length or a byte that is not a hex digit
+     */
+    static byte[] decode(byte[] ascii, int offset, int length) {
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Hex has odd length: " + length);
+        }
+        byte[] out = new byte[length / 2];
+        for (int i = 0; i < length; i += 2) {
+            int high = asciiNibble(ascii[offset + i]);
+            int low = asciiNibble(ascii[offset + i + 1]);
+            if (high < 0 || low < 0) {
+                // No offending byte in the message, it may be key material
+                Arrays.fill(out, (byte) 0);
+                throw new IllegalArgumentException("Not a hex digit at " + (i + (high < 0 ? 0 : 1)));
+            }
+            out[i / 2] = (byte) ((high << 4) | low);
+        }
+        return out;
+    }
+
+    /**
+     * Lowercase hex as ASCII bytes, the counterpart of decode(byte[], int, int)
+     */
+    static byte[] encodeAscii(byte[] bytes) {
+        byte[] out = new byte[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            out[j++] = (byte) DIGITS[b >>> 4];
+            out[j++] = (byte) DIGITS[b & 0x0f];
+        }
+        return out;
+    }
+
+    private static int asciiNibble(byte b) {
+        return b >= 0 ? VALUES[b] : -1;
+    }
+
+    private static int nibble(char c) {
+        int value = c < 128 ? VALUES[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a hex digit: " + c);
+        }
+        return value;
+    }
+}
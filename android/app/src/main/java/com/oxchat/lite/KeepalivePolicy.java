@@ -0,0 +1,108 @@
+package com.oxchat.lite;
+
+/**
+ * Adaptive keepalive interval for one relay
+ * A relay that stays silent for intervalMs is probed; each probe that survives a full idle interval stretches the
+ * interval, and a probe that times out (a half-open socket, usually a NAT or middlebox timeout) pulls it back below
+ * the idle time that killed the path, so the service only wakes the radio as often as the path needs
+ *
+ * Not thread-safe: confined to the push service thread
+ */
+final class KeepalivePolicy {
+    static final long MIN_INTERVAL_MS = 30 * 1000; // 30 seconds
+    static final long MAX_INTERVAL_MS = 5 * 60 * 1000; // 5 minutes
+    static final long DEFAULT_INTERVAL_MS = 60 * 1000; // 1 minute
+    static final long MIN_PROBE_TIMEOUT_MS = 5000;
+    static final long MAX_PROBE_TIMEOUT_MS = 20000;
+    // Probe timeout as a multiple of the average round trip
+    private static final int PROBE_TIMEOUT_RTTS = 4;
+    // Stop growing once the interval is this close to the idle time known to kill the path
+    private static final long CEILING_MARGIN_MS = 10 * 1000;
+    private static final double EWMA_ALPHA = 0.2;
+
+    private long intervalMs;
+    private boolean fixed;
+    // Longest idle time a probe has survived, 0 if none yet
+    private long lastGoodIntervalMs;
+    // Shortest idle time after which a probe timed out, 0 if none yet
+    private long ceilingMs;
+    private double rttMs = -1;
+
+    KeepalivePolicy(long fixedIntervalMs) {
+        setFixedInterval(fixedIntervalMs);
+    }
+
+    /**
+     * Use a fixed interval, or adapt from DEFAULT_INTERVAL_MS when fixedIntervalMs is 0 or less
+     */
+    void setFixedInterval(long fixedIntervalMs) {
+        fixed = fixedIntervalMs > 0;
+        intervalMs = fixed ? fixedIntervalMs : DEFAULT_INTERVAL_MS;
+        lastGoodIntervalMs = 0;
+        ceilingMs = 0;
+    }
+
+    long intervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * How long to wait for the probe answer before the socket is treated as half-open
+     */
+    long probeTimeoutMs() {
+        if (rttMs < 0) {
+            return MAX_PROBE_TIMEOUT_MS;
+        }
+        return Math.max(MIN_PROBE_TIMEOUT_MS, Math.min(MAX_PROBE_TIMEOUT_MS, (long) (rttMs * PROBE_TIMEOUT_RTTS)));
+    }
+
+    /**
+     * Average probe round trip in ms, -1 before the first probe
+     */
+    double rttMs() {
+        return rttMs;
+    }
+
+    /**
+     * A probe was answered
+     * @param idleMs how long the socket was silent before the probe was sent
+     */
+    void onProbeAnswered(long rtt, long idleMs) {
+        rttMs = rttMs < 0 ? rtt : rttMs + EWMA_ALPHA * (rtt - rttMs);
+        if (fixed || idleMs < intervalMs) {
+            return;
+        }
+        lastGoodIntervalMs = Math.max(lastGoodIntervalMs, idleMs);
+        long next = Math.min(MAX_INTERVAL_MS, intervalMs + intervalMs / 2);
+        if (ceilingMs > 0) {
+            // Approach the known bad idle time by halving the distance, never reaching it
+            next = Math.min(next, (intervalMs + ceilingMs) / 2);
+            if (ceilingMs - next < CEILING_MARGIN_MS) {
+                return;
+            }
+        }
+        intervalMs = Math.max(intervalMs, next);
+    }
+
+    /**
+     * A probe went unanswered after the socket was silent for idleMs
+     */
+    void onProbeTimedOut(long idleMs) {
+        if (fixed) {
+            return;
+        }
+        ceilingMs = ceilingMs > 0 ? Math.min(ceilingMs, idleMs) : idleMs;
+        long next = lastGoodIntervalMs > 0 && lastGoodIntervalMs < ceilingMs ? lastGoodIntervalMs : ceilingMs / 2;
+        intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(intervalMs, next));
+        if (lastGoodIntervalMs >= ceilingMs) {
+            // The path got worse than what it used to survive
+            lastGoodIntervalMs = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "interval=" + (intervalMs / 1000) + "s" + (fixed ? " (fixed)" : "")
+                + ", rttMs=" + Math.round(rttMs);
+    }
+}
@@ -0,0 +1,283 @@
+package com.oxchat.lite;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypted private keys of every push account, keyed by pubkey, in one file under the KeystoreHelper Keystore key
+ *
+ * File format (version 1):
+ * [4 bytes magic "OXKV"][1 byte version][int entry count], then per entry
+ * [32 bytes pubkey][1 byte IV length][IV][short ciphertext length][ciphertext + GCM tag]
+ * Each entry is encrypted on its own with its pubkey as GCM associated data, so an entry can't be swapped to another
+ * account; the file is written atomically like the single key file
+ *
+ * The file is read once into a pubkey index; a lookup decrypts only the entry asked for
+ */
+public final class KeyVault {
+    private static final String TAG = "KeyVault";
+    private static final String VAULT_FILE_NAME = "push_key_vault.dat";
+    private static final byte[] MAGIC = {'O', 'X', 'K', 'V'};
+    private static final byte FORMAT_VERSION = 1;
+    private static final int PUBKEY_LENGTH = 32;
+
+    private static KeyVault instance;
+
+    private final File file;
+    // pubkey hex -> [IV length][IV][ciphertext + tag], in insertion order
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>();
+
+    private KeyVault(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static synchronized KeyVault get(Context context) {
+        if (instance == null) {
+            instance = new KeyVault(new File(context.getApplicationContext().getFilesDir(), VAULT_FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Store or replace the private key of an account, given as hex
+     */
+    public synchronized boolean put(String pubkey, String privkeyHex) {
+        if (privkeyHex == null || privkeyHex.isEmpty()) {
+            return false;
+        }
+        byte[] plaintext = privkeyHex.getBytes(StandardCharsets.UTF_8);
+        try {
+            return putPlaintext(pubkey, plaintext);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Store or replace the raw 32-byte private key of an account; the array stays the caller's to wipe
+     */
+    synchronized boolean put(String pubkey, byte[] privkey) {
+        byte[] plaintext = Hex.encodeAscii(privkey);
+        try {
+            return putPlaintext(pubkey, plaintext);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Entries hold the key as hex, the format the vault has always been written in
+     */
+    private boolean putPlaintext(String pubkey, byte[] plaintext) {
+        String key = normalize(pubkey);
+        if (key == null) {
+            return false;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(KeystoreHelper.TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, KeystoreHelper.getOrCreateSecretKey());
+            cipher.updateAAD(Hex.decode(key));
+            byte[] ciphertext = cipher.doFinal(plaintext);
+            byte[] iv = cipher.getIV();
+            byte[] entry = new byte[1 + iv.length + ciphertext.length];
+            entry[0] = (byte) iv.length;
+            System.arraycopy(iv, 0, entry, 1, iv.length);
+            System.arraycopy(ciphertext, 0, entry, 1 + iv.length, ciphertext.length);
+            byte[] previous = entries.put(key, entry);
+            if (!save()) {
+                if (previous != null) {
+                    entries.put(key, previous);
+                } else {
+                    entries.remove(key);
+                }
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to encrypt key for " + key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Decrypted private key of an account, decoded from hex straight into bytes, or null if the vault has none
+     * The caller owns the array and must wipe it once done
+     */
+    public synchronized byte[] getPrivateKey(String pubkey) {
+        String key = normalize(pubkey);
+        byte[] entry = key != null ? entries.get(key) : null;
+        if (entry == null) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        byte[] plaintext = null;
+        try {
+            int ivLength = entry[0] & 0xff;
+            Cipher cipher = Cipher.getInstance(KeystoreHelper.TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, KeystoreHelper.getOrCreateSecretKey(),
+                    new GCMParameterSpec(KeystoreHelper.GCM_TAG_LENGTH, entry, 1, ivLength));
+            cipher.updateAAD(Hex.decode(key));
+            plaintext = cipher.doFinal(entry, 1 + ivLength, entry.length - 1 - ivLength);
+            byte[] privkey = Hex.decode(plaintext, 0, plaintext.length);
+            PushMetrics.get().record(PushMetrics.KEY_LOAD_LATENCY_US, (System.nanoTime() - startNanos) / 1000);
+            return privkey;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to decrypt key for " + key, e);
+            return null;
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+    }
+
+    public synchronized boolean contains(String pubkey) {
+        String key = normalize(pubkey);
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * Pubkeys of all accounts, in the order they were added
+     */
+    public synchronized List<String> pubkeys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized boolean remove(String pubkey) {
+        String key = normalize(pubkey);
+        if (key == null || entries.remove(key) == null) {
+            return false;
+        }
+        return save();
+    }
+
+    /**
+     * Drop every account not in keep
+     */
+    public synchronized void retain(Collection<String> keep) {
+        List<String> normalized = new ArrayList<>();
+        for (String pubkey : keep) {
+            String key = normalize(pubkey);
+            if (key != null) {
+                normalized.add(key);
+            }
+        }
+        boolean changed = false;
+        Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (!normalized.contains(iterator.next().getKey())) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Remove every key, overwriting the file before it is deleted
+     */
+    public synchronized void clear() {
+        entries.clear();
+        new File(file.getPath() + KeystoreHelper.TEMP_SUFFIX).delete();
+        if (file.exists()) {
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(new byte[(int) file.length()]);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to overwrite vault", e);
+            }
+            file.delete();
+        }
+    }
+
+    private static String normalize(String pubkey) {
+        if (pubkey == null || pubkey.length() != PUBKEY_LENGTH * 2) {
+            return null;
+        }
+        String key = pubkey.toLowerCase();
+        try {
+            Hex.decode(key);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return key;
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(KeystoreHelper.readFully(file)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            int version = in.readByte();
+            if (!Arrays.equals(magic, MAGIC) || version != FORMAT_VERSION) {
+                Log.e(TAG, "Unsupported vault file, version " + version);
+                return;
+            }
+            int count = in.readInt();
+            byte[] pubkey = new byte[PUBKEY_LENGTH];
+            for (int i = 0; i < count; i++) {
+                in.readFully(pubkey);
+                int ivLength = in.readUnsignedByte();
+                byte[] iv = new byte[ivLength];
+                in.readFully(iv);
+                byte[] ciphertext = new byte[in.readUnsignedShort()];
+                in.readFully(ciphertext);
+                byte[] entry = new byte[1 + ivLength + ciphertext.length];
+                entry[0] = (byte) ivLength;
+                System.arraycopy(iv, 0, entry, 1, ivLength);
+                System.arraycopy(ciphertext, 0, entry, 1 + ivLength, ciphertext.length);
+                entries.put(Hex.encode(pubkey), entry);
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " push accounts");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read vault, starting empty", e);
+            entries.clear();
+        }
+    }
+
+    private boolean save() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                byte[] value = entry.getValue();
+                int ivLength = value[0] & 0xff;
+                out.write(Hex.decode(entry.getKey()));
+                out.writeByte(ivLength);
+                out.write(value, 1, ivLength);
+                out.writeShort(value.length - 1 - ivLength);
+                out.write(value, 1 + ivLength, value.length - 1 - ivLength);
+            }
+            out.flush();
+            KeystoreHelper.writeAtomically(file, bytes.toByteArray());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write vault", e);
+            return false;
+        }
+    }
+}
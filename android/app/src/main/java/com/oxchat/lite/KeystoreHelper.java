@@ -10,8 +10,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -21,20 +24,63 @@ import javax.crypto.spec.GCMParameterSpec;
 /**
  * Helper class for storing/retrieving private key using Android Keystore
  * Private key is encrypted and stored in app's private file directory, not in SharedPreferences
+ *
+ * File format (version 1), the header is authenticated as GCM associated data:
+ * [4 bytes magic "OXPK"][1 byte version][1 byte IV length][IV][ciphertext + 16 byte GCM tag]
+ * Files are written to a temp file, fsynced and renamed over the old one, so a crash never leaves a half-written key;
+ * the directory is fsynced after the rename so the new name survives a power loss too
+ * Files from before the binary format (Base64 of IV + ciphertext) are still read and rewritten on the next store
  */
 public class KeystoreHelper {
     private static final String TAG = "KeystoreHelper";
     private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
     private static final String KEY_ALIAS = "push_service_privkey_key";
-    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 128;
+    static final int GCM_TAG_LENGTH = 128;
     private static final String PRIVKEY_FILE_NAME = "encrypted_privkey.dat";
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final byte[] MAGIC = {'O', 'X', 'P', 'K'};
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
 
     /**
-     * Get or create the secret key for encryption
+     * Where the encryption key comes from, the AndroidKeyStore unless a test without one sets a software key
      */
-    private static SecretKey getOrCreateSecretKey() throws Exception {
+    interface SecretKeySource {
+        SecretKey get() throws Exception;
+    }
+
+    private static final SecretKeySource ANDROID_KEYSTORE = new SecretKeySource() {
+        @Override
+        public SecretKey get() throws Exception {
+            return loadOrCreateKeystoreKey();
+        }
+    };
+
+    private static SecretKeySource secretKeySource = ANDROID_KEYSTORE;
+    // Resolved once per process, every Keystore lookup is a binder call to keystore2
+    private static SecretKey cachedSecretKey;
+
+    /**
+     * Replace the key source and drop the cached key, null goes back to the AndroidKeyStore
+     */
+    static synchronized void setSecretKeySource(SecretKeySource source) {
+        secretKeySource = source != null ? source : ANDROID_KEYSTORE;
+        cachedSecretKey = null;
+    }
+
+    /**
+     * Get or create the secret key for encryption, also used by KeyVault
+     */
+    static synchronized SecretKey getOrCreateSecretKey() throws Exception {
+        if (cachedSecretKey == null) {
+            cachedSecretKey = secretKeySource.get();
+        }
+        return cachedSecretKey;
+    }
+
+    private static SecretKey loadOrCreateKeystoreKey() throws Exception {
         KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
         keyStore.load(null);
 
@@ -55,7 +101,6 @@ public class KeystoreHelper {
             keyGenerator.init(keyGenParameterSpec);
             secretKey = keyGenerator.generateKey();
         }
-
         return secretKey;
     }
 
@@ -71,86 +116,156 @@ public class KeystoreHelper {
      * Not stored in SharedPreferences for better security
      */
     public static boolean storePrivateKey(Context context, String plaintext) {
+        return storePrivateKey(getPrivkeyFile(context), plaintext);
+    }
+
+    static boolean storePrivateKey(File privkeyFile, String plaintext) {
         if (plaintext == null || plaintext.isEmpty()) {
             return false;
         }
 
+        long startNanos = System.nanoTime();
         try {
             SecretKey secretKey = getOrCreateSecretKey();
             Cipher cipher = Cipher.getInstance(TRANSFORMATION);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            byte[] iv = cipher.getIV();
 
-            // Encrypt the data
+            // Header is bound to the ciphertext, a flipped version or IV length fails decryption
+            byte[] header = header(iv.length);
+            cipher.updateAAD(header);
             byte[] encryptedBytes = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
-            byte[] iv = cipher.getIV();
 
-            // Combine IV and encrypted data
-            byte[] combined = new byte[iv.length + encryptedBytes.length];
-            System.arraycopy(iv, 0, combined, 0, iv.length);
-            System.arraycopy(encryptedBytes, 0, combined, iv.length, encryptedBytes.length);
+            byte[] record = new byte[header.length + iv.length + encryptedBytes.length];
+            System.arraycopy(header, 0, record, 0, header.length);
+            System.arraycopy(iv, 0, record, header.length, iv.length);
+            System.arraycopy(encryptedBytes, 0, record, header.length + iv.length, encryptedBytes.length);
 
-            // Encode to Base64 and save to file
-            String encryptedData = Base64.encodeToString(combined, Base64.DEFAULT);
-            File privkeyFile = getPrivkeyFile(context);
             Log.d(TAG, "Storing private key to file: " + privkeyFile.getAbsolutePath());
-            try (FileOutputStream fos = new FileOutputStream(privkeyFile)) {
-                fos.write(encryptedData.getBytes(StandardCharsets.UTF_8));
-            }
+            writeAtomically(privkeyFile, record);
 
-            Log.d(TAG, "Private key encrypted and stored in private file, size: " + privkeyFile.length() + " bytes");
+            PushMetrics.get().record(PushMetrics.KEY_STORE_LATENCY_US, (System.nanoTime() - startNanos) / 1000);
+            Log.d(TAG, "Private key encrypted and stored in private file, size: " + record.length + " bytes");
             return true;
         } catch (Exception e) {
+            // The previous file, if any, is untouched: the temp file is only renamed once fully written
             Log.e(TAG, "Failed to encrypt and store private key", e);
-            // Delete file if encryption failed
-            File privkeyFile = getPrivkeyFile(context);
-            if (privkeyFile.exists()) {
-                privkeyFile.delete();
-            }
             return false;
         }
     }
 
+    /**
+     * Write to a temp file next to target, fsync it, rename it over target and fsync the directory
+     */
+    static void writeAtomically(File target, byte[] data) throws IOException {
+        File temp = new File(target.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write(data);
+            fos.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + target);
+        }
+        // The rename is only durable once the directory entry is on disk
+        File dir = target.getAbsoluteFile().getParentFile();
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The new file is in place, only a power loss right now could still bring back the old one
+            Log.w(TAG, "Failed to sync " + dir, e);
+        }
+    }
+
+    private static byte[] header(int ivLength) {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = FORMAT_VERSION;
+        header[MAGIC.length + 1] = (byte) ivLength;
+        return header;
+    }
+
+    private static boolean hasMagic(byte[] data) {
+        if (data.length < HEADER_LENGTH) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
     /**
      * Retrieve private key from app's private file directory (decrypted using Android Keystore)
+     * The hex in the file is decoded straight into bytes; the caller owns the array and must wipe it once done
      */
-    public static String getPrivateKey(Context context) {
-        File privkeyFile = getPrivkeyFile(context);
-        Log.d(TAG, "Looking for private key file at: " + privkeyFile.getAbsolutePath());
+    public static byte[] getPrivateKey(Context context) {
+        return getPrivateKey(getPrivkeyFile(context));
+    }
+
+    static byte[] getPrivateKey(File privkeyFile) {
         if (!privkeyFile.exists()) {
             Log.d(TAG, "Private key file not found at: " + privkeyFile.getAbsolutePath());
             return null;
         }
-        Log.d(TAG, "Private key file found, size: " + privkeyFile.length() + " bytes");
 
+        long startNanos = System.nanoTime();
+        byte[] decryptedBytes = null;
         try {
-            // Read encrypted data from file
-            byte[] fileData;
-            try (FileInputStream fis = new FileInputStream(privkeyFile)) {
-                fileData = new byte[(int) privkeyFile.length()];
-                fis.read(fileData);
+            byte[] fileData = readFully(privkeyFile);
+            if (hasMagic(fileData)) {
+                int version = fileData[MAGIC.length];
+                int ivLength = fileData[MAGIC.length + 1] & 0xff;
+                if (version != FORMAT_VERSION || ivLength == 0 || HEADER_LENGTH + ivLength > fileData.length) {
+                    Log.e(TAG, "Unsupported private key file, version " + version + ", IV length " + ivLength);
+                    return null;
+                }
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, getOrCreateSecretKey(),
+                        new GCMParameterSpec(GCM_TAG_LENGTH, fileData, HEADER_LENGTH, ivLength));
+                cipher.updateAAD(fileData, 0, HEADER_LENGTH);
+                int offset = HEADER_LENGTH + ivLength;
+                decryptedBytes = cipher.doFinal(fileData, offset, fileData.length - offset);
+            } else {
+                decryptedBytes = decryptLegacy(fileData);
             }
-            String encryptedData = new String(fileData, StandardCharsets.UTF_8);
-
-            // Decode from Base64
-            byte[] combined = Base64.decode(encryptedData, Base64.DEFAULT);
-
-            // Extract IV and encrypted data
-            byte[] iv = new byte[GCM_IV_LENGTH];
-            byte[] encryptedBytes = new byte[combined.length - GCM_IV_LENGTH];
-            System.arraycopy(combined, 0, iv, 0, GCM_IV_LENGTH);
-            System.arraycopy(combined, GCM_IV_LENGTH, encryptedBytes, 0, encryptedBytes.length);
 
-            // Decrypt
-            SecretKey secretKey = getOrCreateSecretKey();
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
-            byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
-
-            return new String(decryptedBytes, StandardCharsets.UTF_8);
+            byte[] privkey = Hex.decode(decryptedBytes, 0, decryptedBytes.length);
+            PushMetrics.get().record(PushMetrics.KEY_LOAD_LATENCY_US, (System.nanoTime() - startNanos) / 1000);
+            return privkey;
         } catch (Exception e) {
             Log.e(TAG, "Failed to decrypt private key", e);
             return null;
+        } finally {
+            if (decryptedBytes != null) {
+                Arrays.fill(decryptedBytes, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Base64 text of IV + ciphertext, written before the binary format
+     */
+    private static byte[] decryptLegacy(byte[] fileData) throws Exception {
+        byte[] combined = Base64.decode(new String(fileData, StandardCharsets.UTF_8), Base64.DEFAULT);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getOrCreateSecretKey(), new GCMParameterSpec(GCM_TAG_LENGTH, combined, 0, GCM_IV_LENGTH));
+        return cipher.doFinal(combined, GCM_IV_LENGTH, combined.length - GCM_IV_LENGTH);
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = fis.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += n;
+            }
+            return data;
         }
     }
 
@@ -159,12 +274,11 @@ public class KeystoreHelper {
      */
     public static void clearPrivateKey(Context context) {
         File privkeyFile = getPrivkeyFile(context);
+        new File(privkeyFile.getPath() + TEMP_SUFFIX).delete();
         if (privkeyFile.exists()) {
             // Overwrite file with zeros before deleting
             try (FileOutputStream fos = new FileOutputStream(privkeyFile)) {
-                byte[] zeros = new byte[(int) privkeyFile.length()];
-                java.util.Arrays.fill(zeros, (byte) 0);
-                fos.write(zeros);
+                fos.write(new byte[(int) privkeyFile.length()]);
             } catch (IOException e) {
                 Log.e(TAG, "Failed to overwrite file", e);
             }
@@ -178,10 +292,13 @@ public class KeystoreHelper {
      */
     public static boolean deleteKey(Context context) {
         try {
-            KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-            keyStore.load(null);
-            if (keyStore.containsAlias(KEY_ALIAS)) {
-                keyStore.deleteEntry(KEY_ALIAS);
+            synchronized (KeystoreHelper.class) {
+                cachedSecretKey = null;
+                KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+                keyStore.load(null);
+                if (keyStore.containsAlias(KEY_ALIAS)) {
+                    keyStore.deleteEntry(KEY_ALIAS);
+                }
             }
             clearPrivateKey(context);
             return true;
@@ -191,4 +308,3 @@ public class KeystoreHelper {
         return false;
     }
 }
-
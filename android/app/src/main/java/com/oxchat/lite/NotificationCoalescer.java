@@ -0,0 +1,93 @@
+package com.oxchat.lite;
+
+import android.os.Handler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Folds bursts of push EVENTs into one notification update per window
+ * The window opens on the first event, so no event waits longer than windowMs to be shown
+ */
+final class NotificationCoalescer {
+    static final long DEFAULT_WINDOW_MS = 1500;
+
+    interface Listener {
+        /**
+         * Called on the handler thread once per window
+         * @param countsByGroup event count per NIP-29 group id, "" for events without a group tag
+         */
+        void onBurst(int eventCount, Map<String, Integer> countsByGroup);
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private long windowMs;
+    private int pendingCount;
+    private LinkedHashMap<String, Integer> pendingByGroup = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationCoalescer(Handler handler, long windowMs, Listener listener) {
+        this.handler = handler;
+        this.windowMs = windowMs;
+        this.listener = listener;
+    }
+
+    synchronized void setWindowMs(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * Add one event to the current window, opening a window if none is pending
+     */
+    synchronized void add(String groupId) {
+        pendingCount++;
+        String key = groupId != null ? groupId : "";
+        Integer count = pendingByGroup.get(key);
+        pendingByGroup.put(key, count == null ? 1 : count + 1);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, windowMs);
+        }
+    }
+
+    /**
+     * Flush the pending window right away instead of waiting for it to close
+     */
+    void flushNow() {
+        handler.removeCallbacks(flushRunnable);
+        flush();
+    }
+
+    /**
+     * Drop pending events without notifying
+     */
+    synchronized void cancel() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        pendingCount = 0;
+        pendingByGroup = new LinkedHashMap<>();
+    }
+
+    private void flush() {
+        int count;
+        Map<String, Integer> byGroup;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingCount == 0) {
+                return;
+            }
+            count = pendingCount;
+            byGroup = pendingByGroup;
+            pendingCount = 0;
+            pendingByGroup = new LinkedHashMap<>();
+        }
+        listener.onBurst(count, byGroup);
+    }
+}
@@ -0,0 +1,127 @@
+package com.oxchat.lite;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Client-to-relay frames waiting for the socket, bounded in bytes
+ * Frames leave by priority (AUTH, then REQ and CLOSE), in order within a priority; a REQ replaces a queued REQ for the
+ * same subscription id, and a CLOSE drops it
+ * When the bound is hit the oldest frames of the lowest priority are evicted first
+ *
+ * Not thread-safe: confined to the push service thread
+ */
+final class OutboundQueue {
+    static final int PRIORITY_AUTH = 0;
+    static final int PRIORITY_SUBSCRIPTION = 1;
+    private static final int PRIORITIES = 2;
+    static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    static final class Frame {
+        final String text;
+        final int priority;
+        // REQ / CLOSE: the subscription the frame is about
+        final String subscriptionId;
+        final boolean isRequest;
+        // UTF-16 length, close enough to the UTF-8 size of relay frames
+        final long bytes;
+
+        Frame(String text, int priority, String subscriptionId, boolean isRequest) {
+            this.text = text;
+            this.priority = priority;
+            this.subscriptionId = subscriptionId;
+            this.isRequest = isRequest;
+            this.bytes = text.length();
+        }
+    }
+
+    private final long maxBytes;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Frame>[] queues = (ArrayDeque<Frame>[]) new ArrayDeque<?>[PRIORITIES];
+    private long bytes;
+    private int size;
+
+    OutboundQueue(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < PRIORITIES; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Queue a frame
+     * @return false if the frame doesn't fit even after evicting everything of lower priority
+     */
+    boolean offer(Frame frame) {
+        if (frame.subscriptionId != null && removeRequest(frame.subscriptionId)) {
+            // The queued REQ never reached the relay, this frame supersedes it
+            PushMetrics.get().increment(PushMetrics.OUTBOUND_COALESCED);
+        }
+        if (frame.bytes > maxBytes) {
+            PushMetrics.get().increment(PushMetrics.OUTBOUND_DROPPED);
+            return false;
+        }
+        for (int priority = PRIORITIES - 1; bytes + frame.bytes > maxBytes && priority >= frame.priority; priority--) {
+            while (bytes + frame.bytes > maxBytes && !queues[priority].isEmpty()) {
+                Frame evicted = queues[priority].pollFirst();
+                bytes -= evicted.bytes;
+                size--;
+                PushMetrics.get().increment(PushMetrics.OUTBOUND_DROPPED);
+            }
+        }
+        if (bytes + frame.bytes > maxBytes) {
+            PushMetrics.get().increment(PushMetrics.OUTBOUND_DROPPED);
+            return false;
+        }
+        queues[frame.priority].addLast(frame);
+        bytes += frame.bytes;
+        size++;
+        PushMetrics.get().record(PushMetrics.OUTBOUND_QUEUE_DEPTH, size);
+        return true;
+    }
+
+    Frame poll() {
+        for (ArrayDeque<Frame> queue : queues) {
+            Frame frame = queue.pollFirst();
+            if (frame != null) {
+                bytes -= frame.bytes;
+                size--;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop frames of one priority, e.g. AUTH responses once the socket whose challenge they answer is gone
+     */
+    void clear(int priority) {
+        for (Frame frame : queues[priority]) {
+            bytes -= frame.bytes;
+            size--;
+        }
+        queues[priority].clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    private boolean removeRequest(String subscriptionId) {
+        Iterator<Frame> iterator = queues[PRIORITY_SUBSCRIPTION].iterator();
+        while (iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if (frame.isRequest && subscriptionId.equals(frame.subscriptionId)) {
+                iterator.remove();
+                bytes -= frame.bytes;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+}
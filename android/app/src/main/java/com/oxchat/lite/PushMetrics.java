@@ -0,0 +1,197 @@
+package com.oxchat.lite;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-process counters and histograms of the push pipeline
+ * Read by the Flutter app through the preferences channel and by `adb shell dumpsys activity service PushNotificationService`
+ */
+public final class PushMetrics {
+    // Histograms
+    static final String CONNECT_LATENCY_MS = "connect_latency_ms";
+    static final String PARSE_TIME_US = "parse_time_us";
+    static final String AUTH_SIGN_LATENCY_MS = "auth_sign_latency_ms";
+    static final String AUTH_RTT_MS = "auth_rtt_ms";
+    static final String EVENT_TO_NOTIFICATION_MS = "event_to_notification_ms";
+    static final String SYNC_DURATION_MS = "sync_duration_ms";
+    static final String VERIFY_TIME_US = "verify_time_us";
+    static final String KEY_STORE_LATENCY_US = "key_store_latency_us";
+    static final String KEY_LOAD_LATENCY_US = "key_load_latency_us";
+    static final String NOTIFICATION_RENDER_US = "notification_render_us";
+    static final String BACKGROUND_SYNC_DURATION_MS = "bgsync_duration_ms";
+    static final String BACKGROUND_SYNC_CPU_MS = "bgsync_cpu_ms";
+    static final String INBOX_DRAIN_US = "inbox_drain_us";
+    static final String COUNT_RTT_MS = "count_rtt_ms";
+    // Frames waiting in a relay's outbound queue, sampled whenever one is queued
+    static final String OUTBOUND_QUEUE_DEPTH = "outbound_queue_depth";
+    // Counters, frame and reconnect counters are suffixed with the RelayFrame.Type or cause
+    static final String FRAMES_PREFIX = "frames.";
+    static final String RECONNECTS_PREFIX = "reconnects.";
+    static final String EVENTS_DUPLICATE = "events.duplicate";
+    static final String EVENTS_HISTORY = "events.history";
+    static final String EVENTS_INVALID = "events.invalid";
+    static final String EVENTS_MALFORMED = "events.malformed";
+    static final String EVENTS_VERIFY_CACHED = "events.verify_cached";
+    // Accepted without verification because secp256k1 failed to load
+    static final String EVENTS_UNVERIFIED = "events.unverified";
+    static final String OUTBOUND_DROPPED = "outbound.dropped";
+    static final String OUTBOUND_COALESCED = "outbound.coalesced";
+    static final String NOTIFICATIONS_SHOWN = "notifications.shown";
+    static final String NOTIFICATIONS_COALESCED = "notifications.coalesced";
+    static final String NOTIFICATIONS_SKIPPED_FOREGROUND = "notifications.skipped_foreground";
+    static final String SYNC_RUNS = "sync.runs";
+    static final String SYNC_TIMEOUTS = "sync.timeouts";
+    static final String AVATAR_HIT_MEMORY = "avatar.hit_memory";
+    static final String AVATAR_HIT_DISK = "avatar.hit_disk";
+    static final String AVATAR_MISS = "avatar.miss";
+    static final String BACKGROUND_SYNC_RUNS = "bgsync.runs";
+    static final String BACKGROUND_SYNC_COALESCED = "bgsync.coalesced";
+    static final String BACKGROUND_SYNC_THROTTLED = "bgsync.throttled";
+    static final String BACKGROUND_SYNC_BUDGET_EXCEEDED = "bgsync.budget_exceeded";
+    static final String INBOX_APPENDED = "inbox.appended";
+    static final String INBOX_DROPPED = "inbox.dropped";
+    static final String INBOX_COMPACTIONS = "inbox.compactions";
+    static final String COUNT_REQUESTS = "count.requests";
+    static final String COUNT_UNSUPPORTED = "count.unsupported";
+    static final String COUNT_SILENT = "count.silent";
+
+    private static final PushMetrics INSTANCE = new PushMetrics();
+
+    private final Map<String, Long> counters = new TreeMap<>();
+    private final Map<String, Histogram> histograms = new TreeMap<>();
+    private long startedAt = SystemClock.elapsedRealtime();
+
+    private PushMetrics() {
+    }
+
+    public static PushMetrics get() {
+        return INSTANCE;
+    }
+
+    synchronized void increment(String counter) {
+        increment(counter, 1);
+    }
+
+    synchronized void increment(String counter, long delta) {
+        Long value = counters.get(counter);
+        counters.put(counter, value == null ? delta : value + delta);
+    }
+
+    synchronized void record(String histogram, long value) {
+        Histogram h = histograms.get(histogram);
+        if (h == null) {
+            h = new Histogram();
+            histograms.put(histogram, h);
+        }
+        h.record(value);
+    }
+
+    public synchronized void reset() {
+        counters.clear();
+        histograms.clear();
+        startedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Snapshot in types the Flutter standard codec understands
+     * {"uptime_ms": long, "counters": {name: long}, "rates": {name: per second}, "histograms": {name: {count, sum, min, max, p50, p90, p99}}}
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long uptimeMs = SystemClock.elapsedRealtime() - startedAt;
+        Map<String, Object> result = new HashMap<>();
+        result.put("uptime_ms", uptimeMs);
+        result.put("counters", new HashMap<>(counters));
+        Map<String, Double> rates = new HashMap<>();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (entry.getKey().startsWith(FRAMES_PREFIX)) {
+                rates.put(entry.getKey(), uptimeMs > 0 ? entry.getValue() * 1000.0 / uptimeMs : 0);
+            }
+        }
+        result.put("rates", rates);
+        Map<String, Object> histogramSnapshots = new HashMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramSnapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        result.put("histograms", histogramSnapshots);
+        return result;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        long uptimeMs = SystemClock.elapsedRealtime() - startedAt;
+        writer.println("Push metrics over " + (uptimeMs / 1000) + "s");
+        writer.println("  Counters:");
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            writer.println("    " + entry.getKey() + " = " + entry.getValue());
+        }
+        writer.println("  Histograms:");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            writer.println("    " + entry.getKey() + " " + entry.getValue());
+        }
+    }
+
+    /**
+     * Fixed exponential buckets, percentiles are reported as the upper bound of their bucket
+     */
+    private static final class Histogram {
+        private static final long[] BOUNDS = {
+                1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000, 3600000
+        };
+
+        private final long[] buckets = new long[BOUNDS.length + 1];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        void record(long value) {
+            int i = 0;
+            while (i < BOUNDS.length && value > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        long percentile(double q) {
+            long target = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return i < BOUNDS.length ? Math.min(BOUNDS[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        Map<String, Long> snapshot() {
+            Map<String, Long> result = new HashMap<>();
+            result.put("count", count);
+            result.put("sum", sum);
+            result.put("min", count == 0 ? 0 : min);
+            result.put("max", count == 0 ? 0 : max);
+            result.put("p50", percentile(0.5));
+            result.put("p90", percentile(0.9));
+            result.put("p99", percentile(0.99));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "count=0";
+            }
+            return String.format(Locale.US, "count=%d, avg=%.1f, min=%d, p50=%d, p90=%d, p99=%d, max=%d",
+                    count, (double) sum / count, min, percentile(0.5), percentile(0.9), percentile(0.99), max);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.oxchat.lite;
 
-import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -9,17 +8,44 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
 import android.util.Log;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import androidx.core.app.NotificationCompat;
+import androidx.core.app.Person;
+import androidx.core.graphics.drawable.IconCompat;
 
 import com.oxchat.lite.R;
 import com.oxchat.lite.KeystoreHelper;
@@ -29,70 +55,166 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Random;
 import java.util.concurrent.TimeUnit;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.WebSocket;
-import okhttp3.WebSocketListener;
 
 import fr.acinq.secp256k1.Secp256k1;
 
 /**
  * Foreground service for push notification monitoring
- * Connects to push serverRelay via WebSocket and listens for events
+ * Connects to every push serverRelay via WebSocket in parallel and listens for events
+ * The first relay to deliver an event wins, copies from other relays are dropped
  */
-public class PushNotificationService extends Service {
+public class PushNotificationService extends Service implements RelayConnection.Listener, NotificationCoalescer.Listener {
     private static final String TAG = "PushNotificationService";
+
+    /**
+     * Sender and group of a notified EVENT, named and drawn from PushProfiles when the notification is rendered
+     */
+    private static final class PushMessage {
+        final String groupId;
+        final String sender;
+        final long timeMs;
+
+        PushMessage(String groupId, String sender, long timeMs) {
+            this.groupId = groupId;
+            this.sender = sender;
+            this.timeMs = timeMs;
+        }
+    }
+
     private static final String CHANNEL_ID = "PushNotificationServiceChannel";
     private static final String PUSH_NOTIFICATION_CHANNEL_ID = "PushNotificationChannel";
     public static final String ACTION_STOP = "com.oxchat.lite.ACTION_STOP";
+    // Bind action of PushSyncJobService, runs one batched sync in a bound (not started) service
+    static final String ACTION_SYNC = "com.oxchat.lite.ACTION_SYNC";
     
-    // Jackson ObjectMapper for JSON serialization (matching nostr-java EventJsonMapper)
-    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
-    private static final JsonNodeFactory JSON_NODE_FACTORY = JsonNodeFactory.instance;
     private static final int NOTIFICATION_ID = 1001;
     private static final int PUSH_NOTIFICATION_ID = 1002;
+    // Messages kept in the push notification, the MessagingStyle limit
+    private static final int MAX_NOTIFICATION_MESSAGES = NotificationCompat.MessagingStyle.MAXIMUM_RETAINED_MESSAGES;
     
     public static final String EXTRA_SERVER_RELAY = "server_relay";
+    public static final String EXTRA_SERVER_RELAYS = "server_relays";
     public static final String EXTRA_DEVICE_ID = "device_id";
     public static final String EXTRA_PUBKEY = "pubkey";
+    public static final String EXTRA_COALESCE_WINDOW_MS = "coalesce_window_ms";
+    public static final String EXTRA_KEEPALIVE_INTERVAL_MS = "keepalive_interval_ms";
+    public static final String EXTRA_PUSH_MODE = "push_mode";
+    // Groups to watch besides the user's own pubkey, replaces the current set; absent leaves it as it is
+    public static final String EXTRA_GROUP_IDS = "group_ids";
+    public static final String EXTRA_SYNC_INTERVAL_MS = "sync_interval_ms";
+    // Run the app's headless background sync engine when pushes arrive while the app is closed
+    public static final String EXTRA_BACKGROUND_SYNC = "background_sync";
+    // Keep a relay socket open around the clock
+    public static final String MODE_PERSISTENT = "persistent";
+    // Sync from PushSyncJobService every few minutes instead
+    public static final String MODE_BATCHED = "batched";
+    // A batched sync gives up on relays that haven't sent EOSE by then
+    private static final long SYNC_TIMEOUT_MS = 30000;
     
-    private WebSocket webSocket;
     private OkHttpClient httpClient;
-    private String serverRelay;
+    private List<String> serverRelays = new ArrayList<>();
     private String deviceId;
     private String pubkey;
-    private String subscriptionId;
-    private Handler reconnectHandler;
-    private Runnable reconnectRunnable;
-    private static final long RECONNECT_DELAY_MS = 5000; // 5 seconds
-    private String pendingAuthChallenge;
-    private String authEventId; // Track AUTH event ID to match OK response
-    private boolean regenerateSubscriptionId; // Flag to regenerate subscription ID after AUTH
-    private boolean isConnecting = false; // Track if we're currently connecting
-    private boolean isReconnecting = false; // Track if we're reconnecting (to avoid duplicate reconnects)
+    // One connection per relay, all carrying the same REQ; keyed by relay URL
+    private final Map<String, RelayConnection> relays = new LinkedHashMap<>();
+    // Event ids seen on any relay, so only the first relay to deliver an EVENT wakes the app
+    private static final int EVENT_DEDUP_CAPACITY = 1024;
+    private final EventDeduplicator eventDeduplicator = new EventDeduplicator(EVENT_DEDUP_CAPACITY);
+    // Checks id and signature of every EVENT before it counts, null if secp256k1 failed to load
+    private EventVerifier eventVerifier;
+    // Why secp256k1 didn't load, reported in connectionState(); events then go unverified and AUTH is impossible
+    private String secp256k1Error;
+    // Primary pubkey the app last stored keys for, the other accounts in the vault came with it
+    private String keysStoredFor;
+    // EVENTs handed to the verifier whose result hasn't come back yet
+    private int pendingVerifications;
+    // Relays, timers, network callbacks and notification updates all run on this one thread
+    // Socket callbacks hand off to it, so service state is never touched from two threads and the main thread stays free
+    private HandlerThread serviceThread;
+    private Handler serviceHandler;
+    private HandlerScheduler relayScheduler;
+    // Requests of PushServiceClient from the UI process, handled on the service thread
+    private Messenger clientMessenger;
+    // Relays only retry while a default network exists, and reconnect right away when one appears
+    private ConnectivityManager connectivityManager;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private boolean networkAvailable = true;
+    // Bursts of EVENTs are folded into one notification update per window
+    private NotificationCoalescer notificationCoalescer;
+    private long coalesceWindowMs = NotificationCoalescer.DEFAULT_WINDOW_MS;
+    // Newest created_at seen (seconds), resubscribes ask only for events from here on
+    private long sinceCursor = 0;
+    private long persistedSinceCursor = 0;
+    // Relays compare created_at with their own clocks, so the cursor is rewound a little on every REQ
+    private static final long SINCE_OVERLAP_SECONDS = 120;
+    private String pushMode = MODE_PERSISTENT;
+    private long syncIntervalMs = PushSyncJobService.DEFAULT_INTERVAL_MS;
+    // Batched sync in progress, null if none
+    private SyncCallback syncCallback;
+    private long syncStartedAt;
+    private final Runnable syncTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Batched sync timed out waiting for EOSE");
+            finishSync(false);
+        }
+    };
+    // Groups the user belongs to, subscribed on every relay together with the user's pubkey
+    private List<String> groupIds = new ArrayList<>();
+    // Fixed relay keepalive interval, 0 to let each relay adapt it to its network path
+    private long keepaliveIntervalMs = 0;
+    private boolean backgroundSyncEnabled;
+    // Relay-side unread counts since the app's read markers (NIP-45), shown in the push notification
+    private final UnreadCounter unreadCounter = new UnreadCounter(UnreadCounter.DEFAULT_KINDS,
+            UnreadCounter.DEFAULT_TTL_MS, UnreadCounter.DEFAULT_TIMEOUT_MS);
+    private final Runnable countTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (unreadCounter.expire(relays, SystemClock.elapsedRealtime())) {
+                pumpUnreadCounts();
+            }
+        }
+    };
+    // Messages counted in the push notification currently shown, per group
+    private int unreadCount;
+    private final LinkedHashMap<String, Integer> unreadByGroup = new LinkedHashMap<>();
+    // Messages of the current coalescing window, and the latest ones shown in the push notification
+    private final ArrayDeque<PushMessage> pendingMessages = new ArrayDeque<>();
+    private final ArrayDeque<PushMessage> shownMessages = new ArrayDeque<>();
+    // created_at of the events in the current coalescing window, for the event to notification latency
+    private static final int MAX_LATENCY_SAMPLES = 256;
+    private final long[] burstCreatedAt = new long[MAX_LATENCY_SAMPLES];
+    private int burstSamples;
     private Secp256k1 secp256k1; // For Schnorr signature
-    private Handler authRetryHandler; // Handler for retrying AUTH challenge when privatekey is not available
-    private Runnable authRetryRunnable; // Runnable for retrying AUTH challenge
+    // Canonical serializer for AUTH event ids and JSON, reused on the service thread
+    private final EventSerializer eventSerializer = new EventSerializer();
+    // Decrypted keys per account pubkey, kept between AUTH challenges so reconnects don't go through the Keystore every time
+    private final Map<String, SigningSession> signingSessions = new HashMap<>();
     private boolean hasStoppedForeground = false; // Track if foreground notification has been removed
-    private boolean cleanedUp = false; // Prevent double cleanup when service is stopping
+    private volatile boolean cleanedUp = false; // Prevent double cleanup when service is stopping
+    // Started rather than only bound by PushServiceClient or PushSyncJobService
+    private volatile boolean started;
+    // Lifecycle calls of PushServiceClient run here, like the ones coming through onStartCommand
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     private static final String PREFS_NAME = "push_service";
     private static final String KEY_SERVER_RELAY = "server_relay";
+    private static final String KEY_SERVER_RELAYS = "server_relays";
     private static final String KEY_DEVICE_ID = "device_id";
     private static final String KEY_PUBKEY = "pubkey";
+    private static final String KEY_COALESCE_WINDOW_MS = "coalesce_window_ms";
+    private static final String KEY_KEEPALIVE_INTERVAL_MS = "keepalive_interval_ms";
+    private static final String KEY_SINCE_CURSOR = "since_cursor";
+    private static final String KEY_PUSH_MODE = "push_mode";
+    private static final String KEY_SYNC_INTERVAL_MS = "sync_interval_ms";
+    private static final String KEY_GROUP_IDS = "group_ids";
+    private static final String KEY_BACKGROUND_SYNC = "background_sync";
+    private static final String KEY_READ_MARKERS = "read_markers";
     // Note: private key is stored in Android Keystore, not in SharedPreferences
     
     @Override
@@ -107,20 +229,36 @@ public class PushNotificationService extends Service {
                 .writeTimeout(30, TimeUnit.SECONDS)
                 .build();
         
-        reconnectHandler = new Handler(Looper.getMainLooper());
-        authRetryHandler = new Handler(Looper.getMainLooper());
+        serviceThread = new HandlerThread("PushNotificationService");
+        serviceThread.start();
+        serviceHandler = new Handler(serviceThread.getLooper());
+        relayScheduler = new HandlerScheduler(serviceHandler);
+        clientMessenger = new Messenger(new Handler(serviceThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                handleClientMessage(msg);
+                return true;
+            }
+        }));
         
         // Initialize secp256k1 for Schnorr signature
         try {
             secp256k1 = Secp256k1.get();
             Log.d(TAG, "Secp256k1 initialized");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to initialize Secp256k1", e);
+        } catch (Exception | LinkageError e) {
+            // The native library may be missing for this ABI, which surfaces as an Error
+            secp256k1Error = e.toString();
+            Log.e(TAG, "Failed to initialize Secp256k1, EVENTs will not be verified", e);
+        }
+        if (secp256k1 != null) {
+            eventVerifier = new EventVerifier(secp256k1, EventVerifier.DEFAULT_THREADS, EventVerifier.DEFAULT_CACHE_SIZE);
         }
         
         // Load config from SharedPreferences early in onCreate
         // This ensures privatekey is available even if Service is restarted by system
         loadConfigFromPrefs();
+        notificationCoalescer = new NotificationCoalescer(serviceHandler, coalesceWindowMs, this);
+        registerNetworkCallback();
         
         // Note: Do not call startForeground() in onCreate() for Android 12+ (API 31+)
         // It will cause ForegroundServiceStartNotAllowedException when service is restarted by system in background
@@ -130,40 +268,65 @@ public class PushNotificationService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "PushNotificationService started");
+        started = true;
         
         if (intent != null) {
             // Handle explicit stop action to ensure foreground is removed within timeout
             if (ACTION_STOP.equals(intent.getAction())) {
                 Log.d(TAG, "Received ACTION_STOP, stopping service gracefully");
+                PushSyncJobService.cancel(this);
                 cleanupAndStopSelf();
                 return START_NOT_STICKY;
             }
 
-            // New start from Flutter app
-            serverRelay = intent.getStringExtra(EXTRA_SERVER_RELAY);
-            deviceId = intent.getStringExtra(EXTRA_DEVICE_ID);
-            pubkey = intent.getStringExtra(EXTRA_PUBKEY);
-            persistConfig();
+            // A stop over the binding leaves this instance alive until the client unbinds, a start may still reach it
+            reviveAfterCleanup();
+
+            // New start from Flutter app, the config is applied on the service thread
+            final PushServiceClient.Config config = PushServiceClient.Config.fromExtras(intent.getExtras());
+            final List<String> newRelays = config.relays != null ? config.relays : new ArrayList<String>();
+            final String newDeviceId = config.deviceId;
+            final String newPubkey = config.pubkey;
+            final long windowMs = config.coalesceWindowMs;
+            final long keepaliveMs = config.keepaliveIntervalMs;
+            final long newSyncIntervalMs = config.syncIntervalMs;
+            final List<String> newGroupIds = config.groupIds;
+            final boolean batched = MODE_BATCHED.equals(config.mode);
+            final Boolean newBackgroundSync = config.backgroundSync;
+            final boolean complete = !newRelays.isEmpty() && newPubkey != null && !newPubkey.isEmpty();
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    pushMode = batched ? MODE_BATCHED : MODE_PERSISTENT;
+                    if (newSyncIntervalMs > 0) {
+                        syncIntervalMs = newSyncIntervalMs;
+                    }
+                    if (newBackgroundSync != null) {
+                        backgroundSyncEnabled = newBackgroundSync;
+                    }
+                    applyConfig(newRelays, newDeviceId, newPubkey, newGroupIds, windowMs, keepaliveMs, complete && !batched);
+                    if (!batched) {
+                        PushSyncJobService.cancel(PushNotificationService.this);
+                    } else if (complete) {
+                        // The job takes over, no socket stays open
+                        disconnectFromRelay();
+                        PushSyncJobService.schedule(PushNotificationService.this, syncIntervalMs);
+                    }
+                }
+            });
+
+            if (batched) {
+                Log.d(TAG, "Batched push mode selected, handing over to PushSyncJobService");
+                stopSelf();
+                return START_NOT_STICKY;
+            }
             
-            if (serverRelay == null || serverRelay.isEmpty() || pubkey == null || pubkey.isEmpty()) {
+            if (!complete) {
                 Log.e(TAG, "Missing required config, cannot start service");
                 stopSelf();
                 return START_STICKY;
             }
             
-            // For Android, if deviceId is not provided, use pubkey as deviceId
-            if (deviceId == null || deviceId.isEmpty()) {
-                deviceId = pubkey;
-            }
-            
-            // Only connect if not already connecting
-            if (!isConnecting && webSocket == null) {
-                Log.d(TAG, "Connecting to relay: " + serverRelay + ", deviceId: " + deviceId);
-                connectToRelay();
-            } else {
-                Log.d(TAG, "WebSocket already connected or connecting, skipping connection");
-            }
-            
             // Start foreground service with exception handling for Android 12+
             try {
                 startForeground(NOTIFICATION_ID, createNotification());
@@ -171,38 +334,46 @@ public class PushNotificationService extends Service {
                 // On Android 12+ (API 31+), if service time limit exhausted or started from background
                 Log.e(TAG, "Foreground service start not allowed: " + e.getMessage(), e);
                 // Disconnect and stop service gracefully
-                disconnectFromRelay();
+                postDisconnectFromRelay();
                 stopSelf();
                 return START_NOT_STICKY; // Don't restart if we can't run as foreground
             } catch (Exception e) {
                 // Other exceptions
                 Log.e(TAG, "Failed to start foreground service: " + e.getMessage(), e);
-                disconnectFromRelay();
+                postDisconnectFromRelay();
                 stopSelf();
                 return START_NOT_STICKY;
             }
         } else {
             // Service restarted by system
-            // Config should already be loaded in onCreate(), but double-check
-            if (serverRelay == null || serverRelay.isEmpty() || pubkey == null || pubkey.isEmpty()) {
-                loadConfigFromPrefs();
-                if (serverRelay == null || serverRelay.isEmpty() || pubkey == null || pubkey.isEmpty()) {
-                    Log.e(TAG, "Missing required config after system restart, cannot start service");
-                    stopSelf();
-                    return START_STICKY;
+            // Config should already be loaded in onCreate(), but double-check on the service thread
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (serverRelays.isEmpty() || pubkey == null || pubkey.isEmpty()) {
+                        loadConfigFromPrefs();
+                        if (serverRelays.isEmpty() || pubkey == null || pubkey.isEmpty()) {
+                            Log.e(TAG, "Missing required config after system restart, cannot start service");
+                            stopSelf();
+                            return;
+                        }
+                    }
+                    if (MODE_BATCHED.equals(pushMode)) {
+                        Log.d(TAG, "Batched push mode, not keeping a socket open after system restart");
+                        stopSelf();
+                        return;
+                    }
+
+                    // For Android, if deviceId is not provided, use pubkey as deviceId
+                    if (deviceId == null || deviceId.isEmpty()) {
+                        deviceId = pubkey;
+                    }
+
+                    // Try to connect relays that are not already connecting
+                    Log.d(TAG, "Auto-connecting to relays after system restart: " + serverRelays);
+                    connectToRelays();
                 }
-            }
-            
-            // For Android, if deviceId is not provided, use pubkey as deviceId
-            if (deviceId == null || deviceId.isEmpty()) {
-                deviceId = pubkey;
-            }
-            
-            // Try to connect if not already connecting
-            if (!isConnecting && webSocket == null) {
-                Log.d(TAG, "Auto-connecting to relay after system restart: " + serverRelay);
-                connectToRelay();
-            }
+            });
             
             // Start foreground service with exception handling for Android 12+
             try {
@@ -211,13 +382,13 @@ public class PushNotificationService extends Service {
                 // On Android 12+ (API 31+), if service time limit exhausted or restarted in background
                 Log.e(TAG, "Foreground service start not allowed after system restart: " + e.getMessage(), e);
                 // Disconnect and stop service gracefully
-                disconnectFromRelay();
+                postDisconnectFromRelay();
                 stopSelf();
                 return START_NOT_STICKY; // Don't restart if we can't run as foreground
             } catch (Exception e) {
                 // Other exceptions
                 Log.e(TAG, "Failed to start foreground service after system restart: " + e.getMessage(), e);
-                disconnectFromRelay();
+                postDisconnectFromRelay();
                 stopSelf();
                 return START_NOT_STICKY;
             }
@@ -228,9 +399,338 @@ public class PushNotificationService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_SYNC.equals(intent.getAction())) {
+            return new SyncBinder();
+        }
+        if (PushServiceClient.ACTION_BIND_CLIENT.equals(intent.getAction())) {
+            return clientMessenger.getBinder();
+        }
         return null;
     }
 
+    interface SyncCallback {
+        /**
+         * Called on the service thread once the sync is over
+         * @param completed false if it timed out or could not start
+         */
+        void onSyncFinished(boolean completed);
+    }
+
+    /**
+     * Local binder PushSyncJobService uses to run one batched sync
+     */
+    final class SyncBinder extends Binder {
+        void syncOnce(final SyncCallback callback) {
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startSync(callback);
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests of PushServiceClient, replied to through msg.replyTo when the client waits for an answer
+     */
+    private void handleClientMessage(Message msg) {
+        Bundle data = msg.getData();
+        Bundle reply = null;
+        switch (msg.what) {
+            case PushServiceClient.MSG_UPDATE_CONFIG:
+                updateConfig(PushServiceClient.Config.fromExtras(data));
+                break;
+            case PushServiceClient.MSG_STOP:
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Stop requested by the app");
+                        PushSyncJobService.cancel(PushNotificationService.this);
+                        cleanupAndStopSelf();
+                    }
+                });
+                break;
+            case PushServiceClient.MSG_SET_READ_MARKERS:
+                setReadMarkers(data);
+                break;
+            case PushServiceClient.MSG_GET_STATE:
+                reply = new Bundle();
+                reply.putSerializable(PushServiceClient.KEY_VALUE, connectionState());
+                break;
+            case PushServiceClient.MSG_STORE_KEYS:
+                storeKeys(data);
+                reply = new Bundle();
+                break;
+            case PushServiceClient.MSG_GET_PENDING_AUTH:
+                reply = new Bundle();
+                for (RelayConnection relay : relays.values()) {
+                    if (relay.pendingAuthChallenge != null) {
+                        reply.putString(PushServiceClient.KEY_CHALLENGE, relay.pendingAuthChallenge);
+                        reply.putString(PushServiceClient.KEY_RELAY, relay.url);
+                        break;
+                    }
+                }
+                break;
+            case PushServiceClient.MSG_SEND_AUTH:
+                sendAppSignedAuth(data.getString(PushServiceClient.KEY_AUTH_JSON));
+                break;
+            case PushServiceClient.MSG_CLEAR_PENDING_AUTH:
+                // The relays challenge again on their next connect
+                for (RelayConnection relay : relays.values()) {
+                    cancelAuthRetry(relay);
+                    relay.pendingAuthChallenge = null;
+                }
+                break;
+            case PushServiceClient.MSG_UPDATE_PROFILE:
+                PushProfiles.get(this).update(data.getString(PushServiceClient.KEY_ID),
+                        data.getString(PushServiceClient.KEY_NAME), data.getByteArray(PushServiceClient.KEY_AVATAR));
+                break;
+            case PushServiceClient.MSG_GET_METRICS:
+                reply = new Bundle();
+                reply.putSerializable(PushServiceClient.KEY_VALUE, new HashMap<>(PushMetrics.get().snapshot()));
+                break;
+            case PushServiceClient.MSG_RESET_METRICS:
+                PushMetrics.get().reset();
+                break;
+            case PushServiceClient.MSG_GET_SYNC_STATS:
+                reply = new Bundle();
+                reply.putSerializable(PushServiceClient.KEY_VALUE, new HashMap<>(PushSyncJobService.stats(this)));
+                break;
+            case PushServiceClient.MSG_DRAIN_INBOX:
+                drainInbox(data.getLong(PushServiceClient.KEY_AFTER_OFFSET),
+                        (ParcelFileDescriptor) data.getParcelable(PushServiceClient.KEY_PIPE));
+                break;
+            default:
+                Log.w(TAG, "Unknown client request " + msg.what);
+                break;
+        }
+        if (reply != null && msg.replyTo != null) {
+            Message answer = Message.obtain(null, msg.what, msg.arg1, 0);
+            answer.setData(reply);
+            try {
+                msg.replyTo.send(answer);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Client went away before the reply to " + msg.what);
+            }
+        }
+    }
+
+    /**
+     * Routine config change of the app: relays, groups, windows, applied right here instead of through onStartCommand
+     * A null or negative field keeps the current value; relays are only connected if the service runs in the
+     * persistent mode, the mode itself only changes with a start
+     */
+    private void updateConfig(PushServiceClient.Config config) {
+        if (config.backgroundSync != null) {
+            backgroundSyncEnabled = config.backgroundSync;
+        }
+        if (config.syncIntervalMs > 0 && config.syncIntervalMs != syncIntervalMs) {
+            syncIntervalMs = config.syncIntervalMs;
+            if (MODE_BATCHED.equals(pushMode) && PushSyncJobService.isScheduled(this)) {
+                PushSyncJobService.schedule(this, syncIntervalMs);
+            }
+        }
+        List<String> newRelays = config.relays != null ? config.relays : serverRelays;
+        String newPubkey = config.pubkey != null ? config.pubkey : pubkey;
+        String newDeviceId = config.deviceId != null ? config.deviceId : deviceId;
+        boolean complete = !newRelays.isEmpty() && newPubkey != null && !newPubkey.isEmpty();
+        boolean connect = complete && started && !cleanedUp && MODE_PERSISTENT.equals(pushMode);
+        applyConfig(newRelays, newDeviceId, newPubkey, config.groupIds, config.coalesceWindowMs,
+                config.keepaliveIntervalMs, connect);
+        Log.d(TAG, "Config updated by the app, " + newRelays.size() + " relays, " + groupIds.size() + " groups");
+    }
+
+    /**
+     * Whether the service runs and where each relay connection stands, in types the Flutter standard codec understands
+     */
+    private HashMap<String, Object> connectionState() {
+        HashMap<String, Object> state = new HashMap<>();
+        state.put("running", started && !cleanedUp);
+        state.put("mode", pushMode);
+        state.put("networkAvailable", networkAvailable);
+        state.put("groups", groupIds.size());
+        if (secp256k1Error != null) {
+            state.put("secp256k1Error", secp256k1Error);
+        }
+        UnreadCounter.Totals unread = unreadCounter.totals(unreadByGroup);
+        state.put("unreadMessages", unread.messages);
+        state.put("unreadChats", unread.groups);
+        ArrayList<HashMap<String, Object>> relayStates = new ArrayList<>();
+        for (RelayConnection relay : relays.values()) {
+            HashMap<String, Object> relayState = new HashMap<>();
+            relayState.put("url", relay.url);
+            relayState.put("state", relay.getState().name());
+            relayState.put("authenticated", relay.authAccepted);
+            relayState.put("authPending", relay.pendingAuthChallenge != null);
+            relayStates.add(relayState);
+        }
+        state.put("relays", relayStates);
+        return state;
+    }
+
+    /**
+     * Read markers of the app, created_at (seconds) of the last message read per group, merged into the known ones
+     */
+    private void setReadMarkers(Bundle data) {
+        String[] groups = data.getStringArray(PushServiceClient.KEY_GROUP_IDS);
+        long[] readAt = data.getLongArray(PushServiceClient.KEY_READ_AT);
+        if (groups == null || readAt == null) return;
+        Map<String, Long> markers = new HashMap<>();
+        for (int i = 0; i < groups.length && i < readAt.length; i++) {
+            markers.put(groups[i], readAt[i]);
+        }
+        if (unreadCounter.setMarkers(markers)) {
+            getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                    .putString(KEY_READ_MARKERS, new JSONObject(unreadCounter.markers()).toString())
+                    .apply();
+        }
+    }
+
+    /**
+     * Send what COUNTs the open relays have room for, and re-render the push notification once all are answered
+     */
+    private void pumpUnreadCounts() {
+        long now = SystemClock.elapsedRealtime();
+        unreadCounter.pump(relays.values(), now);
+        serviceHandler.removeCallbacks(countTimeoutRunnable);
+        long timeoutMs = unreadCounter.nextTimeoutMs(now);
+        if (timeoutMs >= 0) {
+            serviceHandler.postDelayed(countTimeoutRunnable, timeoutMs);
+        }
+    }
+
+    /**
+     * A COUNT came back; once the round is complete the shown notification is updated quietly with the totals
+     */
+    private void onUnreadCountsChanged() {
+        pumpUnreadCounts();
+        if (!unreadCounter.isIdle()) return;
+        if (isPushNotificationShown() && !isAppProcessRunning()) {
+            showPushNotification(false);
+        }
+    }
+
+    /**
+     * Put the keys the app sent into the key vault, the only process that opens the vault is this one
+     */
+    private void storeKeys(Bundle data) {
+        KeyVault vault = KeyVault.get(this);
+        String account = data.getString(PushServiceClient.KEY_PUBKEY, "");
+        String privkey = data.getString(PushServiceClient.KEY_PRIVKEY, "");
+        if (!privkey.isEmpty()) {
+            if (vault.put(account, privkey)) {
+                Log.d(TAG, "Private key stored in key vault");
+            } else {
+                Log.e(TAG, "Failed to store private key in key vault");
+            }
+        }
+        // An account list replaces the other accounts, keys of accounts signed out of go; without one the vault keeps
+        // what it has, the app's start call doesn't know about other accounts
+        List<String> accountPubkeys = data.getStringArrayList(PushServiceClient.KEY_ACCOUNT_PUBKEYS);
+        List<String> accountPrivkeys = data.getStringArrayList(PushServiceClient.KEY_ACCOUNT_PRIVKEYS);
+        if (accountPubkeys != null && accountPrivkeys != null) {
+            List<String> keep = new ArrayList<>();
+            keep.add(account);
+            for (int i = 0; i < accountPubkeys.size() && i < accountPrivkeys.size(); i++) {
+                if (vault.put(accountPubkeys.get(i), accountPrivkeys.get(i))) {
+                    keep.add(accountPubkeys.get(i));
+                } else {
+                    Log.e(TAG, "Failed to store key of account " + accountPubkeys.get(i));
+                }
+            }
+            vault.retain(keep);
+        }
+        keysStoredFor = account;
+        // A replaced key must not keep signing from its old session
+        wipeSigningSessions();
+        // Relays that challenged before the keys arrived get their AUTH now instead of at the next retry
+        for (RelayConnection relay : relays.values()) {
+            if (relay.pendingAuthChallenge != null) {
+                handleAuthChallenge(relay, relay.pendingAuthChallenge);
+            }
+        }
+    }
+
+    /**
+     * Send an AUTH message the app signed itself, to the relay of its relay tag or else to every relay that has a
+     * challenge pending
+     */
+    private void sendAppSignedAuth(String authJson) {
+        if (authJson == null || authJson.isEmpty()) return;
+        String eventId;
+        String relayUrl = null;
+        try {
+            JSONObject event = new JSONArray(authJson).getJSONObject(1);
+            eventId = event.getString("id");
+            JSONArray tags = event.optJSONArray("tags");
+            for (int i = 0; tags != null && i < tags.length(); i++) {
+                JSONArray tag = tags.optJSONArray(i);
+                if (tag != null && tag.length() > 1 && "relay".equals(tag.optString(0))) {
+                    relayUrl = tag.optString(1);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Malformed AUTH message from the app", e);
+            return;
+        }
+        for (RelayConnection relay : relays.values()) {
+            boolean target = relayUrl != null ? relay.url.equals(relayUrl) : relay.pendingAuthChallenge != null;
+            if (!target) continue;
+            cancelAuthRetry(relay);
+            relay.pendingAuthChallenge = null;
+            relay.authEventIds.add(eventId);
+            relay.authSentAt = SystemClock.elapsedRealtime();
+            sendAuthResponse(relay, authJson);
+        }
+    }
+
+    /**
+     * Write EventInbox.drain() into the pipe of the client, see PushServiceClient.readBatch()
+     */
+    private void drainInbox(final long afterOffset, final ParcelFileDescriptor pipe) {
+        if (pipe == null) return;
+        // Writing blocks until the UI reads, so it can't happen on the service thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EventInbox inbox = EventInbox.get(PushNotificationService.this);
+                EventInbox.Batch batch = inbox.drain(afterOffset);
+                try (OutputStream out = new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(pipe))) {
+                    PushServiceClient.writeBatch(out, batch);
+                } catch (IOException e) {
+                    // Nothing is acknowledged, the events stay for the next drain
+                    Log.w(TAG, "UI stopped reading the drained inbox", e);
+                    return;
+                }
+                inbox.acknowledge(batch);
+            }
+        }, "PushInboxDrain").start();
+    }
+
+    /**
+     * Push metrics for `adb shell dumpsys activity service com.oxchat.lite.PushNotificationService`
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        PushMetrics.get().dump(writer);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Under memory pressure drop the decrypted key and the avatars in memory, the next AUTH decrypts it again
+        if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+            Log.d(TAG, "Trim memory level " + level + ", wiping signing sessions");
+            serviceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    wipeSigningSessions();
+                }
+            });
+            PushProfiles.get(this).trimMemory();
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "PushNotificationService destroying");
@@ -241,6 +741,11 @@ public class PushNotificationService extends Service {
 
         // Perform cleanup operations (these may be slow, but stopForeground was already called)
         performCleanup(false);
+        // Runs the teardown posted by performCleanup, then ends the service thread
+        serviceThread.quitSafely();
+        if (eventVerifier != null) {
+            eventVerifier.shutdown();
+        }
 
         super.onDestroy();
         Log.d(TAG, "PushNotificationService destroyed");
@@ -308,182 +813,407 @@ public class PushNotificationService extends Service {
     }
 
     /**
-     * Connect to WebSocket relay
+     * Apply and persist a config received from the Flutter app, runs on the service thread
+     * Relays are only connected when the config is complete
+     * @param newGroupIds groups to watch, null to keep the current ones
      */
-    private void connectToRelay() {
-        // Avoid duplicate connections
-        if (isConnecting) {
-            Log.d(TAG, "Already connecting, skipping duplicate connection attempt");
-            return;
+    private void applyConfig(List<String> newRelays, String newDeviceId, String newPubkey, List<String> newGroupIds,
+                             long windowMs, long keepaliveMs, boolean connect) {
+        if (pubkey != null && !pubkey.equals(newPubkey)) {
+            // Another account, the cursor, groups and counts of the previous one don't apply
+            sinceCursor = 0;
+            persistedSinceCursor = 0;
+            groupIds = new ArrayList<>();
+            unreadCounter.clear();
+            if (newPubkey == null || !newPubkey.equalsIgnoreCase(keysStoredFor)) {
+                // The accounts in the vault were stored along with the previous pubkey, not this one
+                KeyVault.get(this).retain(newPubkey != null ? Collections.singletonList(newPubkey)
+                        : Collections.<String>emptyList());
+                wipeSigningSessions();
+            }
         }
-        
-        // If WebSocket is already connected and healthy, don't reconnect
-        if (webSocket != null) {
-            Log.d(TAG, "WebSocket already exists, closing existing connection first");
-            isReconnecting = true; // Mark as reconnecting to avoid duplicate reconnect calls
-            webSocket.close(1000, "Reconnecting");
-            webSocket = null;
+        if (newGroupIds != null) {
+            groupIds = new ArrayList<>(new LinkedHashSet<>(newGroupIds));
         }
-        
-        isConnecting = true;
-        
-        try {
-            Request request = new Request.Builder()
-                    .url(serverRelay)
-                    .build();
-            
-            webSocket = httpClient.newWebSocket(request, new WebSocketListener() {
-                @Override
-                public void onOpen(WebSocket webSocket, Response response) {
-                    Log.d(TAG, "WebSocket connected to: " + serverRelay);
-                    isConnecting = false;
-                    isReconnecting = false;
-                    sendSubscriptionRequest();
-                }
+        serverRelays = newRelays;
+        deviceId = newDeviceId;
+        pubkey = newPubkey;
+        if (windowMs >= 0) {
+            coalesceWindowMs = windowMs;
+            notificationCoalescer.setWindowMs(windowMs);
+        }
+        if (keepaliveMs >= 0 && keepaliveMs != keepaliveIntervalMs) {
+            keepaliveIntervalMs = keepaliveMs;
+            for (RelayConnection relay : relays.values()) {
+                relay.setKeepaliveInterval(keepaliveMs);
+            }
+        }
+        persistConfig();
+        updateSubscriptions();
+        if (!connect) return;
 
-                @Override
-                public void onMessage(WebSocket webSocket, String text) {
-                    Log.d(TAG, "Received message: " + text);
-                    handleMessage(text);
-                }
+        // For Android, if deviceId is not provided, use pubkey as deviceId
+        if (deviceId == null || deviceId.isEmpty()) {
+            deviceId = pubkey;
+        }
 
-                @Override
-                public void onMessage(WebSocket webSocket, okio.ByteString bytes) {
-                    Log.d(TAG, "Received bytes message");
-                    handleMessage(bytes.utf8());
-                }
+        // Only idle relays are connected, open or connecting relays are kept as they are
+        Log.d(TAG, "Connecting to relays: " + serverRelays + ", deviceId: " + deviceId);
+        connectToRelays();
+    }
 
-                @Override
-                public void onClosing(WebSocket webSocket, int code, String reason) {
-                    Log.d(TAG, "WebSocket closing: " + code + " " + reason);
-                    webSocket.close(1000, null);
+    /**
+     * Bring the relay connections in line with serverRelays
+     * New relays are connected, removed relays are closed, existing connections are left alone
+     */
+    private void connectToRelays() {
+        Iterator<Map.Entry<String, RelayConnection>> iterator = relays.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, RelayConnection> entry = iterator.next();
+            if (!serverRelays.contains(entry.getKey())) {
+                Log.d(TAG, "Relay removed from push config: " + entry.getKey());
+                cancelAuthRetry(entry.getValue());
+                entry.getValue().disconnect();
+                iterator.remove();
+            }
+        }
+
+        for (String url : serverRelays) {
+            RelayConnection relay = relays.get(url);
+            if (relay == null) {
+                relay = new RelayConnection(url, httpClient, relayScheduler, relayScheduler, keepaliveIntervalMs, this);
+                if (!networkAvailable) {
+                    relay.onNetworkLost();
                 }
+                relay.subscriptions.update(watchedGroups());
+                relays.put(url, relay);
+            }
+            relay.connectIfIdle();
+        }
+    }
 
-                @Override
-                public void onClosed(WebSocket webSocket, int code, String reason) {
-                    Log.d(TAG, "WebSocket closed: " + code + " " + reason);
-                    isConnecting = false;
-                    // Only schedule reconnect if we're not already reconnecting (to avoid duplicate reconnects)
-                    if (!isReconnecting) {
-                        scheduleReconnect();
-                    } else {
-                        isReconnecting = false;
-                    }
+    /**
+     * Track the default network so relays stay quiet while offline and reconnect as soon as a network appears
+     */
+    private void registerNetworkCallback() {
+        connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) return;
+        networkAvailable = connectivityManager.getActiveNetwork() != null;
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                Log.d(TAG, "Network available, reconnecting idle relays");
+                networkAvailable = true;
+                for (RelayConnection relay : relays.values()) {
+                    relay.onNetworkAvailable();
                 }
+            }
 
-                @Override
-                public void onFailure(WebSocket webSocket, Throwable t, Response response) {
-                    Log.e(TAG, "WebSocket failure", t);
-                    isConnecting = false;
-                    isReconnecting = false;
-                    scheduleReconnect();
+            @Override
+            public void onLost(Network network) {
+                Log.d(TAG, "Network lost, pausing relay reconnects");
+                networkAvailable = false;
+                for (RelayConnection relay : relays.values()) {
+                    relay.onNetworkLost();
                 }
-            });
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to connect to WebSocket", e);
-            isConnecting = false;
-            isReconnecting = false;
-            scheduleReconnect();
+            }
+        };
+        try {
+            // Callbacks are delivered on the service thread, next to the reconnect timers
+            connectivityManager.registerDefaultNetworkCallback(networkCallback, serviceHandler);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to register network callback", e);
+            networkCallback = null;
+            networkAvailable = true;
+        }
+    }
+
+    private void unregisterNetworkCallback() {
+        if (connectivityManager != null && networkCallback != null) {
+            try {
+                connectivityManager.unregisterNetworkCallback(networkCallback);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Network callback was not registered", e);
+            }
+            networkCallback = null;
         }
     }
 
+    @Override
+    public void onRelayOpen(RelayConnection relay) {
+        // A new socket has no subscriptions yet
+        relay.subscriptions.reset(false);
+        sendSubscriptionRequests(relay);
+        pumpUnreadCounts();
+    }
+
+    @Override
+    public void onRelayFrame(RelayConnection relay, RelayFrame frame) {
+        handleFrame(relay, frame);
+    }
+
+    /**
+     * Pubkeys the service pushes for: the configured pubkey first, then every other account in the KeyVault
+     */
+    private List<String> accountPubkeys() {
+        List<String> accounts = new ArrayList<>();
+        if (pubkey != null && !pubkey.isEmpty()) {
+            accounts.add(pubkey.toLowerCase());
+        }
+        for (String account : KeyVault.get(this).pubkeys()) {
+            if (!accounts.contains(account)) {
+                accounts.add(account);
+            }
+        }
+        return accounts;
+    }
+
     /**
-     * Send subscription request to relay
-     * Format: ["REQ", subscriptionId, {"kinds": [20284], "#h": [pubkey], "since": now}]
-     * subscriptionId is a random number
+     * Groups every relay is subscribed to: the pubkey of every account and the groups pushed by the Flutter app
      */
-    private void sendSubscriptionRequest() {
+    private Set<String> watchedGroups() {
+        Set<String> groups = new LinkedHashSet<>(accountPubkeys());
+        groups.addAll(groupIds);
+        return groups;
+    }
+
+    /**
+     * Bring the subscriptions of every relay in line with the watched groups
+     * Only shards whose groups changed are closed or re-sent, the others keep streaming
+     */
+    private void updateSubscriptions() {
+        Set<String> groups = watchedGroups();
+        for (RelayConnection relay : relays.values()) {
+            List<String> closed = relay.subscriptions.update(groups);
+            if (relay.subscriptions.overflow() > 0) {
+                Log.w(TAG, relay.subscriptions.overflow() + " groups don't fit into the subscriptions of " + relay.url);
+            }
+            if (!relay.isOpen()) {
+                // Everything is sent once the socket opens
+                continue;
+            }
+            for (String subscriptionId : closed) {
+                Log.d(TAG, "Closing subscription " + subscriptionId + " on " + relay.url);
+                relay.sendClose(subscriptionId);
+            }
+            sendSubscriptionRequests(relay);
+        }
+    }
+
+    /**
+     * Send the REQ of every pending subscription shard of a relay
+     * Format: ["REQ", subscriptionId, {"kinds": [20285, 20284], "#h": [groupIds], "since": cursor - overlap}]
+     */
+    private void sendSubscriptionRequests(RelayConnection relay) {
         if (pubkey == null) {
             Log.e(TAG, "Cannot send subscription: missing pubkey");
             return;
         }
-        
-        try {
-            // Generate random subscription ID
-            if (subscriptionId == null || regenerateSubscriptionId) {
-                subscriptionId = generateRandomHex(16);
-                regenerateSubscriptionId = false;
-            }
-            
-            // Build Request: ["REQ", subscriptionId, {"kinds": [20285, 20284], "#h": [pubkey]}]
-            JSONArray requestArray = new JSONArray();
-            requestArray.put("REQ");
-            requestArray.put(subscriptionId);
-            
-            JSONObject filter = new JSONObject();
-            // NIP-29 group events
-            JSONArray kindsArray = new JSONArray();
-            kindsArray.put(20285);
-            kindsArray.put(20284);
-            filter.put("kinds", kindsArray);
-            
-            // h tag contains any of the groupIds (pubkey)
-            JSONArray hArray = new JSONArray();
-            hArray.put(pubkey);
-            filter.put("#h", hArray);
-            
-            requestArray.put(filter);
-            
-            String requestMessage = requestArray.toString();
-            Log.d(TAG, "Sending subscription request: " + requestMessage);
-            
-            if (webSocket != null) {
-                webSocket.send(requestMessage);
+
+        boolean sent = false;
+        for (SubscriptionSet.Shard shard : relay.subscriptions.pending()) {
+            try {
+                JSONArray requestArray = new JSONArray();
+                requestArray.put("REQ");
+                requestArray.put(shard.id);
+
+                JSONObject filter = new JSONObject();
+                // NIP-29 group events
+                JSONArray kindsArray = new JSONArray();
+                kindsArray.put(20285);
+                kindsArray.put(20284);
+                filter.put("kinds", kindsArray);
+
+                // h tag contains any of the groupIds of this shard
+                filter.put("#h", new JSONArray(shard.groups));
+
+                // Resume from the newest event already seen instead of replaying everything the relay stored
+                if (sinceCursor > 0) {
+                    filter.put("since", sinceCursor - SINCE_OVERLAP_SECONDS);
+                }
+
+                requestArray.put(filter);
+
+                String requestMessage = requestArray.toString();
+                Log.d(TAG, "Sending subscription request to " + relay.url + ": " + requestMessage);
+                if (!relay.sendRequest(shard.id, requestMessage)) {
+                    break;
+                }
+                // Stored events come first, until EOSE for this subscription
+                relay.subscriptions.onRequestSent(shard, sinceCursor);
+                sent = true;
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to create subscription request", e);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to create subscription request", e);
+        }
+        if (sent) {
+            relay.onSubscribed();
         }
     }
 
     /**
-     * Handle incoming WebSocket messages
+     * Act on an EVENT whose id and signature were checked
+     * @param stored whether it arrived before EOSE as a stored event
      */
-    private void handleMessage(String message) {
-        try {
-            JSONArray jsonArray = new JSONArray(message);
-            String messageType = jsonArray.getString(0);
-            
-            if ("EVENT".equals(messageType)) {
-                // Received an event, only wake app if process is not running
-                Log.d(TAG, "Received EVENT");
-                if (!isAppProcessRunning()) {
-                    Log.d(TAG, "App process not running, activating");
-                    activateApp();
-                } else {
-                    Log.d(TAG, "App process already running, skipping activation");
+    private void onEventVerified(RelayConnection relay, RelayFrame frame, boolean valid, boolean stored) {
+        if (relays.get(relay.url) != relay) {
+            // Relay was dropped while the event was being verified
+            return;
+        }
+        if (!valid) {
+            PushMetrics.get().increment(PushMetrics.EVENTS_INVALID);
+            Log.w(TAG, "Dropping invalid EVENT " + frame.eventId + " from " + relay.url);
+            return;
+        }
+        // The same event arrives from every relay, only the first delivery counts
+        long now = SystemClock.elapsedRealtime();
+        long firstSeenAt = eventDeduplicator.markSeen(frame.eventId, now);
+        if (firstSeenAt >= 0) {
+            PushMetrics.get().increment(PushMetrics.EVENTS_DUPLICATE);
+            Log.d(TAG, "Duplicate EVENT " + frame.eventId + " from " + relay.url + ", " + (now - firstSeenAt) + "ms behind");
+            return;
+        }
+        advanceSinceCursor(frame.createdAt);
+        // Kept for the app, which drains the inbox on open instead of asking the relays again
+        EventInbox.get(this).append(eventSerializer.serializeEventUtf8(frame.eventId, frame.pubkey, frame.createdAt,
+                frame.kind, frame.tags, frame.content, frame.sig));
+        // Stored events are history, except ones newer than anything seen before this subscription
+        if (stored) {
+            PushMetrics.get().increment(PushMetrics.EVENTS_HISTORY);
+            Log.d(TAG, "Stored EVENT from " + relay.url + " before EOSE, not notifying: id=" + frame.eventId + ", created_at=" + frame.createdAt);
+            return;
+        }
+        // Received an event, the coalescer decides once per window whether to wake the app
+        Log.d(TAG, "Received EVENT from " + relay.url + ": id=" + frame.eventId + ", kind=" + frame.kind + ", created_at=" + frame.createdAt);
+        if (frame.createdAt > 0 && burstSamples < MAX_LATENCY_SAMPLES) {
+            burstCreatedAt[burstSamples++] = frame.createdAt;
+        }
+        if (pendingMessages.size() == MAX_NOTIFICATION_MESSAGES) {
+            pendingMessages.pollFirst();
+        }
+        pendingMessages.addLast(new PushMessage(frame.groupId, frame.pubkey,
+                frame.createdAt > 0 ? frame.createdAt * 1000 : System.currentTimeMillis()));
+        notificationCoalescer.add(frame.groupId);
+    }
+
+    /**
+     * Dispatch a decoded relay frame
+     */
+    private void handleFrame(final RelayConnection relay, RelayFrame frame) {
+        switch (frame.type) {
+            case EVENT:
+                SubscriptionSet.Shard shard = relay.subscriptions.find(frame.subscriptionId);
+                if (shard == null) {
+                    // Subscription was closed or replaced, the relay hadn't caught up yet; the parser skipped the body
+                    Log.d(TAG, "EVENT for unknown subscription " + frame.subscriptionId + " from " + relay.url);
+                    break;
+                }
+                if (!EventVerifier.isWellFormed(frame)) {
+                    // Missing fields would only fail later, in the serializer on this thread
+                    PushMetrics.get().increment(PushMetrics.EVENTS_MALFORMED);
+                    Log.w(TAG, "Dropping malformed EVENT " + frame.eventId + " from " + relay.url);
+                    break;
+                }
+                // Whether this is a stored event is decided now, EOSE may be handled before verification is done
+                final boolean stored = !shard.eoseReceived && (shard.subscribedSince <= 0 || frame.createdAt <= shard.subscribedSince);
+                if (eventVerifier == null) {
+                    // Without secp256k1 nothing could be verified, notifying unverified beats never notifying
+                    PushMetrics.get().increment(PushMetrics.EVENTS_UNVERIFIED);
+                    onEventVerified(relay, frame, true, stored);
+                    break;
+                }
+                pendingVerifications++;
+                eventVerifier.verify(frame, new EventVerifier.Callback() {
+                    @Override
+                    public void onVerified(final RelayFrame verified, final boolean valid) {
+                        serviceHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                pendingVerifications--;
+                                onEventVerified(relay, verified, valid, stored);
+                                if (syncCallback != null) {
+                                    maybeFinishSync();
+                                }
+                            }
+                        });
+                    }
+                });
+                break;
+            case EOSE:
+                // End of stored events, everything after this is live
+                Log.d(TAG, "End of stored events from " + relay.url + " for " + frame.subscriptionId);
+                SubscriptionSet.Shard eoseShard = relay.subscriptions.find(frame.subscriptionId);
+                if (eoseShard != null) {
+                    eoseShard.eoseReceived = true;
                 }
-            } else if ("EOSE".equals(messageType)) {
-                // End of stored events
-                Log.d(TAG, "End of stored events");
-            } else if ("NOTICE".equals(messageType)) {
-                String notice = jsonArray.getString(1);
-                Log.d(TAG, "Relay notice: " + notice);
-            } else if ("CLOSED".equals(messageType)) {
-                Log.d(TAG, "Subscription closed");
-            } else if ("AUTH".equals(messageType)) {
+                persistSinceCursor();
+                if (syncCallback != null) {
+                    maybeFinishSync();
+                }
+                break;
+            case NOTICE:
+                Log.d(TAG, "Relay notice from " + relay.url + ": " + frame.message);
+                break;
+            case COUNT:
+                if (unreadCounter.onCount(frame.subscriptionId, frame.count, SystemClock.elapsedRealtime())) {
+                    Log.d(TAG, "Count from " + relay.url + ": " + frame.count + (frame.approximate ? " (approximate)" : ""));
+                    onUnreadCountsChanged();
+                }
+                break;
+            case CLOSED:
+                Log.d(TAG, "Subscription " + frame.subscriptionId + " closed by " + relay.url + ": " + frame.message);
+                if (unreadCounter.onClosed(frame.subscriptionId, frame.message)) {
+                    // Another relay may count, or this one once AUTH went through
+                    onUnreadCountsChanged();
+                    break;
+                }
+                SubscriptionSet.Shard closedShard = relay.subscriptions.find(frame.subscriptionId);
+                if (closedShard != null) {
+                    // Sent again after AUTH or the next reconnect
+                    relay.subscriptions.onClosedByRelay(closedShard);
+                    if (syncCallback != null) {
+                        maybeFinishSync();
+                    }
+                }
+                break;
+            case AUTH:
                 // Handle AUTH challenge
-                String challenge = jsonArray.getString(1);
-                Log.d(TAG, "Received AUTH challenge: " + challenge);
-                handleAuthChallenge(challenge);
-            } else if ("OK".equals(messageType)) {
+                if (frame.message == null) {
+                    Log.e(TAG, "Received AUTH frame without challenge");
+                    break;
+                }
+                Log.d(TAG, "Received AUTH challenge from " + relay.url + ": " + frame.message);
+                relay.onAuthChallenge();
+                handleAuthChallenge(relay, frame.message);
+                break;
+            case OK:
                 // Handle OK response, check if it's AUTH response
-                if (jsonArray.length() >= 3) {
-                    String eventId = jsonArray.getString(1);
-                    boolean status = jsonArray.getBoolean(2);
-                    String okMessage = jsonArray.length() > 3 ? jsonArray.getString(3) : "";
-                    Log.d(TAG, "Received OK: eventId=" + eventId + ", status=" + status + ", message=" + okMessage);
-                    // If this is AUTH OK response and successful, resend subscription request
-                    if (status && authEventId != null && authEventId.equals(eventId)) {
-                        Log.d(TAG, "AUTH successful, resending subscription request");
-                        authEventId = null;
-                        pendingAuthChallenge = null;
-                        regenerateSubscriptionId = true;
-                        sendSubscriptionRequest();
+                String okMessage = frame.message != null ? frame.message : "";
+                Log.d(TAG, "Received OK: eventId=" + frame.eventId + ", status=" + frame.accepted + ", message=" + okMessage);
+                // Once every account's AUTH got its OK, resend the subscriptions if any was accepted
+                if (frame.eventId != null && relay.authEventIds.remove(frame.eventId)) {
+                    if (frame.accepted) {
+                        relay.authAccepted = true;
+                        PushMetrics.get().record(PushMetrics.AUTH_RTT_MS, SystemClock.elapsedRealtime() - relay.authSentAt);
+                    } else {
+                        Log.w(TAG, "AUTH rejected by " + relay.url + ": " + okMessage);
+                    }
+                    if (relay.authEventIds.isEmpty() && relay.authAccepted) {
+                        Log.d(TAG, "AUTH successful on " + relay.url + ", resending subscription request");
+                        relay.pendingAuthChallenge = null;
+                        // REQs the relay took before AUTH would stay open next to the new ones and hold slots
+                        for (String subscriptionId : relay.subscriptions.reset(true)) {
+                            relay.sendClose(subscriptionId);
+                        }
+                        sendSubscriptionRequests(relay);
+                        unreadCounter.onAuthenticated(relay.url);
+                        pumpUnreadCounts();
                     }
                 }
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to parse message: " + message, e);
+                break;
+            default:
+                Log.d(TAG, "Ignoring relay message: " + frame.typeName);
+                break;
         }
     }
 
@@ -491,226 +1221,281 @@ public class PushNotificationService extends Service {
      * Handle AUTH challenge by creating and sending AUTH response
      * If privatekey is not available, retry after a delay
      */
-    private void handleAuthChallenge(String challenge) {
-        Log.d(TAG, "Handling AUTH challenge: challenge=" + challenge + ", relay=" + serverRelay);
-        
-        // Store challenge for retry
-        pendingAuthChallenge = challenge;
-        
-        // Get private key from Android Keystore (stored in private file)
-        String privkey = getPrivateKey();
-        if (privkey == null || privkey.isEmpty()) {
-            Log.w(TAG, "Private key not found in Android Keystore file, will retry after delay");
+    private void handleAuthChallenge(final RelayConnection relay, String challenge) {
+        Log.d(TAG, "Handling AUTH challenge: challenge=" + challenge + ", relay=" + relay.url);
+
+        // Store challenge for retry, latency is measured from the first time it arrived
+        if (relay.pendingAuthChallenge == null || !relay.pendingAuthChallenge.equals(challenge)) {
+            relay.authChallengeAt = SystemClock.elapsedRealtime();
+        }
+        relay.pendingAuthChallenge = challenge;
+
+        // Decrypt the keys from the KeyVault unless the sessions still hold them
+        // NIP-42 lets one connection authenticate several pubkeys, each account answers the same challenge
+        Map<String, SigningSession> sessions = new LinkedHashMap<>();
+        for (String account : accountPubkeys()) {
+            SigningSession session = unlockSigningSession(account);
+            if (session != null) {
+                sessions.put(account, session);
+            }
+        }
+        if (sessions.isEmpty()) {
+            Log.w(TAG, "No private key found in the key vault, will retry after delay");
             Log.w(TAG, "Private key may not have been stored yet. Retrying in 2 seconds...");
-            
+
             // Cancel any existing retry
-            if (authRetryRunnable != null) {
-                authRetryHandler.removeCallbacks(authRetryRunnable);
-            }
-            
+            cancelAuthRetry(relay);
+
             // Retry after 2 seconds
-            authRetryRunnable = new Runnable() {
+            relay.authRetryRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    if (pendingAuthChallenge != null) {
+                    if (relay.pendingAuthChallenge != null) {
                         Log.d(TAG, "Retrying AUTH challenge handling");
-                        handleAuthChallenge(pendingAuthChallenge);
+                        handleAuthChallenge(relay, relay.pendingAuthChallenge);
                     }
                 }
             };
-            authRetryHandler.postDelayed(authRetryRunnable, 2000);
+            serviceHandler.postDelayed(relay.authRetryRunnable, 2000);
             return;
         }
-        
+
         // Clear pending challenge and retry runnable
-        pendingAuthChallenge = null;
-        if (authRetryRunnable != null) {
-            authRetryHandler.removeCallbacks(authRetryRunnable);
-            authRetryRunnable = null;
+        relay.pendingAuthChallenge = null;
+        cancelAuthRetry(relay);
+        relay.authEventIds.clear();
+        relay.authAccepted = false;
+
+        for (Map.Entry<String, SigningSession> entry : sessions.entrySet()) {
+            try {
+                // Create AUTH event
+                String authJson = createAuthEvent(relay, challenge, entry.getKey(), entry.getValue());
+                if (authJson != null && !authJson.isEmpty()) {
+                    Log.d(TAG, "Created AUTH event for " + entry.getKey() + ", sending to relay");
+                    sendAuthResponse(relay, authJson);
+                } else {
+                    Log.e(TAG, "Failed to create AUTH event for " + entry.getKey());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error handling AUTH challenge", e);
+            }
         }
-        
-        try {
-            // Create AUTH event
-            String authJson = createAuthEvent(challenge, serverRelay, pubkey, privkey);
-            if (authJson != null && !authJson.isEmpty()) {
-                Log.d(TAG, "Created AUTH event, sending to relay");
-                sendAuthResponse(authJson);
-            } else {
-                Log.e(TAG, "Failed to create AUTH event");
+        if (!relay.authEventIds.isEmpty()) {
+            relay.authSentAt = SystemClock.elapsedRealtime();
+            long latencyMs = relay.authSentAt - relay.authChallengeAt;
+            PushMetrics.get().record(PushMetrics.AUTH_SIGN_LATENCY_MS, latencyMs);
+            Log.d(TAG, "AUTH for " + relay.authEventIds.size() + " accounts sent to " + relay.url + " " + latencyMs + "ms after challenge");
+        }
+    }
+
+    /**
+     * Handle one coalesced burst of EVENTs
+     * The foreground check and the notify() call happen once per window instead of once per EVENT
+     */
+    @Override
+    public void onBurst(int eventCount, Map<String, Integer> countsByGroup) {
+        persistSinceCursor();
+        EventInbox.get(this).sync();
+        int samples = burstSamples;
+        burstSamples = 0;
+        if (isAppProcessRunning()) {
+            Log.d(TAG, "App process already running, skipping activation for " + eventCount + " events");
+            PushMetrics.get().increment(PushMetrics.NOTIFICATIONS_SKIPPED_FOREGROUND, eventCount);
+            unreadCount = 0;
+            unreadByGroup.clear();
+            pendingMessages.clear();
+            shownMessages.clear();
+            return;
+        }
+
+        // Start counting again once the previous notification was opened or dismissed
+        if (!isPushNotificationShown()) {
+            unreadCount = 0;
+            unreadByGroup.clear();
+            shownMessages.clear();
+        }
+        while (!pendingMessages.isEmpty()) {
+            if (shownMessages.size() == MAX_NOTIFICATION_MESSAGES) {
+                shownMessages.pollFirst();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling AUTH challenge", e);
+            shownMessages.addLast(pendingMessages.pollFirst());
+        }
+        unreadCount += eventCount;
+        for (Map.Entry<String, Integer> entry : countsByGroup.entrySet()) {
+            Integer count = unreadByGroup.get(entry.getKey());
+            unreadByGroup.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+        Log.d(TAG, "App process not running, activating for " + eventCount + " events (" + unreadCount + " unread)");
+        // Notified right away with what is known, the relay counts of the burst's groups refine it when they arrive
+        unreadCounter.onNewEvents(countsByGroup.keySet());
+        showPushNotification(true);
+        unreadCounter.refresh(SystemClock.elapsedRealtime());
+        pumpUnreadCounts();
+        if (backgroundSyncEnabled) {
+            // Fetch the messages now, so the chats are up to date when the notification is opened
+            Set<String> groups = new LinkedHashSet<>(countsByGroup.keySet());
+            groups.remove("");
+            BackgroundSyncService.requestSync(this, groups);
+        }
+
+        PushMetrics metrics = PushMetrics.get();
+        metrics.increment(PushMetrics.NOTIFICATIONS_SHOWN);
+        metrics.increment(PushMetrics.NOTIFICATIONS_COALESCED, eventCount - 1);
+        long nowMs = System.currentTimeMillis();
+        for (int i = 0; i < samples; i++) {
+            metrics.record(PushMetrics.EVENT_TO_NOTIFICATION_MS, Math.max(0, nowMs - burstCreatedAt[i] * 1000));
+        }
+    }
+
+    /**
+     * Batched sync: connect, ask for everything since the cursor and finish once every relay sent EOSE
+     * Events newer than the cursor are notified through the usual coalescing path
+     */
+    private void startSync(SyncCallback callback) {
+        if (syncCallback != null) {
+            Log.w(TAG, "Batched sync already running");
+            callback.onSyncFinished(false);
+            return;
+        }
+        if (serverRelays.isEmpty() || pubkey == null || pubkey.isEmpty()) {
+            loadConfigFromPrefs();
+        }
+        if (serverRelays.isEmpty() || pubkey == null || pubkey.isEmpty() || !MODE_BATCHED.equals(pushMode)) {
+            Log.d(TAG, "Batched sync skipped, mode=" + pushMode);
+            callback.onSyncFinished(false);
+            return;
+        }
+        if (deviceId == null || deviceId.isEmpty()) {
+            deviceId = pubkey;
+        }
+        Log.d(TAG, "Batched sync started, since=" + sinceCursor + ", relays=" + serverRelays);
+        syncCallback = callback;
+        syncStartedAt = SystemClock.elapsedRealtime();
+        serviceHandler.postDelayed(syncTimeoutRunnable, SYNC_TIMEOUT_MS);
+        connectToRelays();
+    }
+
+    /**
+     * Finish the batched sync once no relay is still expected to send stored events
+     */
+    private void maybeFinishSync() {
+        if (pendingVerifications > 0) return;
+        for (RelayConnection relay : relays.values()) {
+            ConnectionStateMachine.State state = relay.getState();
+            boolean failed = state == ConnectionStateMachine.State.BACKOFF || state == ConnectionStateMachine.State.IDLE;
+            if (!relay.subscriptions.allEoseReceived() && !failed) {
+                return;
+            }
+        }
+        finishSync(true);
+    }
+
+    private void finishSync(boolean completed) {
+        if (syncCallback == null) return;
+        serviceHandler.removeCallbacks(syncTimeoutRunnable);
+        notificationCoalescer.flushNow();
+        disconnectFromRelay();
+        persistSinceCursor();
+        long durationMs = SystemClock.elapsedRealtime() - syncStartedAt;
+        PushMetrics metrics = PushMetrics.get();
+        metrics.increment(completed ? PushMetrics.SYNC_RUNS : PushMetrics.SYNC_TIMEOUTS);
+        metrics.record(PushMetrics.SYNC_DURATION_MS, durationMs);
+        Log.d(TAG, "Batched sync " + (completed ? "finished" : "timed out") + " after " + durationMs + "ms");
+        SyncCallback callback = syncCallback;
+        syncCallback = null;
+        callback.onSyncFinished(completed);
+    }
+
+    /**
+     * Move the since cursor forward, timestamps from the future are clamped to now
+     */
+    private void advanceSinceCursor(long createdAt) {
+        long now = System.currentTimeMillis() / 1000;
+        long cursor = Math.min(createdAt, now);
+        if (cursor > sinceCursor) {
+            sinceCursor = cursor;
+        }
+    }
+
+    /**
+     * Write the since cursor once per burst or EOSE rather than once per EVENT
+     */
+    private void persistSinceCursor() {
+        if (sinceCursor == persistedSinceCursor) return;
+        persistedSinceCursor = sinceCursor;
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putLong(KEY_SINCE_CURSOR, sinceCursor)
+                .apply();
+    }
+
+    private void cancelAuthRetry(RelayConnection relay) {
+        if (relay.authRetryRunnable != null) {
+            serviceHandler.removeCallbacks(relay.authRetryRunnable);
+            relay.authRetryRunnable = null;
         }
     }
 
     /**
      * Create AUTH event for NIP-42
-     * Uses Jackson ObjectMapper for JSON serialization (matching nostr-java)
+     * The id and the event JSON are written by the canonical EventSerializer, byte for byte what nostr-java produces
      * Format: ["AUTH", {"id": "...", "pubkey": "...", "created_at": ..., "kind": 22242, "tags": [["relay", "..."], ["challenge", "..."]], "content": "", "sig": "..."}]
      * Reference: nostr-java NIP42.createCanonicalAuthenticationEvent() and CanonicalAuthenticationMessage
      */
-    private String createAuthEvent(String challenge, String relay, String pubkey, String privkey) {
-        try {
-            // Get current timestamp in seconds
-            long createdAt = System.currentTimeMillis() / 1000;
-            
-            // Create tags: [["relay", relay], ["challenge", challenge]]
-            // Using JSONArray for calculateEventId compatibility, then convert to Jackson format
-            JSONArray tags = new JSONArray();
-            JSONArray relayTag = new JSONArray();
-            relayTag.put("relay");
-            relayTag.put(relay);
-            tags.put(relayTag);
-            JSONArray challengeTag = new JSONArray();
-            challengeTag.put("challenge");
-            challengeTag.put(challenge);
-            tags.put(challengeTag);
-            
-            // Calculate event ID: SHA256 of [0, pubkey, created_at, kind, tags, content]
-            // This must be done before creating the final event JSON
-            String eventId = calculateEventId(pubkey.toLowerCase(), createdAt, 22242, tags, "");
-            if (eventId == null) {
-                Log.e(TAG, "Failed to calculate event ID");
-                return null;
-            }
-            
-            // Sign the event ID with private key
-            String signature = signEventId(eventId, privkey);
-            if (signature == null || signature.isEmpty()) {
-                Log.e(TAG, "Failed to sign event ID");
-                return null;
-            }
-            
-            // Create event JSON using Jackson (matching nostr-java format)
-            ObjectNode eventNode = JSON_NODE_FACTORY.objectNode();
-            eventNode.put("id", eventId);
-            eventNode.put("pubkey", pubkey.toLowerCase());
-            eventNode.put("created_at", createdAt);
-            eventNode.put("kind", 22242);
-            
-            // Convert tags to Jackson ArrayNode format
-            ArrayNode tagsNode = JSON_NODE_FACTORY.arrayNode();
-            for (int i = 0; i < tags.length(); i++) {
-                JSONArray tagArray = tags.getJSONArray(i);
-                ArrayNode tagNode = JSON_NODE_FACTORY.arrayNode();
-                for (int j = 0; j < tagArray.length(); j++) {
-                    tagNode.add(tagArray.getString(j));
-                }
-                tagsNode.add(tagNode);
-            }
-            eventNode.set("tags", tagsNode);
-            eventNode.put("content", "");
-            eventNode.put("sig", signature);
-            
-            // Create AUTH message: ["AUTH", event]
-            // Reference: nostr-java CanonicalAuthenticationMessage.encode()
-            ArrayNode authArray = JSON_NODE_FACTORY.arrayNode();
-            authArray.add("AUTH");
-            authArray.add(eventNode);
-            
-            // Serialize to JSON string using Jackson
-            String authJson = JSON_MAPPER.writeValueAsString(authArray);
-            
-            // Store event ID for OK response matching
-            authEventId = eventId;
-            
-            Log.d(TAG, "Created AUTH event JSON: " + authJson);
-            return authJson;
-        } catch (JsonProcessingException e) {
-            Log.e(TAG, "Failed to serialize AUTH event", e);
-            return null;
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to create AUTH event", e);
+    private String createAuthEvent(RelayConnection relayConnection, String challenge, String pubkey, SigningSession session) {
+        String relay = relayConnection.url;
+        // Get current timestamp in seconds
+        long createdAt = System.currentTimeMillis() / 1000;
+        String pubkeyLower = pubkey.toLowerCase();
+
+        // Create tags: [["relay", relay], ["challenge", challenge]]
+        String[][] tags = {{"relay", relay}, {"challenge", challenge}};
+
+        // Calculate event ID: SHA256 of [0, pubkey, created_at, kind, tags, content]
+        // This must be done before creating the final event JSON
+        String eventId = calculateEventId(pubkeyLower, createdAt, 22242, tags, "");
+
+        // Sign the event ID with the account's session private key
+        String signature = signEventId(session, eventId);
+        if (signature == null || signature.isEmpty()) {
+            Log.e(TAG, "Failed to sign event ID");
             return null;
         }
+
+        // Create AUTH message: ["AUTH", event]
+        // Reference: nostr-java CanonicalAuthenticationMessage.encode()
+        String authJson = "[\"AUTH\"," + eventSerializer.serializeEvent(eventId, pubkeyLower, createdAt, 22242, tags, "", signature) + "]";
+
+        // Store event ID for OK response matching
+        relayConnection.authEventIds.add(eventId);
+
+        Log.d(TAG, "Created AUTH event JSON: " + authJson);
+        return authJson;
     }
 
     /**
      * Calculate event ID: SHA256 of [0, pubkey, created_at, kind, tags, content]
-     * Uses Jackson ObjectMapper for serialization (matching nostr-java EventSerializer)
      * Reference: nostr-java EventSerializer.serialize() and computeEventId()
      */
-    private String calculateEventId(String pubkey, long createdAt, int kind, JSONArray tags, String content) {
-        try {
-            // Ensure pubkey is lowercase (matching nostr-java and Flutter)
-            String pubkeyLower = pubkey.toLowerCase();
-            
-            // Create array node: [0, pubkey, created_at, kind, tags, content]
-            // Reference: nostr-java EventSerializer.serialize() using JsonNodeFactory
-            ArrayNode arrayNode = JSON_NODE_FACTORY.arrayNode();
-            arrayNode.add(0); // Protocol version
-            arrayNode.add(pubkeyLower);
-            arrayNode.add(createdAt);
-            arrayNode.add(kind);
-            
-            // Convert JSONArray tags to Jackson ArrayNode
-            // Tags format: [["relay","..."],["challenge","..."]]
-            ArrayNode tagsNode = JSON_NODE_FACTORY.arrayNode();
-            for (int i = 0; i < tags.length(); i++) {
-                JSONArray tagArray = tags.getJSONArray(i);
-                ArrayNode tagNode = JSON_NODE_FACTORY.arrayNode();
-                for (int j = 0; j < tagArray.length(); j++) {
-                    Object tagValue = tagArray.get(j);
-                    if (tagValue instanceof String) {
-                        tagNode.add((String) tagValue);
-                    } else if (tagValue instanceof Number) {
-                        tagNode.add(((Number) tagValue).longValue());
-                    } else {
-                        tagNode.add(tagValue.toString());
-                    }
-                }
-                tagsNode.add(tagNode);
-            }
-            arrayNode.add(tagsNode);
-            arrayNode.add(content);
-            
-            // Serialize to JSON string using Jackson (matching nostr-java)
-            // Reference: nostr-java EventSerializer: MAPPER.writeValueAsString(arrayNode)
-            String serialized = JSON_MAPPER.writeValueAsString(arrayNode);
-            
-            // Debug: Log serialized JSON to compare with nostr-java/Flutter
-            Log.d(TAG, "Event ID calculation - serialized JSON: " + serialized);
-            
-            // SHA256 hash of UTF-8 encoded string
-            // Reference: nostr-java EventSerializer.computeEventId()
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(serialized.getBytes(StandardCharsets.UTF_8));
-            
-            // Convert to hex string (lowercase)
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            
-            String eventId = hexString.toString();
-            Log.d(TAG, "Calculated event ID: " + eventId);
-            return eventId;
-        } catch (JsonProcessingException e) {
-            Log.e(TAG, "Failed to serialize event for ID calculation", e);
-            return null;
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to calculate event ID", e);
-            return null;
-        }
+    private String calculateEventId(String pubkey, long createdAt, int kind, String[][] tags, String content) {
+        // Ensure pubkey is lowercase (matching nostr-java and Flutter)
+        String eventId = Hex.encode(eventSerializer.computeId(pubkey.toLowerCase(), createdAt, kind, tags, content));
+        Log.d(TAG, "Calculated event ID: " + eventId);
+        return eventId;
     }
 
     /**
-     * Sign event ID with private key using Schnorr signature (BIP340)
+     * Sign event ID with the signing session key using Schnorr signature (BIP340)
      * Reference: nostr-java Identity.sign() and Schnorr.sign()
      * 
      * Process:
      * 1. Event ID is already a SHA256 hash (64 hex chars = 32 bytes)
      * 2. Convert event ID hex string to 32-byte array
-     * 3. Generate random 32-byte aux parameter (BIP340 requirement)
+     * 3. Generate random 32-byte aux parameter (BIP340 requirement), from the session's SecureRandom
      * 4. Sign the 32-byte event ID hash with private key and aux
      * 
      * Note: The event ID itself is already a hash, so we sign the hash bytes directly
      */
-    private String signEventId(String eventId, String privkey) {
+    private String signEventId(SigningSession session, String eventId) {
         try {
             if (secp256k1 == null) {
                 Log.e(TAG, "Secp256k1 not initialized");
@@ -725,22 +1510,9 @@ public class PushNotificationService extends Service {
                 return null;
             }
             
-            // Convert private key hex string to 32-byte array
-            byte[] privkeyBytes = hexStringToByteArray(privkey);
-            if (privkeyBytes.length != 32) {
-                Log.e(TAG, "Private key must be 32 bytes (64 hex chars), got: " + privkeyBytes.length);
-                return null;
-            }
-            
-            // Generate random 32-byte aux parameter (BIP340 requirement)
-            // Reference: nostr-java Identity.generateAuxRand() -> NostrUtil.createRandomByteArray(32)
-            SecureRandom secureRandom = new SecureRandom();
-            byte[] aux = new byte[32];
-            secureRandom.nextBytes(aux);
-            
-            // Sign the 32-byte event ID hash using Schnorr with aux parameter
-            // Reference: nostr-java Schnorr.sign(msg, secKey, auxRand)
-            byte[] signature = secp256k1.signSchnorr(eventIdBytes, privkeyBytes, aux);
+            // Sign the 32-byte event ID hash using Schnorr with a random aux parameter
+            // Reference: nostr-java Schnorr.sign(msg, secKey, auxRand), Identity.generateAuxRand()
+            byte[] signature = session.signSchnorr(eventIdBytes);
             
             if (signature == null) {
                 Log.e(TAG, "Signature is null");
@@ -765,81 +1537,72 @@ public class PushNotificationService extends Service {
 
     /**
      * Convert hex string to byte array
+     * @throws IllegalArgumentException if the string is not valid hex
      */
     private byte[] hexStringToByteArray(String hex) {
-        int len = hex.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(hex.charAt(i), 16) << 4)
-                    + Character.digit(hex.charAt(i + 1), 16));
-        }
-        return data;
+        return Hex.decode(hex);
     }
 
     /**
      * Convert byte array to hex string
      */
     private String byteArrayToHexString(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder();
-        for (byte b : bytes) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
-        }
-        return hexString.toString();
+        return Hex.encode(bytes);
     }
 
     /**
-     * Get private key from Android Keystore (decrypted from private file)
+     * Signing session of an account holding its private key, decrypting it from the KeyVault if needed
+     * @return null if the vault has no usable key for the account
      */
-    private String getPrivateKey() {
-        String privkey = KeystoreHelper.getPrivateKey(this);
-        if (privkey == null || privkey.isEmpty()) {
-            Log.e(TAG, "Private key not found in Android Keystore file");
+    private SigningSession unlockSigningSession(String account) {
+        SigningSession session = signingSessions.get(account);
+        if (session == null) {
+            session = new SigningSession(serviceHandler, secp256k1, SigningSession.DEFAULT_IDLE_TTL_MS);
+            signingSessions.put(account, session);
+        }
+        if (session.isUnlocked()) {
+            return session;
+        }
+        KeyVault vault = KeyVault.get(this);
+        // Never held as a String: decoded from the decrypted hex into this array, which the session takes over
+        byte[] privkey = vault.getPrivateKey(account);
+        if (privkey == null && account.equalsIgnoreCase(pubkey)) {
+            // Key stored by a version before the vault, move it over
+            privkey = KeystoreHelper.getPrivateKey(this);
+            if (privkey != null && vault.put(account, privkey)) {
+                KeystoreHelper.clearPrivateKey(this);
+            }
+        }
+        if (privkey == null) {
+            Log.e(TAG, "Private key of " + account + " not found in the key vault");
             Log.e(TAG, "This may happen if Service was restarted by system before Flutter app stored the private key");
             return null;
         }
-        Log.d(TAG, "Private key retrieved successfully from Android Keystore");
-        return privkey;
+        if (privkey.length != 32) {
+            Log.e(TAG, "Private key must be 32 bytes (64 hex chars), got: " + privkey.length);
+            Arrays.fill(privkey, (byte) 0);
+            return null;
+        }
+        // Wipes the array when the session idles out or is wiped
+        session.unlock(privkey);
+        Log.d(TAG, "Private key of " + account + " retrieved successfully from the key vault");
+        return session;
     }
 
-    /**
-     * Send AUTH response to relay
-     */
-    private void sendAuthResponse(String authJson) {
-        if (webSocket != null && authJson != null && !authJson.isEmpty()) {
-            Log.d(TAG, "Sending AUTH response: " + authJson);
-            webSocket.send(authJson);
+    private void wipeSigningSessions() {
+        for (SigningSession session : signingSessions.values()) {
+            session.wipe();
         }
     }
 
     /**
-     * Schedule reconnection
+     * Send AUTH response to relay
      */
-    private void scheduleReconnect() {
-        // Don't schedule reconnect if already connecting or reconnecting
-        if (isConnecting || isReconnecting) {
-            Log.d(TAG, "Already connecting/reconnecting, skipping schedule reconnect");
-            return;
-        }
-        
-        if (reconnectRunnable != null) {
-            reconnectHandler.removeCallbacks(reconnectRunnable);
+    private void sendAuthResponse(RelayConnection relay, String authJson) {
+        if (authJson != null && !authJson.isEmpty()) {
+            Log.d(TAG, "Sending AUTH response to " + relay.url + ": " + authJson);
+            relay.sendAuth(authJson);
         }
-        
-        isReconnecting = true;
-        reconnectRunnable = new Runnable() {
-            @Override
-            public void run() {
-                Log.d(TAG, "Attempting to reconnect...");
-                isReconnecting = false; // Reset flag before connecting
-                connectToRelay();
-            }
-        };
-        
-        reconnectHandler.postDelayed(reconnectRunnable, RECONNECT_DELAY_MS);
     }
 
     /**
@@ -865,29 +1628,64 @@ public class PushNotificationService extends Service {
         // Stop foreground notification as early as possible to avoid timeout crashes
         stopForegroundSafely();
 
-        // Cancel all pending operations
-        if (reconnectRunnable != null && reconnectHandler != null) {
-            reconnectHandler.removeCallbacks(reconnectRunnable);
-            reconnectRunnable = null;
-        }
-        if (authRetryRunnable != null && authRetryHandler != null) {
-            authRetryHandler.removeCallbacks(authRetryRunnable);
-            authRetryRunnable = null;
-        }
-
-        // Disconnect and reset state
-        disconnectFromRelay();
-        isConnecting = false;
-        isReconnecting = false;
+        // Cancel all pending operations, disconnect and reset state on the service thread
+        final boolean explicitStop = shouldStopSelf;
+        serviceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finishSync(false);
+                unregisterNetworkCallback();
+                disconnectFromRelay();
+                persistSinceCursor();
+                EventInbox.get(PushNotificationService.this).sync();
+                eventDeduplicator.clear();
+                if (notificationCoalescer != null) {
+                    notificationCoalescer.cancel();
+                }
+                burstSamples = 0;
+                pendingMessages.clear();
+                serviceHandler.removeCallbacks(countTimeoutRunnable);
+                unreadCounter.clear();
+                if (explicitStop) {
+                    // Otherwise a running sync finishes within its own budget, even after the service is gone
+                    BackgroundSyncService.shutdown(PushNotificationService.this);
+                }
 
-        // Clear private key from file system when service is destroyed
-        KeystoreHelper.clearPrivateKey(this);
+                // Clear private key from memory and from file system when service is destroyed
+                // Batched mode keeps the key file, the next sync answers AUTH without the Flutter app
+                wipeSigningSessions();
+                // A service only bound by PushServiceClient never ran, it leaves the keys and inbox alone
+                if (explicitStop || (started && !MODE_BATCHED.equals(pushMode))) {
+                    KeystoreHelper.clearPrivateKey(PushNotificationService.this);
+                    KeyVault.get(PushNotificationService.this).clear();
+                    EventInbox.get(PushNotificationService.this).clear();
+                }
+            }
+        });
 
         if (shouldStopSelf) {
             stopSelf();
         }
     }
 
+    /**
+     * Undo what performCleanup() turned off, so a start reaching a stopped instance runs it like a new one and the
+     * next stop cleans up again
+     * The keys, inbox and sockets were already dropped by the posted teardown, which runs before the new config
+     */
+    private void reviveAfterCleanup() {
+        if (!cleanedUp) return;
+        Log.d(TAG, "Started again before the stopped instance was destroyed");
+        cleanedUp = false;
+        hasStoppedForeground = false;
+        serviceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                registerNetworkCallback();
+            }
+        });
+    }
+
     /**
      * Remove the foreground notification with safeguards to avoid duplicate calls.
      */
@@ -908,38 +1706,38 @@ public class PushNotificationService extends Service {
     }
 
     /**
-     * Disconnect from relay
+     * Disconnect from all relays from outside the service thread
      */
-    private void disconnectFromRelay() {
-        if (webSocket != null) {
-            try {
-                webSocket.close(1000, "Service stopping");
-            } catch (Exception e) {
-                Log.e(TAG, "Error closing WebSocket", e);
+    private void postDisconnectFromRelay() {
+        serviceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                disconnectFromRelay();
             }
-            webSocket = null;
-        }
+        });
     }
 
     /**
-     * Generate random hex string
+     * Disconnect from all relays
      */
-    private String generateRandomHex(int length) {
-        Random random = new Random();
-        StringBuilder sb = new StringBuilder();
-        String chars = "0123456789abcdef";
-        for (int i = 0; i < length; i++) {
-            sb.append(chars.charAt(random.nextInt(chars.length())));
+    private void disconnectFromRelay() {
+        for (RelayConnection relay : relays.values()) {
+            cancelAuthRetry(relay);
+            Log.d(TAG, "Disconnecting relay " + relay.url);
+            relay.disconnect();
         }
-        return sb.toString();
+        relays.clear();
     }
 
     /**
      * Show notification when push notification is received
-     * User can click notification to open the app
+     * Renders the latest messages with their sender and group names and avatars from PushProfiles, user can click
+     * notification to open the app
+     * @param alert false to only update a shown notification, without sound or vibration
      */
-    private void activateApp() {
+    private void showPushNotification(boolean alert) {
         try {
+            long startNanos = System.nanoTime();
             // Create a fresh Intent for MainActivity
             Intent intent = new Intent(this, MainActivity.class);
             intent.setAction(Intent.ACTION_MAIN);
@@ -961,9 +1759,22 @@ public class PushNotificationService extends Service {
             // Show notification that will launch the app when clicked
             NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             if (notificationManager != null) {
+                // Relay counts where the relays gave them, else the events notified so far
+                UnreadCounter.Totals unread = unreadCounter.totals(unreadByGroup);
+                int unreadMessages = (int) Math.min(Integer.MAX_VALUE, Math.max(unread.messages, unreadCount));
+                String contentText;
+                if (unread.groups > 1) {
+                    contentText = getString(R.string.push_notification_summary_text, unreadMessages, unread.groups);
+                } else if (unreadMessages > 1) {
+                    contentText = getString(R.string.push_notification_count_text, unreadMessages);
+                } else {
+                    contentText = getString(R.string.push_notification_text);
+                }
                 NotificationCompat.Builder builder = new NotificationCompat.Builder(this, PUSH_NOTIFICATION_CHANNEL_ID)
                     .setContentTitle(getString(R.string.push_notification_title))
-                    .setContentText(getString(R.string.push_notification_text))
+                    .setContentText(contentText)
+                    .setNumber(unreadMessages)
+                    .setOnlyAlertOnce(!alert)
                     .setSmallIcon(R.mipmap.ic_launcher)
                     .setContentIntent(pendingIntent)
                     .setAutoCancel(true)
@@ -971,8 +1782,12 @@ public class PushNotificationService extends Service {
                     .setCategory(NotificationCompat.CATEGORY_MESSAGE)
                     .setDefaults(Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE)
                     .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
+                if (!shownMessages.isEmpty()) {
+                    applyMessagingStyle(builder, unreadMessages, unread.groups);
+                }
                 
                 notificationManager.notify(PUSH_NOTIFICATION_ID, builder.build());
+                PushMetrics.get().record(PushMetrics.NOTIFICATION_RENDER_US, (System.nanoTime() - startNanos) / 1000);
                 Log.d(TAG, "Push notification shown");
             } else {
                 Log.e(TAG, "NotificationManager is null");
@@ -982,46 +1797,112 @@ public class PushNotificationService extends Service {
         }
     }
 
+    /**
+     * Conversation view of the shown messages: one group is titled and pictured as that group, messages from several
+     * groups name the group next to each sender
+     */
+    private void applyMessagingStyle(NotificationCompat.Builder builder, int unreadMessages, int unreadChats) {
+        PushProfiles profiles = PushProfiles.get(this);
+        String singleGroup = unreadByGroup.size() == 1 ? unreadByGroup.keySet().iterator().next() : null;
+        Person self = new Person.Builder()
+                .setName(getString(R.string.push_notification_self_name))
+                .build();
+        NotificationCompat.MessagingStyle style = new NotificationCompat.MessagingStyle(self);
+        Map<String, Person> persons = new HashMap<>();
+        for (PushMessage message : shownMessages) {
+            String personKey = singleGroup != null ? message.sender : message.sender + "/" + message.groupId;
+            Person person = persons.get(personKey);
+            if (person == null) {
+                String name = displayName(profiles, message.sender);
+                if (singleGroup == null && message.groupId != null) {
+                    name = getString(R.string.push_notification_sender_in_group, name, displayName(profiles, message.groupId));
+                }
+                Person.Builder personBuilder = new Person.Builder().setKey(message.sender).setName(name);
+                Bitmap avatar = profiles.avatar(message.sender);
+                if (avatar != null) {
+                    personBuilder.setIcon(IconCompat.createWithBitmap(avatar));
+                }
+                person = personBuilder.build();
+                persons.put(personKey, person);
+            }
+            style.addMessage(getString(R.string.push_notification_text), message.timeMs, person);
+        }
+        if (singleGroup != null && !singleGroup.isEmpty()) {
+            style.setConversationTitle(displayName(profiles, singleGroup));
+            style.setGroupConversation(true);
+            Bitmap groupAvatar = profiles.avatar(singleGroup);
+            if (groupAvatar != null) {
+                builder.setLargeIcon(groupAvatar);
+            }
+            if (unreadChats > 1) {
+                // The relays count unread messages in other chats too
+                builder.setSubText(getString(R.string.push_notification_summary_text, unreadMessages, unreadChats));
+            }
+        } else if (unreadByGroup.size() > 1) {
+            style.setConversationTitle(getString(R.string.push_notification_summary_text, unreadMessages, unreadChats));
+            style.setGroupConversation(true);
+        }
+        builder.setStyle(style);
+    }
+
+    /**
+     * Name the app gave a pubkey or group, else a shortened id
+     */
+    private static String displayName(PushProfiles profiles, String id) {
+        if (id == null || id.isEmpty()) return "";
+        String name = profiles.name(id);
+        return name != null ? name : shortenId(id);
+    }
+
+    private static String shortenId(String id) {
+        return id.length() <= 16 ? id : id.substring(0, 8) + "\u2026";
+    }
+
+    /**
+     * Whether the push notification is still showing, i.e. not opened or dismissed yet
+     */
+    private boolean isPushNotificationShown() {
+        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notificationManager == null) return false;
+        for (StatusBarNotification notification : notificationManager.getActiveNotifications()) {
+            if (notification.getId() == PUSH_NOTIFICATION_ID) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Check whether app has Activity in foreground
      * Returns true only if there's an Activity visible to the user
      * Returns false if only Service is running (app was killed)
+     * Answered from the lifecycle-driven AppForegroundTracker flag, no ActivityManager call per burst
      */
     private boolean isAppProcessRunning() {
-        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        if (activityManager == null) return false;
-        List<ActivityManager.RunningAppProcessInfo> runningApps = activityManager.getRunningAppProcesses();
-        if (runningApps == null) return false;
-        String packageName = getPackageName();
-        for (ActivityManager.RunningAppProcessInfo processInfo : runningApps) {
-            if (processInfo.processName.equals(packageName)) {
-                // Check if process has Activity in foreground
-                // IMPORTANCE_FOREGROUND means there's an Activity visible to user
-                // IMPORTANCE_SERVICE or other values mean only Service is running
-                int importance = processInfo.importance;
-                Log.d(TAG, "Process found, importance: " + importance + 
-                    " (IMPORTANCE_FOREGROUND=" + ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND + ")");
-                return importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
-            }
-        }
-        Log.d(TAG, "Process not found in running apps");
-        return false;
+        return AppForegroundTracker.isAppInForeground(this);
     }
 
     private void persistConfig() {
-        if (serverRelay == null && deviceId == null && pubkey == null) return;
+        if (serverRelays.isEmpty() && deviceId == null && pubkey == null) return;
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         prefs.edit()
-                .putString(KEY_SERVER_RELAY, serverRelay)
+                .putString(KEY_SERVER_RELAY, serverRelays.isEmpty() ? null : serverRelays.get(0))
+                .putString(KEY_SERVER_RELAYS, new JSONArray(serverRelays).toString())
                 .putString(KEY_DEVICE_ID, deviceId)
                 .putString(KEY_PUBKEY, pubkey)
+                .putLong(KEY_COALESCE_WINDOW_MS, coalesceWindowMs)
+                .putLong(KEY_KEEPALIVE_INTERVAL_MS, keepaliveIntervalMs)
+                .putString(KEY_PUSH_MODE, pushMode)
+                .putLong(KEY_SYNC_INTERVAL_MS, syncIntervalMs)
+                .putString(KEY_GROUP_IDS, new JSONArray(groupIds).toString())
+                .putBoolean(KEY_BACKGROUND_SYNC, backgroundSyncEnabled)
                 .apply();
     }
 
     private void loadConfigFromPrefs() {
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        if (serverRelay == null || serverRelay.isEmpty()) {
-            serverRelay = prefs.getString(KEY_SERVER_RELAY, null);
+        if (serverRelays.isEmpty()) {
+            serverRelays = loadRelaysFromPrefs(prefs);
         }
         if (deviceId == null || deviceId.isEmpty()) {
             deviceId = prefs.getString(KEY_DEVICE_ID, null);
@@ -1029,7 +1910,83 @@ public class PushNotificationService extends Service {
         if (pubkey == null || pubkey.isEmpty()) {
             pubkey = prefs.getString(KEY_PUBKEY, null);
         }
-        // Note: privatekey is loaded on-demand in getPrivateKey() method
+        coalesceWindowMs = prefs.getLong(KEY_COALESCE_WINDOW_MS, coalesceWindowMs);
+        keepaliveIntervalMs = prefs.getLong(KEY_KEEPALIVE_INTERVAL_MS, keepaliveIntervalMs);
+        pushMode = prefs.getString(KEY_PUSH_MODE, pushMode);
+        syncIntervalMs = prefs.getLong(KEY_SYNC_INTERVAL_MS, syncIntervalMs);
+        backgroundSyncEnabled = prefs.getBoolean(KEY_BACKGROUND_SYNC, backgroundSyncEnabled);
+        if (groupIds.isEmpty()) {
+            groupIds = loadGroupIdsFromPrefs(prefs);
+        }
+        if (sinceCursor == 0) {
+            sinceCursor = prefs.getLong(KEY_SINCE_CURSOR, 0);
+            persistedSinceCursor = sinceCursor;
+        }
+        unreadCounter.setMarkers(loadReadMarkersFromPrefs(prefs));
+        // Note: privatekey is loaded on-demand in unlockSigningSession() method
         // We don't store it in instance variable for security reasons
     }
+
+    private Map<String, Long> loadReadMarkersFromPrefs(SharedPreferences prefs) {
+        Map<String, Long> result = new HashMap<>();
+        String markersJson = prefs.getString(KEY_READ_MARKERS, null);
+        if (markersJson == null) {
+            return result;
+        }
+        try {
+            JSONObject markers = new JSONObject(markersJson);
+            Iterator<String> groups = markers.keys();
+            while (groups.hasNext()) {
+                String group = groups.next();
+                result.put(group, markers.optLong(group, 0));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse persisted read markers: " + markersJson, e);
+        }
+        return result;
+    }
+
+    private List<String> loadGroupIdsFromPrefs(SharedPreferences prefs) {
+        List<String> result = new ArrayList<>();
+        String groupsJson = prefs.getString(KEY_GROUP_IDS, null);
+        if (groupsJson == null) {
+            return result;
+        }
+        try {
+            JSONArray groupArray = new JSONArray(groupsJson);
+            for (int i = 0; i < groupArray.length(); i++) {
+                String group = groupArray.optString(i, "");
+                if (!group.isEmpty() && !result.contains(group)) {
+                    result.add(group);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse persisted group ids: " + groupsJson, e);
+        }
+        return result;
+    }
+
+    private List<String> loadRelaysFromPrefs(SharedPreferences prefs) {
+        List<String> result = new ArrayList<>();
+        String relaysJson = prefs.getString(KEY_SERVER_RELAYS, null);
+        if (relaysJson != null) {
+            try {
+                JSONArray relayArray = new JSONArray(relaysJson);
+                for (int i = 0; i < relayArray.length(); i++) {
+                    String relay = relayArray.optString(i, "");
+                    if (!relay.isEmpty() && !result.contains(relay)) {
+                        result.add(relay);
+                    }
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to parse persisted relays: " + relaysJson, e);
+            }
+        }
+        // Config persisted before multi-relay support only has the single relay
+        String singleRelay = prefs.getString(KEY_SERVER_RELAY, null);
+        if (result.isEmpty() && singleRelay != null && !singleRelay.isEmpty()) {
+            result.add(singleRelay);
+        }
+        return result;
+    }
 }
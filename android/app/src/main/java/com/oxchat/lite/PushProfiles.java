@@ -0,0 +1,101 @@
+package com.oxchat.lite;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Display names and avatars of users and groups for native notifications, keyed by pubkey or NIP-29 group id
+ * Filled by the Flutter app whenever it has the profiles, read by the push service without starting Flutter
+ * Names live in SharedPreferences and are held in memory, avatars in an AvatarCache
+ */
+public final class PushProfiles {
+    private static final String TAG = "PushProfiles";
+    private static final String PREFS_NAME = "push_profiles";
+    private static final String AVATAR_DIR_NAME = "push_avatars";
+
+    private static PushProfiles instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, String> names = new HashMap<>();
+    private final AvatarCache avatars;
+    // Avatars are decoded and written here, never on the caller's thread
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private PushProfiles(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof String) {
+                names.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        int sizePx = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        avatars = new AvatarCache(new File(context.getCacheDir(), AVATAR_DIR_NAME), sizePx,
+                AvatarCache.DEFAULT_MEMORY_BYTES, AvatarCache.DEFAULT_DISK_BYTES);
+    }
+
+    public static synchronized PushProfiles get(Context context) {
+        if (instance == null) {
+            instance = new PushProfiles(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Set the name and avatar of a user or group
+     * @param name null to keep the current name, "" to remove it
+     * @param avatar encoded image, null to keep the current avatar
+     */
+    public void update(final String id, String name, final byte[] avatar) {
+        if (id == null || id.isEmpty()) return;
+        if (name != null) {
+            synchronized (names) {
+                if (name.isEmpty()) {
+                    names.remove(id);
+                    prefs.edit().remove(id).apply();
+                } else if (!name.equals(names.get(id))) {
+                    names.put(id, name);
+                    prefs.edit().putString(id, name).apply();
+                }
+            }
+        }
+        if (avatar != null) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!avatars.put(id, avatar)) {
+                        Log.w(TAG, "Avatar of " + id + " not cached");
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Display name, or null if the app never set one
+     */
+    String name(String id) {
+        if (id == null) return null;
+        synchronized (names) {
+            return names.get(id);
+        }
+    }
+
+    /**
+     * Round avatar from memory or disk, never from the network
+     */
+    Bitmap avatar(String id) {
+        return avatars.get(id);
+    }
+
+    void trimMemory() {
+        avatars.trimMemory();
+    }
+}
@@ -0,0 +1,597 @@
+package com.oxchat.lite;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UI process side of the Messenger interface of PushNotificationService, which runs in the :push process
+ * Keys, profiles, AUTH handoff, metrics and the event inbox all belong to the :push process now, the UI only reaches
+ * them through here instead of opening their files itself
+ *
+ * Binds on the first request and unbinds once no reply is outstanding for a while, so the UI doesn't keep the :push
+ * process alive when push is off. Requests made before the binding is up are queued
+ * Queries of state only the running service has don't create it: they bind without BIND_AUTO_CREATE and get null if
+ * the service doesn't come up within CONNECT_TIMEOUT_MS
+ *
+ * Main thread only, callbacks run on the main thread and get null if the service didn't answer
+ */
+public final class PushServiceClient {
+    private static final String TAG = "PushServiceClient";
+    static final String ACTION_BIND_CLIENT = "com.oxchat.lite.ACTION_BIND_CLIENT";
+
+    static final int MSG_STORE_KEYS = 1;
+    static final int MSG_GET_PENDING_AUTH = 2;
+    static final int MSG_SEND_AUTH = 3;
+    static final int MSG_CLEAR_PENDING_AUTH = 4;
+    static final int MSG_UPDATE_PROFILE = 5;
+    static final int MSG_GET_METRICS = 6;
+    static final int MSG_RESET_METRICS = 7;
+    static final int MSG_GET_SYNC_STATS = 8;
+    static final int MSG_DRAIN_INBOX = 9;
+    static final int MSG_UPDATE_CONFIG = 10;
+    static final int MSG_STOP = 11;
+    static final int MSG_GET_STATE = 12;
+    static final int MSG_SET_READ_MARKERS = 13;
+
+    static final String KEY_PUBKEY = "pubkey";
+    static final String KEY_PRIVKEY = "privkey";
+    static final String KEY_ACCOUNT_PUBKEYS = "account_pubkeys";
+    static final String KEY_ACCOUNT_PRIVKEYS = "account_privkeys";
+    public static final String KEY_CHALLENGE = "challenge";
+    public static final String KEY_RELAY = "relay";
+    static final String KEY_AUTH_JSON = "auth_json";
+    static final String KEY_ID = "id";
+    static final String KEY_NAME = "name";
+    static final String KEY_AVATAR = "avatar";
+    public static final String KEY_VALUE = "value";
+    static final String KEY_AFTER_OFFSET = "after_offset";
+    static final String KEY_PIPE = "pipe";
+    static final String KEY_GROUP_IDS = "group_ids";
+    static final String KEY_READ_AT = "read_at";
+
+    // Oneway binder calls share a buffer of a few hundred KB, bigger avatars are left out
+    static final int MAX_AVATAR_BYTES = 256 * 1024;
+    private static final long REPLY_TIMEOUT_MS = 5000;
+    private static final long UNBIND_DELAY_MS = 10000;
+    // A running service connects within milliseconds, a query that doesn't create it waits this long
+    private static final long CONNECT_TIMEOUT_MS = 1000;
+
+    private static PushServiceClient instance;
+
+    public interface Callback {
+        /**
+         * @param data reply of the service, null if it didn't answer in time or the :push process died
+         */
+        void onReply(Bundle data);
+    }
+
+    public interface DrainCallback {
+        /**
+         * @param batch null if the inbox couldn't be read
+         */
+        void onDrained(EventInbox.Batch batch);
+    }
+
+    /**
+     * Push config of the Flutter app, a null or negative field is not set
+     * Travels as the extras of a start intent or as the data of an update, under the EXTRA_ keys of the service
+     */
+    public static final class Config {
+        public List<String> relays;
+        public String pubkey;
+        // Optional, the service uses the pubkey if it is not set
+        public String deviceId;
+        public List<String> groupIds;
+        public long coalesceWindowMs = -1;
+        public long keepaliveIntervalMs = -1;
+        // PushNotificationService.MODE_PERSISTENT or MODE_BATCHED, only a start changes it
+        public String mode;
+        public long syncIntervalMs = -1;
+        public Boolean backgroundSync;
+
+        Bundle toExtras() {
+            Bundle extras = new Bundle();
+            if (relays != null) {
+                extras.putStringArrayList(PushNotificationService.EXTRA_SERVER_RELAYS, new ArrayList<>(relays));
+            }
+            extras.putString(PushNotificationService.EXTRA_PUBKEY, pubkey);
+            extras.putString(PushNotificationService.EXTRA_DEVICE_ID, deviceId);
+            if (groupIds != null) {
+                extras.putStringArrayList(PushNotificationService.EXTRA_GROUP_IDS, new ArrayList<>(groupIds));
+            }
+            extras.putLong(PushNotificationService.EXTRA_COALESCE_WINDOW_MS, coalesceWindowMs);
+            extras.putLong(PushNotificationService.EXTRA_KEEPALIVE_INTERVAL_MS, keepaliveIntervalMs);
+            extras.putString(PushNotificationService.EXTRA_PUSH_MODE, mode);
+            extras.putLong(PushNotificationService.EXTRA_SYNC_INTERVAL_MS, syncIntervalMs);
+            if (backgroundSync != null) {
+                extras.putBoolean(PushNotificationService.EXTRA_BACKGROUND_SYNC, backgroundSync);
+            }
+            return extras;
+        }
+
+        /**
+         * Also reads the single relay extra of older start intents
+         */
+        static Config fromExtras(Bundle extras) {
+            Config config = new Config();
+            if (extras == null) return config;
+            List<String> relayList = extras.getStringArrayList(PushNotificationService.EXTRA_SERVER_RELAYS);
+            String singleRelay = extras.getString(PushNotificationService.EXTRA_SERVER_RELAY);
+            if (relayList != null || singleRelay != null) {
+                config.relays = new ArrayList<>();
+                if (relayList != null) {
+                    for (String relay : relayList) {
+                        if (relay != null && !relay.isEmpty() && !config.relays.contains(relay)) {
+                            config.relays.add(relay);
+                        }
+                    }
+                }
+                if (singleRelay != null && !singleRelay.isEmpty() && !config.relays.contains(singleRelay)) {
+                    config.relays.add(singleRelay);
+                }
+            }
+            config.pubkey = extras.getString(PushNotificationService.EXTRA_PUBKEY);
+            config.deviceId = extras.getString(PushNotificationService.EXTRA_DEVICE_ID);
+            config.groupIds = extras.getStringArrayList(PushNotificationService.EXTRA_GROUP_IDS);
+            config.coalesceWindowMs = extras.getLong(PushNotificationService.EXTRA_COALESCE_WINDOW_MS, -1);
+            config.keepaliveIntervalMs = extras.getLong(PushNotificationService.EXTRA_KEEPALIVE_INTERVAL_MS, -1);
+            config.mode = extras.getString(PushNotificationService.EXTRA_PUSH_MODE);
+            config.syncIntervalMs = extras.getLong(PushNotificationService.EXTRA_SYNC_INTERVAL_MS, -1);
+            if (extras.containsKey(PushNotificationService.EXTRA_BACKGROUND_SYNC)) {
+                config.backgroundSync = extras.getBoolean(PushNotificationService.EXTRA_BACKGROUND_SYNC);
+            }
+            return config;
+        }
+    }
+
+    private static final class Request {
+        final Message message;
+        final Callback callback;
+        // Our copy of a file descriptor passed along, closed once the message is sent
+        final ParcelFileDescriptor sentFd;
+        // For the reply once sent; while queued, for the connection if the request doesn't create the service
+        long deadline;
+
+        Request(Message message, Callback callback, ParcelFileDescriptor sentFd) {
+            this.message = message;
+            this.callback = callback;
+            this.sentFd = sentFd;
+        }
+    }
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Messenger replyMessenger;
+    private final ArrayDeque<Request> queued = new ArrayDeque<>();
+    private final Map<Integer, Request> awaiting = new HashMap<>();
+    private int nextRequestId = 1;
+    private Messenger service;
+    private boolean binding;
+    // Whether the binding was made with BIND_AUTO_CREATE
+    private boolean autoCreate;
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = new Messenger(binder);
+            Log.d(TAG, "Connected to push service");
+            flush();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.w(TAG, "Push process went away");
+            disconnect();
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            disconnect();
+        }
+    };
+    private final Runnable timeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Map.Entry<Integer, Request>> it = awaiting.entrySet().iterator();
+            while (it.hasNext()) {
+                Request request = it.next().getValue();
+                if (request.deadline <= now) {
+                    it.remove();
+                    Log.w(TAG, "No reply to request " + request.message.what);
+                    request.callback.onReply(null);
+                }
+            }
+            Iterator<Request> queue = queued.iterator();
+            while (queue.hasNext()) {
+                Request request = queue.next();
+                if (request.deadline > 0 && request.deadline <= now) {
+                    queue.remove();
+                    Log.d(TAG, "Push service not running, request " + request.message.what + " dropped");
+                    closeQuietly(request.sentFd);
+                    if (request.callback != null) {
+                        request.callback.onReply(null);
+                    }
+                }
+            }
+            scheduleChecks();
+        }
+    };
+    private final Runnable unbind = new Runnable() {
+        @Override
+        public void run() {
+            if (!awaiting.isEmpty() || !queued.isEmpty()) return;
+            Log.d(TAG, "Idle, unbinding from push service");
+            context.unbindService(connection);
+            service = null;
+            binding = false;
+            autoCreate = false;
+        }
+    };
+
+    private PushServiceClient(Context context) {
+        this.context = context;
+        replyMessenger = new Messenger(new Handler(Looper.getMainLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                onReply(msg);
+                return true;
+            }
+        }));
+    }
+
+    public static synchronized PushServiceClient get(Context context) {
+        if (instance == null) {
+            instance = new PushServiceClient(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Start the service with a complete config, the one call that goes through onStartCommand: only a started
+     * service can go to the foreground. The batched mode schedules its job and stops right away
+     */
+    public void start(Config config) {
+        Intent intent = new Intent(context, PushNotificationService.class);
+        intent.putExtras(config.toExtras());
+        if (PushNotificationService.MODE_BATCHED.equals(config.mode)) {
+            context.startService(intent);
+        } else {
+            context.startForegroundService(intent);
+        }
+    }
+
+    /**
+     * Change relays, groups, windows or the background sync of the running service without restarting it
+     * Returns as soon as the message is handed to the binder, the service applies it on its own thread
+     */
+    public void update(Config config) {
+        request(MSG_UPDATE_CONFIG, config.toExtras(), null, null, true);
+    }
+
+    /**
+     * Disconnect, cancel the batched job and stop, the keys and the inbox are cleared
+     */
+    public void stop() {
+        request(MSG_STOP, null, null, null, true);
+    }
+
+    /**
+     * Whether the service runs and the state of each relay, as a HashMap under KEY_VALUE:
+     * {running, mode, networkAvailable, groups, unreadMessages, unreadChats,
+     * relays: [{url, state, authenticated, authPending}]}, plus secp256k1Error if events can't be verified
+     * Doesn't create the service, the reply is null if it isn't running
+     */
+    public void state(Callback callback) {
+        request(MSG_GET_STATE, null, callback, null, false);
+    }
+
+    /**
+     * Hand over where the user stopped reading, the service counts newer messages per group on the relays (NIP-45)
+     * @param readAt created_at (seconds) of the last message read per group, 0 to stop counting a group; groups not
+     *               in the map keep their marker
+     */
+    public void setReadMarkers(Map<String, Long> readAt) {
+        String[] groups = new String[readAt.size()];
+        long[] times = new long[readAt.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : readAt.entrySet()) {
+            groups[i] = entry.getKey();
+            times[i] = entry.getValue() != null ? entry.getValue() : 0;
+            i++;
+        }
+        Bundle data = new Bundle();
+        data.putStringArray(KEY_GROUP_IDS, groups);
+        data.putLongArray(KEY_READ_AT, times);
+        request(MSG_SET_READ_MARKERS, data, null, null, true);
+    }
+
+    /**
+     * Store the private keys in the key vault of the :push process
+     * @param accounts other accounts to push for, pubkey to privkey; the vault is trimmed to these and the main
+     *                 account, null keeps the accounts it has
+     */
+    public void storeKeys(String pubkey, String privkey, Map<String, String> accounts, Callback callback) {
+        Bundle data = new Bundle();
+        data.putString(KEY_PUBKEY, pubkey);
+        data.putString(KEY_PRIVKEY, privkey);
+        if (accounts != null) {
+            ArrayList<String> pubkeys = new ArrayList<>(accounts.keySet());
+            ArrayList<String> privkeys = new ArrayList<>();
+            for (String account : pubkeys) {
+                privkeys.add(accounts.get(account));
+            }
+            data.putStringArrayList(KEY_ACCOUNT_PUBKEYS, pubkeys);
+            data.putStringArrayList(KEY_ACCOUNT_PRIVKEYS, privkeys);
+        }
+        request(MSG_STORE_KEYS, data, callback, null, true);
+    }
+
+    /**
+     * AUTH challenge a relay is still waiting on because the service has no key to answer it, reply has
+     * challenge and relay, or is empty; null if the service isn't running, it isn't created for this
+     */
+    public void pendingAuthChallenge(Callback callback) {
+        request(MSG_GET_PENDING_AUTH, null, callback, null, false);
+    }
+
+    /**
+     * Hand the service an AUTH message signed by the app, ["AUTH", event]
+     */
+    public void sendAuth(String authJson) {
+        Bundle data = new Bundle();
+        data.putString(KEY_AUTH_JSON, authJson);
+        request(MSG_SEND_AUTH, data, null, null, true);
+    }
+
+    /**
+     * Challenges live in the running service only, so this doesn't create it
+     */
+    public void clearPendingAuthChallenge() {
+        request(MSG_CLEAR_PENDING_AUTH, null, null, null, false);
+    }
+
+    /**
+     * See PushProfiles.update(), an avatar over MAX_AVATAR_BYTES is skipped
+     */
+    public void updateProfile(String id, String name, byte[] avatar) {
+        Bundle data = new Bundle();
+        data.putString(KEY_ID, id);
+        data.putString(KEY_NAME, name);
+        if (avatar != null && avatar.length > MAX_AVATAR_BYTES) {
+            Log.w(TAG, "Avatar of " + id + " is " + avatar.length + " bytes, skipped");
+        } else {
+            data.putByteArray(KEY_AVATAR, avatar);
+        }
+        request(MSG_UPDATE_PROFILE, data, null, null, true);
+    }
+
+    /**
+     * PushMetrics.snapshot() of the :push process, as a HashMap under KEY_VALUE; null if the service isn't running
+     */
+    public void metrics(Callback callback) {
+        request(MSG_GET_METRICS, null, callback, null, false);
+    }
+
+    public void resetMetrics() {
+        request(MSG_RESET_METRICS, null, null, null, true);
+    }
+
+    /**
+     * PushSyncJobService.stats() of the :push process, as a HashMap under KEY_VALUE; null if the service isn't running
+     */
+    public void syncStats(Callback callback) {
+        request(MSG_GET_SYNC_STATS, null, callback, null, false);
+    }
+
+    /**
+     * EventInbox.drain() in the :push process
+     * The events come back through a pipe, a drain of the whole inbox is far bigger than a binder transaction may be
+     * Creates the service: in batched mode it only runs during a sync, and the inbox would never be drained otherwise
+     */
+    public void drainInbox(long afterOffset, final DrainCallback callback) {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create inbox pipe", e);
+            callback.onDrained(null);
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putLong(KEY_AFTER_OFFSET, afterOffset);
+        data.putParcelable(KEY_PIPE, pipe[1]);
+        request(MSG_DRAIN_INBOX, data, null, pipe[1], true);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EventInbox.Batch batch = null;
+                try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0])) {
+                    batch = readBatch(in);
+                } catch (IOException e) {
+                    // Also the way a dead :push process shows up, the write end closes with it
+                    Log.e(TAG, "Failed to read drained inbox", e);
+                }
+                final EventInbox.Batch drained = batch;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDrained(drained);
+                    }
+                });
+            }
+        }, "PushInboxDrain").start();
+    }
+
+    /**
+     * [long lastOffset][boolean gap][int count], then count times [int length][UTF-8 JSON]
+     */
+    static void writeBatch(OutputStream out, EventInbox.Batch batch) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeLong(batch.lastOffset);
+        data.writeBoolean(batch.gap);
+        data.writeInt(batch.events.size());
+        for (String event : batch.events) {
+            byte[] json = event.getBytes(StandardCharsets.UTF_8);
+            data.writeInt(json.length);
+            data.write(json);
+        }
+        data.flush();
+    }
+
+    static EventInbox.Batch readBatch(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        long lastOffset = data.readLong();
+        boolean gap = data.readBoolean();
+        int count = data.readInt();
+        List<String> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] json = new byte[data.readInt()];
+            data.readFully(json);
+            events.add(new String(json, StandardCharsets.UTF_8));
+        }
+        return new EventInbox.Batch(events, lastOffset, gap);
+    }
+
+    /**
+     * @param create whether to create the service for this request; if not, the request fails with a null reply
+     *               unless the service is running
+     */
+    private void request(int what, Bundle data, Callback callback, ParcelFileDescriptor sentFd, boolean create) {
+        Message message = Message.obtain(null, what);
+        if (data != null) {
+            message.setData(data);
+        }
+        if (callback != null) {
+            message.arg1 = nextRequestId++;
+            message.replyTo = replyMessenger;
+        }
+        Request request = new Request(message, callback, sentFd);
+        if (!create) {
+            request.deadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MS;
+        }
+        queued.addLast(request);
+        mainHandler.removeCallbacks(unbind);
+        if (service != null) {
+            flush();
+            return;
+        }
+        if (binding && (autoCreate || !create)) {
+            scheduleChecks();
+            return;
+        }
+        // A second bindService on the same connection adds BIND_AUTO_CREATE to a binding that was made without it
+        Intent intent = new Intent(context, PushNotificationService.class).setAction(ACTION_BIND_CLIENT);
+        if (!context.bindService(intent, connection, create ? Context.BIND_AUTO_CREATE : 0)) {
+            Log.e(TAG, "Failed to bind push service");
+            disconnect();
+            return;
+        }
+        binding = true;
+        autoCreate = create;
+        scheduleChecks();
+    }
+
+    private void flush() {
+        while (service != null && !queued.isEmpty()) {
+            Request request = queued.pollFirst();
+            try {
+                service.send(request.message);
+                if (request.callback != null) {
+                    request.deadline = SystemClock.elapsedRealtime() + REPLY_TIMEOUT_MS;
+                    awaiting.put(request.message.arg1, request);
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Push service gone while sending " + request.message.what);
+                if (request.callback != null) {
+                    request.callback.onReply(null);
+                }
+            }
+            closeQuietly(request.sentFd);
+        }
+        scheduleChecks();
+    }
+
+    private void onReply(Message msg) {
+        Request request = awaiting.remove(msg.arg1);
+        if (request == null) return;
+        request.callback.onReply(msg.getData());
+        scheduleChecks();
+    }
+
+    /**
+     * Fail everything outstanding, the next request binds again
+     */
+    private void disconnect() {
+        if (binding) {
+            context.unbindService(connection);
+        }
+        service = null;
+        binding = false;
+        autoCreate = false;
+        List<Request> failed = new ArrayList<>(awaiting.values());
+        failed.addAll(queued);
+        awaiting.clear();
+        queued.clear();
+        for (Request request : failed) {
+            closeQuietly(request.sentFd);
+            if (request.callback != null) {
+                request.callback.onReply(null);
+            }
+        }
+        scheduleChecks();
+    }
+
+    private void scheduleChecks() {
+        mainHandler.removeCallbacks(timeoutCheck);
+        mainHandler.removeCallbacks(unbind);
+        long next = Long.MAX_VALUE;
+        for (Request request : awaiting.values()) {
+            next = Math.min(next, request.deadline);
+        }
+        for (Request request : queued) {
+            if (request.deadline > 0) {
+                next = Math.min(next, request.deadline);
+            }
+        }
+        if (next != Long.MAX_VALUE) {
+            mainHandler.postDelayed(timeoutCheck, Math.max(0, next - SystemClock.elapsedRealtime()));
+        } else if (binding && queued.isEmpty()) {
+            mainHandler.postDelayed(unbind, UNBIND_DELAY_MS);
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        if (fd == null) return;
+        try {
+            fd.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.oxchat.lite;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Batched push mode: a periodic job instead of the always-on relay socket
+ * Each run binds PushNotificationService, which opens the relays, asks for events since the persisted cursor,
+ * drains until EOSE, posts one coalesced notification and closes again; the frame handling and AUTH are the service's own
+ *
+ * Runs, socket time (a stand-in for radio-on time) and wakeups per hour are kept in preferences across process deaths,
+ * so the cost can be compared with the persistent socket
+ */
+public class PushSyncJobService extends JobService {
+    private static final String TAG = "PushSyncJobService";
+    private static final int JOB_ID = 20284;
+    // JobScheduler does not run periodic jobs more often than every 15 minutes
+    static final long DEFAULT_INTERVAL_MS = 15 * 60 * 1000;
+
+    private static final String PREFS_NAME = "push_sync_stats";
+    private static final String KEY_RUNS = "runs";
+    private static final String KEY_RADIO_ON_MS = "radio_on_ms";
+    private static final String KEY_FIRST_RUN_AT = "first_run_at";
+    private static final String KEY_LAST_RUN_AT = "last_run_at";
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ServiceConnection connection;
+
+    /**
+     * Schedule the periodic sync, replacing any previous schedule
+     */
+    static void schedule(Context context, long intervalMs) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) return;
+        long periodMs = Math.max(intervalMs, JobInfo.getMinPeriodMillis());
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, PushSyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setPeriodic(periodMs)
+                .setPersisted(true)
+                .build();
+        int result = jobScheduler.schedule(job);
+        Log.d(TAG, "Scheduled batched push sync every " + (periodMs / 60000) + " min, result=" + result);
+    }
+
+    static boolean isScheduled(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        return jobScheduler != null && jobScheduler.getPendingJob(JOB_ID) != null;
+    }
+
+    static void cancel(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler != null && jobScheduler.getPendingJob(JOB_ID) != null) {
+            jobScheduler.cancel(JOB_ID);
+            Log.d(TAG, "Cancelled batched push sync");
+        }
+    }
+
+    /**
+     * Cost of the batched mode so far, in types the Flutter standard codec understands
+     */
+    public static Map<String, Object> stats(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long runs = prefs.getLong(KEY_RUNS, 0);
+        long radioOnMs = prefs.getLong(KEY_RADIO_ON_MS, 0);
+        long firstRunAt = prefs.getLong(KEY_FIRST_RUN_AT, 0);
+        double hours = firstRunAt > 0 ? Math.max(1, System.currentTimeMillis() - firstRunAt) / 3600000.0 : 0;
+        Map<String, Object> result = new HashMap<>();
+        result.put("runs", runs);
+        result.put("radio_on_ms", radioOnMs);
+        result.put("last_run_at", prefs.getLong(KEY_LAST_RUN_AT, 0));
+        result.put("wakeups_per_hour", hours > 0 ? runs / hours : 0.0);
+        result.put("radio_on_ms_per_hour", hours > 0 ? radioOnMs / hours : 0.0);
+        return result;
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final long startedAt = SystemClock.elapsedRealtime();
+        connection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                ((PushNotificationService.SyncBinder) binder).syncOnce(new PushNotificationService.SyncCallback() {
+                    @Override
+                    public void onSyncFinished(final boolean completed) {
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                recordRun(SystemClock.elapsedRealtime() - startedAt, completed);
+                                unbind();
+                                jobFinished(params, false);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+            }
+        };
+        Intent intent = new Intent(this, PushNotificationService.class);
+        intent.setAction(PushNotificationService.ACTION_SYNC);
+        if (!bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
+            Log.e(TAG, "Failed to bind PushNotificationService for batched sync");
+            unbind();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Batched push sync stopped by the system");
+        unbind();
+        return true;
+    }
+
+    private void unbind() {
+        if (connection != null) {
+            try {
+                unbindService(connection);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Service was not bound", e);
+            }
+            connection = null;
+        }
+    }
+
+    private void recordRun(long durationMs, boolean completed) {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        prefs.edit()
+                .putLong(KEY_RUNS, prefs.getLong(KEY_RUNS, 0) + 1)
+                .putLong(KEY_RADIO_ON_MS, prefs.getLong(KEY_RADIO_ON_MS, 0) + durationMs)
+                .putLong(KEY_FIRST_RUN_AT, prefs.getLong(KEY_FIRST_RUN_AT, now))
+                .putLong(KEY_LAST_RUN_AT, now)
+                .apply();
+        Log.d(TAG, "Batched push sync " + (completed ? "finished" : "timed out") + " in " + durationMs + "ms");
+    }
+}
@@ -0,0 +1,424 @@
+package com.oxchat.lite;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * One WebSocket connection of the push relay fan-out
+ * Connection state lives in a ConnectionStateMachine; this class owns the socket and hands decoded frames to its Listener
+ * Confined to the push service thread: socket callbacks parse on the OkHttp reader thread and post the result there
+ * The thread and time come in as a ConnectionStateMachine.Scheduler and Clock, so the client runs on a plain JVM against a local relay
+ *
+ * Outgoing AUTH, REQ and CLOSE frames go through a bounded OutboundQueue, flushed once the socket is open and held
+ * back while OkHttp already has more than MAX_SOCKET_QUEUE_BYTES buffered for a slow uplink
+ *
+ * A watchdog probes the relay when it has been silent for the keepalive interval: a REQ with limit 0 must be answered
+ * with EOSE (or CLOSED) within the probe timeout, otherwise the socket is taken as half-open and dropped
+ */
+final class RelayConnection implements ConnectionStateMachine.Callbacks {
+    private static final String TAG = "RelayConnection";
+
+    interface Listener {
+        void onRelayOpen(RelayConnection relay);
+
+        void onRelayFrame(RelayConnection relay, RelayFrame frame);
+    }
+
+    private static final String PROBE_SUBSCRIPTION_PREFIX = "keepalive-";
+    // OkHttp buffers outgoing frames without limit, stop handing it more above this
+    private static final long MAX_SOCKET_QUEUE_BYTES = 64 * 1024;
+    private static final long FLUSH_RETRY_MS = 250;
+    // Matches no event, relays answer with EOSE right away
+    private static final String PROBE_FILTER = "{\"ids\":[\"0000000000000000000000000000000000000000000000000000000000000000\"],\"limit\":0}";
+
+    final String url;
+    final KeepalivePolicy keepalive;
+
+    // Subscription and NIP-42 AUTH state of this relay, managed by PushNotificationService
+    final SubscriptionSet subscriptions = new SubscriptionSet(
+            SubscriptionSet.DEFAULT_MAX_SUBSCRIPTIONS, SubscriptionSet.DEFAULT_MAX_GROUPS_PER_SUBSCRIPTION);
+    String pendingAuthChallenge;
+    long authChallengeAt; // When pendingAuthChallenge arrived, for the challenge to AUTH latency
+    long authSentAt; // When the AUTH response was sent, for the AUTH round trip
+    final Set<String> authEventIds = new HashSet<>(); // AUTH events sent for the current challenge, one per account
+    boolean authAccepted; // Whether any account's AUTH for the current challenge was accepted
+    Runnable authRetryRunnable; // Runnable for retrying AUTH challenge when privatekey is not available
+
+    private final OkHttpClient httpClient;
+    private final ConnectionStateMachine.Scheduler scheduler;
+    private final ConnectionStateMachine.Clock clock;
+    private final Listener listener;
+    private final ConnectionStateMachine stateMachine;
+    private final OutboundQueue outbound = new OutboundQueue(OutboundQueue.DEFAULT_MAX_BYTES);
+    // Current socket, callbacks of a replaced socket are told apart by identity
+    private WebSocket webSocket;
+    private long connectStartedAt;
+    private long lastFrameAt;
+    // Keepalive probe in flight, null if none
+    private String probeSubscriptionId;
+    private int probeCount;
+    private long probeSentAt;
+    private long probeIdleMs;
+    private final Runnable watchdogRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+    private final Runnable probeTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onProbeTimeout();
+        }
+    };
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param scheduler runs every task on the thread that owns this connection
+     */
+    RelayConnection(String url, OkHttpClient httpClient, ConnectionStateMachine.Scheduler scheduler,
+                    ConnectionStateMachine.Clock clock, long keepaliveIntervalMs, Listener listener) {
+        this.url = url;
+        this.keepalive = new KeepalivePolicy(keepaliveIntervalMs);
+        this.httpClient = httpClient;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.listener = listener;
+        this.stateMachine = new ConnectionStateMachine(this, scheduler, clock, new Random());
+    }
+
+    /**
+     * Keep this relay connected; connects now unless already connected, connecting or backing off
+     */
+    void connectIfIdle() {
+        stateMachine.start();
+    }
+
+    /**
+     * Disconnect from relay and stop reconnecting
+     */
+    void disconnect() {
+        stateMachine.stop();
+    }
+
+    boolean isOpen() {
+        return stateMachine.isOpen();
+    }
+
+    ConnectionStateMachine.State getState() {
+        return stateMachine.getState();
+    }
+
+    void onNetworkAvailable() {
+        stateMachine.onNetworkAvailable();
+    }
+
+    void onNetworkLost() {
+        stateMachine.onNetworkLost();
+    }
+
+    void onAuthChallenge() {
+        stateMachine.onAuthChallenge();
+    }
+
+    void onSubscribed() {
+        stateMachine.onSubscribed();
+    }
+
+    /**
+     * Fixed keepalive interval, or 0 to adapt it to the network path
+     */
+    void setKeepaliveInterval(long intervalMs) {
+        keepalive.setFixedInterval(intervalMs);
+        if (webSocket != null && probeSubscriptionId == null) {
+            scheduleWatchdog(keepalive.intervalMs());
+        }
+    }
+
+    /**
+     * Queue an AUTH response, dropped if the socket whose challenge it answers is already gone
+     */
+    boolean sendAuth(String authJson) {
+        if (webSocket == null) {
+            Log.w(TAG, "Dropping AUTH response for " + url + ", socket is gone");
+            return false;
+        }
+        return enqueue(new OutboundQueue.Frame(authJson, OutboundQueue.PRIORITY_AUTH, null, false));
+    }
+
+    /**
+     * Queue a REQ, replacing one for the same subscription that hasn't been sent yet
+     */
+    boolean sendRequest(String subscriptionId, String requestJson) {
+        return enqueue(new OutboundQueue.Frame(requestJson, OutboundQueue.PRIORITY_SUBSCRIPTION, subscriptionId, true));
+    }
+
+    /**
+     * Queue a NIP-45 COUNT, answered once by a COUNT frame, so it needs no CLOSE
+     */
+    boolean sendCount(String subscriptionId, String countJson) {
+        return enqueue(new OutboundQueue.Frame(countJson, OutboundQueue.PRIORITY_SUBSCRIPTION, subscriptionId, true));
+    }
+
+    /**
+     * Queue a CLOSE, a REQ for the same subscription that hasn't been sent yet is dropped
+     */
+    boolean sendClose(String subscriptionId) {
+        return enqueue(new OutboundQueue.Frame("[\"CLOSE\",\"" + subscriptionId + "\"]",
+                OutboundQueue.PRIORITY_SUBSCRIPTION, subscriptionId, false));
+    }
+
+    private boolean enqueue(OutboundQueue.Frame frame) {
+        if (!outbound.offer(frame)) {
+            Log.w(TAG, "Outbound queue of " + url + " full (" + outbound.bytes() + " bytes), dropped frame");
+            return false;
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Hand queued frames to the socket in priority order while it is open and not backed up
+     */
+    private void flush() {
+        scheduler.cancel(flushRunnable);
+        while (webSocket != null && stateMachine.isOpen() && outbound.size() > 0) {
+            if (webSocket.queueSize() > MAX_SOCKET_QUEUE_BYTES) {
+                // Slow uplink, try again once OkHttp has written some of its buffer
+                scheduler.schedule(flushRunnable, FLUSH_RETRY_MS);
+                return;
+            }
+            if (!webSocket.send(outbound.poll().text)) {
+                // Socket is closing, onSocketGone follows
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send a frame right away, bypassing the queue; returns false if the relay is not connected
+     */
+    private boolean send(String text) {
+        return webSocket != null && webSocket.send(text);
+    }
+
+    @Override
+    public void openSocket() {
+        connectStartedAt = clock.elapsedRealtime();
+        try {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .build();
+            webSocket = httpClient.newWebSocket(request, new SocketListener());
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to connect to WebSocket: " + url, e);
+            webSocket = null;
+            PushMetrics.get().increment(PushMetrics.RECONNECTS_PREFIX + "connect_error");
+            stateMachine.onSocketClosed();
+        }
+    }
+
+    @Override
+    public void closeSocket() {
+        stopWatchdog();
+        // Nothing queued applies to the next socket, the service subscribes again when it opens
+        scheduler.cancel(flushRunnable);
+        outbound.clear(OutboundQueue.PRIORITY_AUTH);
+        outbound.clear(OutboundQueue.PRIORITY_SUBSCRIPTION);
+        WebSocket socket = webSocket;
+        webSocket = null;
+        if (socket != null) {
+            try {
+                socket.close(1000, "Service stopping");
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket: " + url, e);
+            }
+        }
+    }
+
+    @Override
+    public void onStateChanged(ConnectionStateMachine.State from, ConnectionStateMachine.State to) {
+        if (to == ConnectionStateMachine.State.BACKOFF) {
+            Log.d(TAG, "Relay " + url + ": " + from + " -> " + to + " (attempt " + stateMachine.getAttempt() + ", " + keepalive + ")");
+        } else {
+            Log.d(TAG, "Relay " + url + ": " + from + " -> " + to);
+        }
+    }
+
+    /**
+     * Drop a socket that closed or failed, unless it was already replaced
+     * @param cause reconnect cause reported in the push metrics
+     */
+    private void onSocketGone(WebSocket socket, String cause) {
+        if (socket != webSocket) return;
+        webSocket = null;
+        stopWatchdog();
+        scheduler.cancel(flushRunnable);
+        // AUTH answers a challenge of this socket; REQs stay queued and are replaced when the next socket subscribes
+        outbound.clear(OutboundQueue.PRIORITY_AUTH);
+        PushMetrics.get().increment(PushMetrics.RECONNECTS_PREFIX + cause);
+        stateMachine.onSocketClosed();
+    }
+
+    private void scheduleWatchdog(long delayMs) {
+        scheduler.cancel(watchdogRunnable);
+        scheduler.schedule(watchdogRunnable, delayMs);
+    }
+
+    private void stopWatchdog() {
+        scheduler.cancel(watchdogRunnable);
+        scheduler.cancel(probeTimeoutRunnable);
+        probeSubscriptionId = null;
+    }
+
+    /**
+     * Probe the relay if nothing arrived for a whole keepalive interval, otherwise check again when it would have
+     */
+    private void checkIdle() {
+        if (webSocket == null) return;
+        long idleMs = clock.elapsedRealtime() - lastFrameAt;
+        if (idleMs < keepalive.intervalMs()) {
+            scheduleWatchdog(keepalive.intervalMs() - idleMs);
+            return;
+        }
+        probeSubscriptionId = PROBE_SUBSCRIPTION_PREFIX + (++probeCount);
+        probeSentAt = clock.elapsedRealtime();
+        probeIdleMs = idleMs;
+        if (!send("[\"REQ\",\"" + probeSubscriptionId + "\"," + PROBE_FILTER + "]")) {
+            probeSubscriptionId = null;
+            return;
+        }
+        scheduler.schedule(probeTimeoutRunnable, keepalive.probeTimeoutMs());
+    }
+
+    private void onProbeAnswered() {
+        long rtt = clock.elapsedRealtime() - probeSentAt;
+        keepalive.onProbeAnswered(rtt, probeIdleMs);
+        send("[\"CLOSE\",\"" + probeSubscriptionId + "\"]");
+        probeSubscriptionId = null;
+        scheduler.cancel(probeTimeoutRunnable);
+        Log.d(TAG, "Keepalive probe answered by " + url + " in " + rtt + "ms after " + (probeIdleMs / 1000) + "s idle (" + keepalive + ")");
+        scheduleWatchdog(keepalive.intervalMs());
+    }
+
+    private void onProbeTimeout() {
+        if (webSocket == null || probeSubscriptionId == null) return;
+        if (lastFrameAt >= probeSentAt) {
+            // Other frames arrived, the socket is alive even if the relay is slow to answer the probe
+            scheduleWatchdog(keepalive.intervalMs());
+            return;
+        }
+        keepalive.onProbeTimedOut(probeIdleMs);
+        Log.w(TAG, "Keepalive probe unanswered by " + url + " after " + (probeIdleMs / 1000) + "s idle, dropping half-open socket (" + keepalive + ")");
+        WebSocket socket = webSocket;
+        socket.cancel();
+        onSocketGone(socket, "half_open");
+    }
+
+    /**
+     * Hands every callback to the service thread; only frame parsing stays on the reader thread
+     */
+    private final class SocketListener extends WebSocketListener {
+        @Override
+        public void onOpen(final WebSocket socket, Response response) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (socket != webSocket) return;
+                    Log.d(TAG, "WebSocket connected to: " + url);
+                    lastFrameAt = clock.elapsedRealtime();
+                    scheduleWatchdog(keepalive.intervalMs());
+                    PushMetrics.get().record(PushMetrics.CONNECT_LATENCY_MS, clock.elapsedRealtime() - connectStartedAt);
+                    stateMachine.onSocketOpen();
+                    listener.onRelayOpen(RelayConnection.this);
+                    flush();
+                }
+            }, 0);
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, String text) {
+            long startNanos = System.nanoTime();
+            try {
+                deliver(socket, RelayFrameParser.parse(text, subscriptions.ids()), startNanos);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to parse message from " + url + ": " + text, e);
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket socket, ByteString bytes) {
+            long startNanos = System.nanoTime();
+            try {
+                deliver(socket, RelayFrameParser.parse(bytes, subscriptions.ids()), startNanos);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to parse message from " + url + ": " + bytes.utf8(), e);
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket socket, int code, String reason) {
+            Log.d(TAG, "WebSocket closing: " + url + " " + code + " " + reason);
+            socket.close(1000, null);
+        }
+
+        @Override
+        public void onClosed(final WebSocket socket, int code, String reason) {
+            Log.d(TAG, "WebSocket closed: " + url + " " + code + " " + reason);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onSocketGone(socket, "closed");
+                }
+            }, 0);
+        }
+
+        @Override
+        public void onFailure(final WebSocket socket, Throwable t, Response response) {
+            Log.e(TAG, "WebSocket failure: " + url, t);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onSocketGone(socket, "failure");
+                }
+            }, 0);
+        }
+
+        private void deliver(final WebSocket socket, final RelayFrame frame, long parseStartNanos) {
+            PushMetrics metrics = PushMetrics.get();
+            metrics.record(PushMetrics.PARSE_TIME_US, (System.nanoTime() - parseStartNanos) / 1000);
+            // Unrecognized frames share frames.UNKNOWN, a relay's made-up types mustn't grow the counter map
+            metrics.increment(PushMetrics.FRAMES_PREFIX + frame.type);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (socket != webSocket) return;
+                    lastFrameAt = clock.elapsedRealtime();
+                    if (probeSubscriptionId != null && probeSubscriptionId.equals(frame.subscriptionId)) {
+                        if (frame.type == RelayFrame.Type.EOSE || frame.type == RelayFrame.Type.CLOSED) {
+                            onProbeAnswered();
+                        }
+                        return;
+                    }
+                    listener.onRelayFrame(RelayConnection.this, frame);
+                }
+            }, 0);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.oxchat.lite;
+
+/**
+ * Decoded relay-to-client frame (NIP-01)
+ * EVENT frames carry the whole event so its id and signature can be checked; other frames keep only what the push service acts on
+ */
+final class RelayFrame {
+    enum Type {
+        EVENT,
+        EOSE,
+        OK,
+        NOTICE,
+        CLOSED,
+        AUTH,
+        COUNT,
+        UNKNOWN
+    }
+
+    Type type = Type.UNKNOWN;
+    // Raw message type, kept for logging frames we don't understand
+    String typeName;
+    // EVENT / EOSE / CLOSED / COUNT
+    String subscriptionId;
+    // EVENT id, or the id an OK frame refers to
+    String eventId;
+    int kind = -1;
+    long createdAt = -1;
+    // First NIP-29 "h" tag of an EVENT
+    String groupId;
+    // Remaining EVENT fields, for id and signature verification; tags is null if any tag is not an array of strings
+    String pubkey;
+    String[][] tags;
+    String content;
+    String sig;
+    // OK status
+    boolean accepted;
+    // NIP-45 COUNT result, -1 if missing
+    long count = -1;
+    boolean approximate;
+    // NOTICE / CLOSED / OK message, or AUTH challenge
+    String message;
+
+    @Override
+    public String toString() {
+        return "RelayFrame{type=" + (type == Type.UNKNOWN ? typeName : type)
+                + ", subscriptionId=" + subscriptionId
+                + ", eventId=" + eventId
+                + ", kind=" + kind
+                + ", createdAt=" + createdAt
+                + ", groupId=" + groupId
+                + ", accepted=" + accepted
+                + ", count=" + count
+                + ", message=" + message + "}";
+    }
+}
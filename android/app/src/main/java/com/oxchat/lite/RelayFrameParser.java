@@ -0,0 +1,238 @@
+package com.oxchat.lite;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import okio.ByteString;
+
+/**
+ * Streaming decoder for relay frames, built on Jackson JsonParser
+ * Reads the message type and the fields of each frame type without building a JSON tree
+ * EVENT frames are read in full, the push service verifies their id and signature before acting on them, unless
+ * their subscription is not one of the given ids: the service drops those, so only their subscription id is kept
+ */
+final class RelayFrameParser {
+    // JsonFactory is thread-safe and recycles its parse buffers
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private RelayFrameParser() {
+    }
+
+    /**
+     * Parse a text frame
+     */
+    static RelayFrame parse(String message) throws IOException {
+        return parse(message, null);
+    }
+
+    /**
+     * Parse a text frame
+     * @param subscriptionIds subscriptions whose EVENTs are read in full, null for all
+     */
+    static RelayFrame parse(String message, Set<String> subscriptionIds) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(message)) {
+            return parse(parser, subscriptionIds);
+        }
+    }
+
+    /**
+     * Parse a binary frame
+     */
+    static RelayFrame parse(ByteString bytes) throws IOException {
+        return parse(bytes, null);
+    }
+
+    /**
+     * Parse a binary frame from its UTF-8 bytes, read in place through a ByteBuffer view
+     * @param subscriptionIds subscriptions whose EVENTs are read in full, null for all
+     */
+    static RelayFrame parse(ByteString bytes, Set<String> subscriptionIds) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(new ByteBufferBackedInputStream(bytes.asByteBuffer()))) {
+            return parse(parser, subscriptionIds);
+        }
+    }
+
+    private static RelayFrame parse(JsonParser parser, Set<String> subscriptionIds) throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "Relay frame is not a JSON array");
+        }
+        if (parser.nextToken() != JsonToken.VALUE_STRING) {
+            throw new JsonParseException(parser, "Relay frame has no message type");
+        }
+
+        RelayFrame frame = new RelayFrame();
+        frame.typeName = parser.getText();
+        switch (frame.typeName) {
+            case "EVENT":
+                // ["EVENT", subscriptionId, {event}]
+                frame.type = RelayFrame.Type.EVENT;
+                frame.subscriptionId = nextString(parser);
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    if (subscriptionIds == null || subscriptionIds.contains(frame.subscriptionId)) {
+                        readEvent(parser, frame);
+                    } else {
+                        // Tokenized but not decoded, the strings in it are never materialized
+                        parser.skipChildren();
+                    }
+                }
+                break;
+            case "EOSE":
+                // ["EOSE", subscriptionId]
+                frame.type = RelayFrame.Type.EOSE;
+                frame.subscriptionId = nextString(parser);
+                break;
+            case "OK":
+                // ["OK", eventId, accepted, message]
+                frame.type = RelayFrame.Type.OK;
+                frame.eventId = nextString(parser);
+                frame.accepted = parser.nextToken() == JsonToken.VALUE_TRUE;
+                frame.message = nextString(parser);
+                break;
+            case "NOTICE":
+                // ["NOTICE", message]
+                frame.type = RelayFrame.Type.NOTICE;
+                frame.message = nextString(parser);
+                break;
+            case "CLOSED":
+                // ["CLOSED", subscriptionId, message]
+                frame.type = RelayFrame.Type.CLOSED;
+                frame.subscriptionId = nextString(parser);
+                frame.message = nextString(parser);
+                break;
+            case "AUTH":
+                // ["AUTH", challenge]
+                frame.type = RelayFrame.Type.AUTH;
+                frame.message = nextString(parser);
+                break;
+            case "COUNT":
+                // ["COUNT", subscriptionId, {"count": n, "approximate": bool}]
+                frame.type = RelayFrame.Type.COUNT;
+                frame.subscriptionId = nextString(parser);
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    readCount(parser, frame);
+                }
+                break;
+            default:
+                frame.type = RelayFrame.Type.UNKNOWN;
+                break;
+        }
+        // Trailing elements are irrelevant to the push service, the parser is closed without reading them
+        return frame;
+    }
+
+    /**
+     * Read the event fields; unknown fields are skipped
+     */
+    private static void readEvent(JsonParser parser, RelayFrame frame) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "id":
+                    frame.eventId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    break;
+                case "pubkey":
+                    frame.pubkey = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    break;
+                case "kind":
+                    if (value == JsonToken.VALUE_NUMBER_INT) {
+                        frame.kind = parser.getIntValue();
+                    }
+                    break;
+                case "created_at":
+                    if (value == JsonToken.VALUE_NUMBER_INT) {
+                        frame.createdAt = parser.getLongValue();
+                    }
+                    break;
+                case "tags":
+                    if (value == JsonToken.START_ARRAY) {
+                        readTags(parser, frame);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "content":
+                    frame.content = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    break;
+                case "sig":
+                    frame.sig = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Read the count result; unknown fields are skipped
+     */
+    private static void readCount(JsonParser parser, RelayFrame frame) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("count".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                frame.count = parser.getLongValue();
+            } else if ("approximate".equals(field)) {
+                frame.approximate = value == JsonToken.VALUE_TRUE;
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Read the tags array and keep the first NIP-29 group tag ["h", groupId]
+     * A tag that is not an array of strings leaves frame.tags null, the event then fails verification
+     */
+    private static void readTags(JsonParser parser, RelayFrame frame) throws IOException {
+        List<String[]> tags = new ArrayList<>();
+        List<String> tag = new ArrayList<>();
+        boolean wellFormed = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (token != JsonToken.START_ARRAY) {
+                wellFormed = false;
+                parser.skipChildren();
+                continue;
+            }
+            tag.clear();
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                if (element == JsonToken.VALUE_STRING) {
+                    tag.add(parser.getText());
+                } else {
+                    wellFormed = false;
+                    parser.skipChildren();
+                }
+            }
+            if (frame.groupId == null && tag.size() >= 2 && "h".equals(tag.get(0))) {
+                frame.groupId = tag.get(1);
+            }
+            tags.add(tag.toArray(new String[0]));
+        }
+        frame.tags = wellFormed ? tags.toArray(new String[0][]) : null;
+    }
+
+    /**
+     * Read the next array element as a string, or null if it is missing or not a string
+     */
+    private static String nextString(JsonParser parser) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        if (token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+            parser.skipChildren();
+        }
+        return null;
+    }
+}
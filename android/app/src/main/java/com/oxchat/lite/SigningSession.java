@@ -0,0 +1,88 @@
+package com.oxchat.lite;
+
+import android.os.Handler;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import fr.acinq.secp256k1.Secp256k1;
+
+/**
+ * Holds the decrypted push private key between NIP-42 AUTH challenges
+ * The key is decrypted from the Keystore once and kept in a byte array that is zeroed after idleTtlMs without use,
+ * on cleanup and on memory pressure; the SecureRandom for BIP340 aux data is created once and reused
+ *
+ * Not thread-safe: confined to the push service thread, which also runs the idle timer
+ */
+final class SigningSession {
+    static final long DEFAULT_IDLE_TTL_MS = 5 * 60 * 1000; // 5 minutes
+
+    private final Handler handler;
+    private final Secp256k1 secp256k1;
+    private final long idleTtlMs;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final byte[] aux = new byte[32];
+    private final Runnable wipeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            wipe();
+        }
+    };
+
+    private byte[] privkey;
+
+    SigningSession(Handler handler, Secp256k1 secp256k1, long idleTtlMs) {
+        this.handler = handler;
+        this.secp256k1 = secp256k1;
+        this.idleTtlMs = idleTtlMs;
+    }
+
+    boolean isUnlocked() {
+        return privkey != null;
+    }
+
+    /**
+     * Take ownership of a 32-byte private key, the caller must not keep or reuse the array
+     */
+    void unlock(byte[] key) {
+        if (key.length != 32) {
+            Arrays.fill(key, (byte) 0);
+            throw new IllegalArgumentException("Private key must be 32 bytes, got: " + key.length);
+        }
+        wipe();
+        privkey = key;
+        touch();
+    }
+
+    /**
+     * BIP340 Schnorr signature of a 32-byte hash, or null if the session is locked
+     */
+    byte[] signSchnorr(byte[] hash) {
+        if (privkey == null || secp256k1 == null) {
+            return null;
+        }
+        touch();
+        secureRandom.nextBytes(aux);
+        try {
+            return secp256k1.signSchnorr(hash, privkey, aux);
+        } finally {
+            Arrays.fill(aux, (byte) 0);
+        }
+    }
+
+    /**
+     * Zero the key and drop it, the next signature needs a new unlock()
+     */
+    void wipe() {
+        handler.removeCallbacks(wipeRunnable);
+        if (privkey != null) {
+            Arrays.fill(privkey, (byte) 0);
+            privkey = null;
+        }
+    }
+
+    private void touch() {
+        handler.removeCallbacks(wipeRunnable);
+        handler.postDelayed(wipeRunnable, idleTtlMs);
+    }
+}
@@ -0,0 +1,218 @@
+package com.oxchat.lite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The push subscriptions of one relay: the watched group ids sharded over at most maxSubscriptions REQs of at most
+ * maxGroupsPerSubscription "#h" values each
+ * update() applies a new group set by touching only the shards whose groups changed, the service then sends a CLOSE
+ * for every returned id and a REQ for every pending() shard
+ *
+ * Not thread-safe: confined to the push service thread, except for ids()
+ */
+final class SubscriptionSet {
+    // Relays commonly allow 10 to 20 subscriptions per connection, one is left for the keepalive probe
+    static final int DEFAULT_MAX_SUBSCRIPTIONS = 8;
+    // Relays cap the values of one filter, 100 stays well under the usual limits
+    static final int DEFAULT_MAX_GROUPS_PER_SUBSCRIPTION = 100;
+
+    static final class Shard {
+        String id;
+        final Set<String> groups = new LinkedHashSet<>();
+        // A REQ for this id is open on the current socket
+        boolean active;
+        // Groups changed since the last REQ, or the REQ has to be repeated
+        boolean dirty = true;
+        // Stored events of the current REQ are done
+        boolean eoseReceived;
+        // Since cursor when the REQ was sent, 0 if there was none
+        long subscribedSince;
+
+        Shard(String id) {
+            this.id = id;
+        }
+    }
+
+    private final int maxSubscriptions;
+    private final int maxGroupsPerSubscription;
+    private final List<Shard> shards = new ArrayList<>();
+    private final Random random = new Random();
+    // Groups of the last update that didn't fit into any shard
+    private int overflow;
+    // Copy of the shard ids for the socket reader thread, replaced whenever an id comes or goes
+    private volatile Set<String> ids = Collections.emptySet();
+
+    SubscriptionSet(int maxSubscriptions, int maxGroupsPerSubscription) {
+        this.maxSubscriptions = maxSubscriptions;
+        this.maxGroupsPerSubscription = maxGroupsPerSubscription;
+    }
+
+    /**
+     * Watch exactly these groups
+     * Removed groups leave their shard, which is re-sent or, once empty, closed; added groups go to shards that are
+     * re-sent anyway, then to new shards, then to shards with room left, so unchanged shards stay untouched
+     * @return ids of the subscriptions to CLOSE
+     */
+    List<String> update(Collection<String> groups) {
+        Set<String> added = new LinkedHashSet<>(groups);
+        List<String> closed = new ArrayList<>();
+        Iterator<Shard> iterator = shards.iterator();
+        while (iterator.hasNext()) {
+            Shard shard = iterator.next();
+            if (shard.groups.retainAll(added)) {
+                if (shard.groups.isEmpty()) {
+                    if (shard.active) {
+                        closed.add(shard.id);
+                    }
+                    iterator.remove();
+                    continue;
+                }
+                shard.dirty = true;
+            }
+            added.removeAll(shard.groups);
+        }
+        overflow = 0;
+        for (String group : added) {
+            Shard shard = shardWithRoom();
+            if (shard == null) {
+                overflow++;
+                continue;
+            }
+            shard.groups.add(group);
+            shard.dirty = true;
+        }
+        publishIds();
+        return closed;
+    }
+
+    private Shard shardWithRoom() {
+        Shard fallback = null;
+        for (Shard shard : shards) {
+            if (shard.groups.size() >= maxGroupsPerSubscription) continue;
+            if (shard.dirty) {
+                return shard;
+            }
+            if (fallback == null) {
+                fallback = shard;
+            }
+        }
+        if (shards.size() < maxSubscriptions) {
+            Shard shard = new Shard(newId());
+            shards.add(shard);
+            return shard;
+        }
+        return fallback;
+    }
+
+    /**
+     * Shards whose REQ has to be sent
+     */
+    List<Shard> pending() {
+        List<Shard> result = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.dirty) {
+                result.add(shard);
+            }
+        }
+        return result;
+    }
+
+    void onRequestSent(Shard shard, long since) {
+        shard.active = true;
+        shard.dirty = false;
+        shard.eoseReceived = false;
+        shard.subscribedSince = since;
+    }
+
+    /**
+     * The relay closed a subscription, it is sent again with the next reset()
+     */
+    void onClosedByRelay(Shard shard) {
+        shard.active = false;
+        shard.eoseReceived = true;
+    }
+
+    /**
+     * Every subscription has to be sent again: a new socket, or a new AUTH state
+     * @param newIds whether to use fresh subscription ids, some relays refuse ids they closed before AUTH
+     * @return ids replaced while their REQ was still open on the socket, to CLOSE before the new REQs go out
+     */
+    List<String> reset(boolean newIds) {
+        List<String> replaced = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (newIds) {
+                if (shard.active) {
+                    replaced.add(shard.id);
+                }
+                shard.id = newId();
+            }
+            shard.active = false;
+            shard.dirty = true;
+            shard.eoseReceived = false;
+        }
+        if (newIds) {
+            publishIds();
+        }
+        return replaced;
+    }
+
+    Shard find(String subscriptionId) {
+        if (subscriptionId == null) return null;
+        for (Shard shard : shards) {
+            if (subscriptionId.equals(shard.id)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ids of the current shards; safe to call from any thread
+     * EVENTs for any other id are dropped by the service, the socket reader uses this to skip their body
+     */
+    Set<String> ids() {
+        return ids;
+    }
+
+    private void publishIds() {
+        Set<String> snapshot = new HashSet<>();
+        for (Shard shard : shards) {
+            snapshot.add(shard.id);
+        }
+        ids = Collections.unmodifiableSet(snapshot);
+    }
+
+    /**
+     * Whether no subscription is still expected to deliver stored events
+     */
+    boolean allEoseReceived() {
+        for (Shard shard : shards) {
+            if (shard.dirty || (shard.active && !shard.eoseReceived)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return shards.size();
+    }
+
+    int overflow() {
+        return overflow;
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[8];
+        random.nextBytes(bytes);
+        return Hex.encode(bytes);
+    }
+}
@@ -0,0 +1,391 @@
+package com.oxchat.lite;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Unread messages per group counted by the relays (NIP-45 COUNT) since the read marker the Flutter app handed over,
+ * so the push notification can say "N new messages in M chats" without downloading the messages or starting Flutter
+ *
+ * COUNT answers one number per request, so each group gets its own; requests are queued and sent at most
+ * MAX_IN_FLIGHT_PER_RELAY at a time per relay, each holds a subscription slot until it is answered. Answers are kept
+ * until a new event of the group arrives, its marker moves, or the TTL runs out
+ * A relay that closes a COUNT is taken for one without NIP-45 and isn't asked again; one that leaves MAX_TIMEOUTS
+ * rounds of COUNTs in a row unanswered while connected is skipped for the TTL, it may just have been slow.
+ * A COUNT closed for missing AUTH is queued again and the relay is skipped until its AUTH went through
+ *
+ * Not thread-safe: confined to the push service thread
+ */
+final class UnreadCounter {
+    private static final String TAG = "UnreadCounter";
+    // NIP-29 chat messages and NIP-EE group messages, both carry the group in an "h" tag
+    static final int[] DEFAULT_KINDS = {9, 445};
+    // Counts only change with new events, which invalidate them anyway; the TTL catches messages read elsewhere
+    static final long DEFAULT_TTL_MS = 30 * 60 * 1000;
+    static final long DEFAULT_TIMEOUT_MS = 10 * 1000;
+    static final int MAX_IN_FLIGHT_PER_RELAY = 4;
+    static final int MAX_TIMEOUTS = 3;
+    private static final String AUTH_REQUIRED_PREFIX = "auth-required:";
+
+    static final class Totals {
+        final long messages;
+        final int groups;
+
+        Totals(long messages, int groups) {
+            this.messages = messages;
+            this.groups = groups;
+        }
+    }
+
+    private static final class Count {
+        final long count;
+        final long fetchedAt;
+        // A new event arrived after the answer, shown until a fresh one comes
+        boolean stale;
+
+        Count(long count, long fetchedAt) {
+            this.count = count;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static final class InFlight {
+        final String group;
+        final String relayUrl;
+        final long since;
+        final long sentAt;
+
+        InFlight(String group, String relayUrl, long since, long sentAt) {
+            this.group = group;
+            this.relayUrl = relayUrl;
+            this.since = since;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final int[] kinds;
+    private final long ttlMs;
+    private final long timeoutMs;
+    // created_at (seconds) of the last message the user read, per group
+    private final Map<String, Long> markers = new HashMap<>();
+    private final Map<String, Count> counts = new HashMap<>();
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    private final Set<String> queued = new HashSet<>();
+    // By subscription id
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final Set<String> unsupportedRelays = new HashSet<>();
+    private final Set<String> awaitingAuthRelays = new HashSet<>();
+    // Rounds of timed out COUNTs in a row per relay, any answer starts over
+    private final Map<String, Integer> timeouts = new HashMap<>();
+    // Relays that timed out MAX_TIMEOUTS times in a row, skipped until then
+    private final Map<String, Long> silentUntil = new HashMap<>();
+    private final Random random = new Random();
+
+    UnreadCounter(int[] kinds, long ttlMs, long timeoutMs) {
+        this.kinds = kinds;
+        this.ttlMs = ttlMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Merge read markers from the app, a marker of 0 or less removes the group
+     * @return whether any marker changed
+     */
+    boolean setMarkers(Map<String, Long> newMarkers) {
+        boolean changed = false;
+        for (Map.Entry<String, Long> entry : newMarkers.entrySet()) {
+            String group = entry.getKey();
+            long marker = entry.getValue() != null ? entry.getValue() : 0;
+            Long current = markers.get(group);
+            if (marker <= 0) {
+                if (current == null) continue;
+                markers.remove(group);
+            } else if (current != null && current == marker) {
+                continue;
+            } else {
+                markers.put(group, marker);
+            }
+            // The old answer counted from the old marker
+            counts.remove(group);
+            changed = true;
+        }
+        return changed;
+    }
+
+    Map<String, Long> markers() {
+        return markers;
+    }
+
+    /**
+     * New events of these groups arrived, their counts are asked again
+     */
+    void onNewEvents(Collection<String> groups) {
+        for (String group : groups) {
+            Count count = counts.get(group);
+            if (count != null) {
+                count.stale = true;
+            }
+        }
+    }
+
+    /**
+     * Queue a COUNT for every group with a marker whose count is missing, stale or expired
+     */
+    void refresh(long now) {
+        for (String group : markers.keySet()) {
+            Count count = counts.get(group);
+            boolean fresh = count != null && !count.stale && now - count.fetchedAt < ttlMs;
+            if (!fresh && !isPending(group)) {
+                queue.addLast(group);
+                queued.add(group);
+            }
+        }
+    }
+
+    /**
+     * Send queued COUNTs over the open relays that take them
+     * @return number of COUNTs sent
+     */
+    int pump(Collection<RelayConnection> relays, long now) {
+        int sent = 0;
+        for (RelayConnection relay : relays) {
+            if (queue.isEmpty()) break;
+            if (!relay.isOpen() || unsupportedRelays.contains(relay.url)) continue;
+            if (awaitingAuthRelays.contains(relay.url) || isSilent(relay.url, now)) continue;
+            int slots = MAX_IN_FLIGHT_PER_RELAY - inFlightOn(relay.url);
+            while (slots > 0 && !queue.isEmpty()) {
+                String group = queue.pollFirst();
+                queued.remove(group);
+                Long since = markers.get(group);
+                if (since == null) continue;
+                String subscriptionId = "count-" + newId();
+                String request = buildRequest(subscriptionId, group, since);
+                if (request == null || !relay.sendCount(subscriptionId, request)) {
+                    queue.addFirst(group);
+                    queued.add(group);
+                    break;
+                }
+                inFlight.put(subscriptionId, new InFlight(group, relay.url, since, now));
+                PushMetrics.get().increment(PushMetrics.COUNT_REQUESTS);
+                slots--;
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * ["COUNT", subscriptionId, {"kinds": [...], "#h": [group], "since": marker}]
+     */
+    private String buildRequest(String subscriptionId, String group, long since) {
+        try {
+            JSONObject filter = new JSONObject();
+            JSONArray kindsArray = new JSONArray();
+            for (int kind : kinds) {
+                kindsArray.put(kind);
+            }
+            filter.put("kinds", kindsArray);
+            filter.put("#h", new JSONArray().put(group));
+            // The marker is the last message read, only later ones count
+            filter.put("since", since + 1);
+            return new JSONArray().put("COUNT").put(subscriptionId).put(filter).toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to create COUNT request", e);
+            return null;
+        }
+    }
+
+    /**
+     * A COUNT answer
+     * @return false if the subscription isn't one of ours
+     */
+    boolean onCount(String subscriptionId, long count, long now) {
+        InFlight request = inFlight.remove(subscriptionId);
+        if (request == null) return false;
+        PushMetrics.get().record(PushMetrics.COUNT_RTT_MS, now - request.sentAt);
+        timeouts.remove(request.relayUrl);
+        Long marker = markers.get(request.group);
+        if (marker == null || marker != request.since) {
+            // The marker moved while the COUNT was out, the answer is for the old one
+            return true;
+        }
+        if (count >= 0) {
+            counts.put(request.group, new Count(count, now));
+        }
+        return true;
+    }
+
+    /**
+     * The relay closed one of our COUNTs: it doesn't support them, or wants AUTH first
+     * @return false if the subscription isn't one of ours
+     */
+    boolean onClosed(String subscriptionId, String message) {
+        InFlight request = inFlight.remove(subscriptionId);
+        if (request == null) return false;
+        if (message != null && message.startsWith(AUTH_REQUIRED_PREFIX)) {
+            awaitingAuthRelays.add(request.relayUrl);
+        } else {
+            markUnsupported(request.relayUrl, message);
+        }
+        requeue(request.group);
+        return true;
+    }
+
+    /**
+     * The relay accepted AUTH, COUNTs it closed for missing AUTH can go to it again
+     */
+    void onAuthenticated(String relayUrl) {
+        awaitingAuthRelays.remove(relayUrl);
+    }
+
+    /**
+     * Give up on COUNTs that got no answer in time
+     * An open relay that didn't answer counts a timeout, requests out together make one; a relay that went away
+     * just loses its requests to the others
+     * @return whether any request timed out
+     */
+    boolean expire(Map<String, RelayConnection> relays, long now) {
+        Set<String> timedOut = new HashSet<>();
+        boolean expired = false;
+        Iterator<InFlight> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            InFlight request = iterator.next();
+            if (now - request.sentAt < timeoutMs) continue;
+            iterator.remove();
+            RelayConnection relay = relays.get(request.relayUrl);
+            if (relay != null && relay.isOpen()) {
+                timedOut.add(request.relayUrl);
+            }
+            requeue(request.group);
+            expired = true;
+        }
+        for (String relayUrl : timedOut) {
+            Integer count = timeouts.get(relayUrl);
+            int inARow = count != null ? count + 1 : 1;
+            if (inARow < MAX_TIMEOUTS) {
+                timeouts.put(relayUrl, inARow);
+                continue;
+            }
+            timeouts.remove(relayUrl);
+            silentUntil.put(relayUrl, now + ttlMs);
+            PushMetrics.get().increment(PushMetrics.COUNT_SILENT);
+            Log.d(TAG, relayUrl + " left " + MAX_TIMEOUTS + " rounds of COUNTs unanswered, not asking it for "
+                    + ttlMs + "ms");
+        }
+        return expired;
+    }
+
+    /**
+     * Whether no COUNT is out, the counts of this round are as complete as they get
+     */
+    boolean isIdle() {
+        return inFlight.isEmpty();
+    }
+
+    /**
+     * Delay until the oldest COUNT out times out, -1 if none is
+     */
+    long nextTimeoutMs(long now) {
+        long next = -1;
+        for (InFlight request : inFlight.values()) {
+            long delay = Math.max(0, request.sentAt + timeoutMs - now);
+            if (next < 0 || delay < next) {
+                next = delay;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Unread messages and chats: the relay count of a group where there is one, else the events notified locally
+     * @param localCounts events per group shown in the current notification
+     */
+    Totals totals(Map<String, Integer> localCounts) {
+        long messages = 0;
+        int groups = 0;
+        Set<String> all = new LinkedHashSet<>(localCounts.keySet());
+        all.addAll(counts.keySet());
+        for (String group : all) {
+            Integer local = localCounts.get(group);
+            Count count = counts.get(group);
+            long unread = Math.max(local != null ? local : 0, count != null ? count.count : 0);
+            if (unread > 0) {
+                messages += unread;
+                groups++;
+            }
+        }
+        return new Totals(messages, groups);
+    }
+
+    /**
+     * Drop counts, queue and requests, e.g. for another account; markers stay
+     */
+    void clear() {
+        counts.clear();
+        queue.clear();
+        queued.clear();
+        inFlight.clear();
+        unsupportedRelays.clear();
+        awaitingAuthRelays.clear();
+        timeouts.clear();
+        silentUntil.clear();
+    }
+
+    private boolean isPending(String group) {
+        if (queued.contains(group)) return true;
+        for (InFlight request : inFlight.values()) {
+            if (request.group.equals(group)) return true;
+        }
+        return false;
+    }
+
+    private boolean isSilent(String relayUrl, long now) {
+        Long until = silentUntil.get(relayUrl);
+        if (until == null) return false;
+        if (now < until) return true;
+        silentUntil.remove(relayUrl);
+        return false;
+    }
+
+    private int inFlightOn(String relayUrl) {
+        int count = 0;
+        for (InFlight request : inFlight.values()) {
+            if (request.relayUrl.equals(relayUrl)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void requeue(String group) {
+        if (markers.containsKey(group) && queued.add(group)) {
+            queue.addLast(group);
+        }
+    }
+
+    private void markUnsupported(String relayUrl, String reason) {
+        if (unsupportedRelays.add(relayUrl)) {
+            PushMetrics.get().increment(PushMetrics.COUNT_UNSUPPORTED);
+            Log.d(TAG, relayUrl + " doesn't count (" + reason + "), not asking it again");
+        }
+    }
+
+    private String newId() {
+        byte[] bytes = new byte[8];
+        random.nextBytes(bytes);
+        return Hex.encode(bytes);
+    }
+}
@@ -0,0 +1,85 @@
+package com.oxchat.nostr;
+
+import android.content.Context;
+
+import com.oxchat.nostr.channel.AppPreferences;
+
+import io.flutter.FlutterInjector;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.FlutterEngineGroup;
+import io.flutter.embedding.engine.dart.DartExecutor;
+
+/**
+ * Engines of MultiEngineActivity and headless engines, spawned from one FlutterEngineGroup per process
+ * Engines of a group share the loaded isolate snapshot and GPU context, so only the first one pays for a cold engine;
+ * a spawned engine costs a new isolate, not a new VM. A group shares only while one of its engines is alive
+ * No engine is prewarmed: the app picks its root widget once, from the initial route, so an engine can only be
+ * started for the page it will show
+ *
+ * Main thread only
+ */
+public final class FlutterEngines {
+    private static final String ENGINE_ID_PREFIX = "multi_engine_";
+
+    private static FlutterEngineGroup engineGroup;
+    private static int nextEngineId;
+
+    private FlutterEngines() {
+    }
+
+    private static FlutterEngineGroup group(Context context) {
+        if (engineGroup == null) {
+            engineGroup = new FlutterEngineGroup(context.getApplicationContext());
+        }
+        return engineGroup;
+    }
+
+    /**
+     * Start an engine at the route and put it into FlutterEngineCache
+     * @return id of the engine in FlutterEngineCache
+     */
+    public static String spawn(Context context, String initialRoute) {
+        FlutterEngine engine = createEngine(context, initialRoute);
+        String engineId = ENGINE_ID_PREFIX + nextEngineId++;
+        cacheEngine(engineId, engine);
+        return engineId;
+    }
+
+    /**
+     * Start an engine without UI running a top-level Dart function of the app, e.g. for background work
+     * Shares the group like every other engine, the caller owns and destroys it
+     */
+    public static FlutterEngine spawnHeadless(Context context, String dartEntrypoint) {
+        FlutterEngineGroup group = group(context);
+        // The group finished loading the app bundle, its path is known now
+        String appBundlePath = FlutterInjector.instance().flutterLoader().findAppBundlePath();
+        FlutterEngineGroup.Options options = new FlutterEngineGroup.Options(context.getApplicationContext())
+                .setDartEntrypoint(new DartExecutor.DartEntrypoint(appBundlePath, dartEntrypoint));
+        return group.createAndRunEngine(options);
+    }
+
+    private static FlutterEngine createEngine(Context context, String initialRoute) {
+        FlutterEngineGroup.Options options = new FlutterEngineGroup.Options(context.getApplicationContext())
+                .setDartEntrypoint(DartExecutor.DartEntrypoint.createDefault())
+                .setInitialRoute(initialRoute);
+        // GeneratedPluginRegistrant runs as part of the spawn, only the app's own plugin is left to add
+        FlutterEngine engine = group(context).createAndRunEngine(options);
+        engine.getPlugins().add(new AppPreferences());
+        return engine;
+    }
+
+    private static void cacheEngine(final String engineId, final FlutterEngine engine) {
+        FlutterEngineCache.getInstance().put(engineId, engine);
+        engine.addEngineLifecycleListener(new FlutterEngine.EngineLifecycleListener() {
+            @Override
+            public void onPreEngineRestart() {
+            }
+
+            @Override
+            public void onEngineWillDestroy() {
+                FlutterEngineCache.getInstance().remove(engineId);
+            }
+        });
+    }
+}
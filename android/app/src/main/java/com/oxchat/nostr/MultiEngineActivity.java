@@ -28,6 +28,13 @@ public class MultiEngineActivity extends FlutterFragmentActivity {
         return new MultiEngineActivity.NewMyEngineIntentBuilder(activityClass);
     }
 
+    /**
+     * Launch with an engine from FlutterEngines.spawn(), the engine is destroyed with the activity
+     */
+    public static MultiEngineActivity.CachedMyEngineIntentBuilder withCachedEngine(String engineId) {
+        return new MultiEngineActivity.CachedMyEngineIntentBuilder(MultiEngineActivity.class, engineId);
+    }
+
     public static class NewMyEngineIntentBuilder extends NewEngineIntentBuilder{
 
         protected NewMyEngineIntentBuilder(Class<? extends FlutterFragmentActivity> activityClass) {
@@ -35,6 +42,14 @@ public class MultiEngineActivity extends FlutterFragmentActivity {
         }
     }
 
+    public static class CachedMyEngineIntentBuilder extends CachedEngineIntentBuilder {
+
+        protected CachedMyEngineIntentBuilder(Class<? extends FlutterFragmentActivity> activityClass, String engineId) {
+            super(activityClass, engineId);
+            destroyEngineWithActivity(true);
+        }
+    }
+
     public static String getFullRoute(String route,String params){
 
         JSONObject jsonObject = new JSONObject();
@@ -51,6 +66,10 @@ public class MultiEngineActivity extends FlutterFragmentActivity {
 
     @Override
     public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
+        if (getCachedEngineId() != null) {
+            // Plugins were registered when FlutterEngines spawned the engine
+            return;
+        }
         GeneratedPluginRegistrant.registerWith(flutterEngine);
         flutterEngine.getPlugins().add(new AppPreferences());
 
@@ -2,6 +2,8 @@ package com.oxchat.nostr;
 
 import androidx.multidex.MultiDexApplication;
 
+import com.oxchat.lite.AppForegroundTracker;
+
 /**
  * Title: YLApplication
  * Description: TODO(Fill in by oneself)
@@ -12,7 +14,8 @@ import androidx.multidex.MultiDexApplication;
  * @since JDK1.8
  */
 public class OXApplication extends MultiDexApplication {
-
+    // Process of PushNotificationService, see AndroidManifest.xml
+    private static final String PUSH_PROCESS_SUFFIX = ":push";
 
     @Override
     public void onCreate() {
@@ -25,6 +28,17 @@ public class OXApplication extends MultiDexApplication {
 //            setTheme(R.style.LaunchTheme_night);
 //        }
         super.onCreate();
+        if (isPushProcess()) {
+            // Only the push service runs here, it needs none of the UI process setup
+            return;
+        }
+        // Foreground state for the push service and isAppInBackground, without polling ActivityManager
+        AppForegroundTracker.install(this);
+
+    }
 
+    private boolean isPushProcess() {
+        String processName = getProcessName();
+        return processName != null && processName.endsWith(PUSH_PROCESS_SUFFIX);
     }
 }
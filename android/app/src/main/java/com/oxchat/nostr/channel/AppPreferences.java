@@ -1,21 +1,25 @@
 package com.oxchat.nostr.channel;
 
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.Build;
+import android.os.Bundle;
 
 import androidx.annotation.NonNull;
 
+import com.oxchat.nostr.FlutterEngines;
 import com.oxchat.nostr.MultiEngineActivity;
 import com.oxchat.nostr.util.SharedPreUtils;
 import com.oxchat.nostr.VoiceCallService;
 import com.oxchat.lite.PushNotificationService;
-import com.oxchat.lite.KeystoreHelper;
+import com.oxchat.lite.AppForegroundTracker;
+import com.oxchat.lite.PushServiceClient;
+import com.oxchat.lite.EventInbox;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.flutter.Log;
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
@@ -105,13 +109,9 @@ public class AppPreferences implements MethodChannel.MethodCallHandler, FlutterP
                 mContext.stopService(serviceIntent);
             }
             case "startPushNotificationService" -> {
-                String serverRelay = "";
                 String pubkey = "";
                 String privkey = "";
                 if (paramsMap != null) {
-                    if (paramsMap.containsKey("serverRelay")) {
-                        serverRelay = (String) paramsMap.get("serverRelay");
-                    }
                     if (paramsMap.containsKey("pubkey")) {
                         pubkey = (String) paramsMap.get("pubkey");
                     }
@@ -119,72 +119,158 @@ public class AppPreferences implements MethodChannel.MethodCallHandler, FlutterP
                         privkey = (String) paramsMap.get("privkey");
                     }
                 }
-                // Store private key in Android Keystore (encrypted in memory, not in SharedPreferences)
-                if (!privkey.isEmpty()) {
-                    boolean success = KeystoreHelper.storePrivateKey(mContext, privkey);
-                    if (success) {
-                        Log.d("AppPreferences", "Private key stored in Android Keystore");
-                    } else {
-                        Log.e("AppPreferences", "Failed to store private key in Android Keystore");
+                // Private keys go to the key vault of the :push process (encrypted with an Android Keystore key)
+                // Optional other accounts to push for, [{pubkey, privkey}], replace the accounts in the vault; without
+                // the list the vault keeps its accounts, only stopping the service clears it
+                HashMap<String, String> accounts = null;
+                if (paramsMap != null && paramsMap.get("accounts") instanceof List) {
+                    accounts = new HashMap<>();
+                    for (Object account : (List) paramsMap.get("accounts")) {
+                        if (!(account instanceof Map)) continue;
+                        Object accountPubkey = ((Map) account).get("pubkey");
+                        Object accountPrivkey = ((Map) account).get("privkey");
+                        if (accountPubkey instanceof String && accountPrivkey instanceof String) {
+                            accounts.put((String) accountPubkey, (String) accountPrivkey);
+                        }
                     }
                 }
-                // For Android, deviceId is optional, will use pubkey if not provided
-                Intent serviceIntent = new Intent(mContext, PushNotificationService.class);
-                serviceIntent.putExtra(PushNotificationService.EXTRA_SERVER_RELAY, serverRelay);
-                // deviceId is optional for Android, service will use pubkey if not provided
-                serviceIntent.putExtra(PushNotificationService.EXTRA_PUBKEY, pubkey);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    mContext.startForegroundService(serviceIntent);
-                } else {
-                    mContext.startService(serviceIntent);
+                if (!pubkey.isEmpty() || !privkey.isEmpty() || accounts != null) {
+                    PushServiceClient.get(mContext).storeKeys(pubkey, privkey, accounts, null);
+                }
+                PushServiceClient.Config config = readPushConfig(paramsMap);
+                if (config.relays == null) {
+                    config.relays = new ArrayList<>();
                 }
+                config.pubkey = pubkey;
+                // "persistent" keeps a relay socket open, "batched" syncs from a periodic job instead
+                if (!PushNotificationService.MODE_BATCHED.equals(config.mode)) {
+                    config.mode = PushNotificationService.MODE_PERSISTENT;
+                }
+                PushServiceClient.get(mContext).start(config);
+                result.success(true);
+            }
+            case "updatePushConfig" -> {
+                // Relays, groups and windows of the running service, same arguments as the start, absent ones are kept
+                PushServiceClient.get(mContext).update(readPushConfig(paramsMap));
                 result.success(true);
             }
             case "stopPushNotificationService" -> {
-                Intent stopIntent = new Intent(mContext, PushNotificationService.class);
-                stopIntent.setAction(PushNotificationService.ACTION_STOP);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    mContext.startForegroundService(stopIntent);
-                } else {
-                    mContext.startService(stopIntent);
+                PushServiceClient.get(mContext).stop();
+                result.success(true);
+            }
+            case "getPushServiceState" -> {
+                // {running, mode, networkAvailable, groups, unreadMessages, unreadChats, relays: [...]}
+                PushServiceClient.get(mContext).state(new PushServiceClient.Callback() {
+                    @Override
+                    public void onReply(Bundle data) {
+                        result.success(data != null ? data.getSerializable(PushServiceClient.KEY_VALUE) : null);
+                    }
+                });
+            }
+            case "updatePushReadMarkers" -> {
+                // {markers: {groupId: created_at of the last message read}}, the push notification counts newer ones
+                if (paramsMap != null && paramsMap.get("markers") instanceof Map) {
+                    HashMap<String, Long> markers = new HashMap<>();
+                    for (Object entry : ((Map) paramsMap.get("markers")).entrySet()) {
+                        Object groupId = ((Map.Entry) entry).getKey();
+                        Object readAt = ((Map.Entry) entry).getValue();
+                        if (groupId instanceof String && readAt instanceof Number) {
+                            markers.put((String) groupId, ((Number) readAt).longValue());
+                        }
+                    }
+                    PushServiceClient.get(mContext).setReadMarkers(markers);
                 }
                 result.success(true);
             }
             case "sendAuthResponse" -> {
-                String authJson = "";
-                if (paramsMap != null && paramsMap.containsKey("authJson")) {
-                    authJson = (String) paramsMap.get("authJson");
-                }
-                // Send auth response to push service
-                Intent serviceIntent = new Intent(mContext, PushNotificationService.class);
-                serviceIntent.setAction("com.oxchat.nostr.SEND_AUTH");
-                serviceIntent.putExtra("authJson", authJson);
-                mContext.startService(serviceIntent);
+                // AUTH message signed by the app for a challenge the service couldn't answer itself
+                if (paramsMap != null && paramsMap.get("authJson") instanceof String) {
+                    PushServiceClient.get(mContext).sendAuth((String) paramsMap.get("authJson"));
+                }
                 result.success(true);
             }
             case "getPendingAuthChallenge" -> {
-                // Get pending AUTH challenge from SharedPreferences
-                android.content.SharedPreferences prefs = mContext.getSharedPreferences("push_service", Context.MODE_PRIVATE);
-                String challenge = prefs.getString("auth_challenge", "");
-                String relay = prefs.getString("auth_relay", "");
-                if (!challenge.isEmpty() && !relay.isEmpty()) {
-                    HashMap<String, String> resultMap = new HashMap<>();
-                    resultMap.put("challenge", challenge);
-                    resultMap.put("relay", relay);
-                    result.success(resultMap);
-                } else {
-                    result.success(null);
-                }
+                // Challenge a relay is still waiting on, {challenge, relay} or null
+                PushServiceClient.get(mContext).pendingAuthChallenge(new PushServiceClient.Callback() {
+                    @Override
+                    public void onReply(Bundle data) {
+                        String challenge = data != null ? data.getString(PushServiceClient.KEY_CHALLENGE, "") : "";
+                        String relay = data != null ? data.getString(PushServiceClient.KEY_RELAY, "") : "";
+                        if (!challenge.isEmpty() && !relay.isEmpty()) {
+                            HashMap<String, String> resultMap = new HashMap<>();
+                            resultMap.put("challenge", challenge);
+                            resultMap.put("relay", relay);
+                            result.success(resultMap);
+                        } else {
+                            result.success(null);
+                        }
+                    }
+                });
             }
             case "clearPendingAuthChallenge" -> {
-                // Clear pending AUTH challenge
-                android.content.SharedPreferences prefs = mContext.getSharedPreferences("push_service", Context.MODE_PRIVATE);
-                prefs.edit()
-                    .remove("auth_challenge")
-                    .remove("auth_relay")
-                    .apply();
+                PushServiceClient.get(mContext).clearPendingAuthChallenge();
+                result.success(true);
+            }
+            case "getPushMetrics" -> {
+                // Counters and latency histograms of the push service, see PushMetrics.snapshot()
+                PushServiceClient.get(mContext).metrics(new PushServiceClient.Callback() {
+                    @Override
+                    public void onReply(Bundle data) {
+                        result.success(data != null ? data.getSerializable(PushServiceClient.KEY_VALUE) : null);
+                    }
+                });
+            }
+            case "resetPushMetrics" -> {
+                PushServiceClient.get(mContext).resetMetrics();
+                result.success(true);
+            }
+            case "getPushSyncStats" -> {
+                // Runs, socket time and wakeups per hour of the batched push mode
+                PushServiceClient.get(mContext).syncStats(new PushServiceClient.Callback() {
+                    @Override
+                    public void onReply(Bundle data) {
+                        result.success(data != null ? data.getSerializable(PushServiceClient.KEY_VALUE) : null);
+                    }
+                });
+            }
+            case "updatePushProfiles" -> {
+                // Names and avatars of users and groups for push notifications, [{id, name, avatar}]
+                // avatar is the encoded image bytes, a missing name or avatar keeps the cached one
+                PushServiceClient client = PushServiceClient.get(mContext);
+                if (paramsMap != null && paramsMap.get("profiles") instanceof List) {
+                    for (Object profile : (List) paramsMap.get("profiles")) {
+                        if (!(profile instanceof Map)) continue;
+                        Object id = ((Map) profile).get("id");
+                        Object name = ((Map) profile).get("name");
+                        Object avatar = ((Map) profile).get("avatar");
+                        if (id instanceof String) {
+                            client.updateProfile((String) id, name instanceof String ? (String) name : null,
+                                    avatar instanceof byte[] ? (byte[]) avatar : null);
+                        }
+                    }
+                }
                 result.success(true);
             }
+            case "drainPushInbox" -> {
+                // Verified push events after the last offset the app acknowledged: {events, lastOffset, gap}
+                // gap means events were dropped from the full inbox, the app has to catch up from the relays
+                long afterOffset = paramsMap != null && paramsMap.get("afterOffset") instanceof Number
+                        ? ((Number) paramsMap.get("afterOffset")).longValue() : 0;
+                PushServiceClient.get(mContext).drainInbox(afterOffset, new PushServiceClient.DrainCallback() {
+                    @Override
+                    public void onDrained(EventInbox.Batch batch) {
+                        if (batch == null) {
+                            result.error("INBOX_UNAVAILABLE", "Push inbox could not be read", null);
+                            return;
+                        }
+                        HashMap<String, Object> drained = new HashMap<>();
+                        drained.put("events", batch.events);
+                        drained.put("lastOffset", batch.lastOffset);
+                        drained.put("gap", batch.gap);
+                        result.success(drained);
+                    }
+                });
+            }
             case "getAppOpenURL" -> {
                 SharedPreferences preferences = mContext.getSharedPreferences(SharedPreUtils.SP_NAME, Context.MODE_PRIVATE);
                 String jumpInfo = preferences.getString(SharedPreUtils.PARAM_JUMP_INFO, "");
@@ -218,9 +304,10 @@ public class AppPreferences implements MethodChannel.MethodCallHandler, FlutterP
                 if (paramsMap.containsKey("params")) {
                     params = (String) paramsMap.get("params");
                 }
+                // Spawned from the process-wide engine group instead of a new engine per screen
+                String engineId = FlutterEngines.spawn(mContext, MultiEngineActivity.getFullRoute(route, params));
                 Intent intent = MultiEngineActivity
-                        .withNewEngine(MultiEngineActivity.class)
-                        .initialRoute(MultiEngineActivity.getFullRoute(route, params))
+                        .withCachedEngine(engineId)
                         .build(mContext);
                 //intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 mActivity.startActivity(intent);
@@ -229,19 +316,59 @@ public class AppPreferences implements MethodChannel.MethodCallHandler, FlutterP
     }
 
     private boolean isAppInBackground() {
-        ActivityManager activityManager = (ActivityManager) mActivity.getSystemService(Context.ACTIVITY_SERVICE);
-        List<ActivityManager.RunningAppProcessInfo> runningApps = activityManager.getRunningAppProcesses();
-        for (ActivityManager.RunningAppProcessInfo processInfo : runningApps) {
-            if (processInfo.processName.equals(mActivity.getPackageName())) {
-                if (processInfo.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
-                    //ActivityState", "App is in the foreground.  is see
-                    return false;
-                } else {
-                    //ActivityState", "App is in the background.
-                    return true;
+        return !AppForegroundTracker.isAppInForeground(mContext);
+    }
+
+    /**
+     * Push config in the arguments of startPushNotificationService and updatePushConfig, absent fields stay unset
+     */
+    private static PushServiceClient.Config readPushConfig(HashMap paramsMap) {
+        PushServiceClient.Config config = new PushServiceClient.Config();
+        if (paramsMap == null) return config;
+        // Optional list of relays, the service connects to all of them in parallel
+        if (paramsMap.get("serverRelays") instanceof List || paramsMap.get("serverRelay") instanceof String) {
+            config.relays = new ArrayList<>();
+            if (paramsMap.get("serverRelays") instanceof List) {
+                for (Object relay : (List) paramsMap.get("serverRelays")) {
+                    if (relay instanceof String) {
+                        config.relays.add((String) relay);
+                    }
                 }
             }
+            if (paramsMap.get("serverRelay") instanceof String && !((String) paramsMap.get("serverRelay")).isEmpty()) {
+                config.relays.add((String) paramsMap.get("serverRelay"));
+            }
+        }
+        // deviceId is optional for Android, service will use pubkey if not provided
+        if (paramsMap.get("pubkey") instanceof String) {
+            config.pubkey = (String) paramsMap.get("pubkey");
+        }
+        // Optional window in which bursts of events are folded into one notification update
+        if (paramsMap.get("coalesceWindowMs") instanceof Number) {
+            config.coalesceWindowMs = ((Number) paramsMap.get("coalesceWindowMs")).longValue();
+        }
+        // Optional groups to get pushes for besides the user's own pubkey, replaces the set the service watches
+        if (paramsMap.get("groupIds") instanceof List) {
+            config.groupIds = new ArrayList<>();
+            for (Object groupId : (List) paramsMap.get("groupIds")) {
+                if (groupId instanceof String) {
+                    config.groupIds.add((String) groupId);
+                }
+            }
+        }
+        if (paramsMap.get("keepaliveIntervalMs") instanceof Number) {
+            config.keepaliveIntervalMs = ((Number) paramsMap.get("keepaliveIntervalMs")).longValue();
+        }
+        // Optional headless Flutter sync when pushes arrive while the app is closed, absent keeps the setting
+        if (paramsMap.get("backgroundSync") instanceof Boolean) {
+            config.backgroundSync = (Boolean) paramsMap.get("backgroundSync");
+        }
+        if (paramsMap.get("mode") instanceof String) {
+            config.mode = (String) paramsMap.get("mode");
+        }
+        if (paramsMap.get("syncIntervalMinutes") instanceof Number) {
+            config.syncIntervalMs = ((Number) paramsMap.get("syncIntervalMinutes")).longValue() * 60 * 1000;
         }
-        return false;
+        return config;
     }
 }
@@ -0,0 +1,270 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.oxchat.lite.ConnectionStateMachine.State;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ConnectionStateMachineTest {
+    /**
+     * Random with a fixed nextDouble, so the jitter is known
+     */
+    private static final class FixedRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        double value;
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    private static final class RecordingCallbacks implements ConnectionStateMachine.Callbacks {
+        int opens;
+        int closes;
+        final List<String> transitions = new ArrayList<>();
+
+        @Override
+        public void openSocket() {
+            opens++;
+        }
+
+        @Override
+        public void closeSocket() {
+            closes++;
+        }
+
+        @Override
+        public void onStateChanged(State from, State to) {
+            transitions.add(from + "->" + to);
+        }
+    }
+
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final FixedRandom random = new FixedRandom();
+    private final RecordingCallbacks callbacks = new RecordingCallbacks();
+    private ConnectionStateMachine machine;
+
+    @Before
+    public void setUp() {
+        machine = new ConnectionStateMachine(callbacks, scheduler, scheduler, random);
+    }
+
+    @Test
+    public void startConnectsAndOpens() {
+        machine.start();
+        assertEquals(State.CONNECTING, machine.getState());
+        assertEquals(1, callbacks.opens);
+
+        machine.onSocketOpen();
+        machine.onAuthChallenge();
+        assertEquals(State.AUTHENTICATING, machine.getState());
+        machine.onSubscribed();
+        assertEquals(State.SUBSCRIBED, machine.getState());
+        assertTrue(machine.isOpen());
+        assertEquals(List.of("IDLE->CONNECTING", "CONNECTING->OPEN", "OPEN->AUTHENTICATING", "AUTHENTICATING->SUBSCRIBED"),
+                callbacks.transitions);
+    }
+
+    @Test
+    public void startWhileConnectedDoesNothing() {
+        connect();
+        machine.start();
+        assertEquals(1, callbacks.opens);
+        assertEquals(State.OPEN, machine.getState());
+    }
+
+    @Test
+    public void backoffDoublesWithJitterBetweenHalfAndFull() {
+        random.value = 0;
+        machine.start();
+        long ceiling = ConnectionStateMachine.BASE_BACKOFF_MS;
+        for (int attempt = 0; attempt < 5; attempt++) {
+            machine.onSocketClosed();
+            assertEquals(State.BACKOFF, machine.getState());
+            // Lowest jitter: half of the ceiling
+            assertEquals(ceiling / 2, scheduler.nextDelay());
+            scheduler.advance(ceiling / 2 - 1);
+            assertEquals(State.BACKOFF, machine.getState());
+            scheduler.advance(1);
+            assertEquals(State.CONNECTING, machine.getState());
+            ceiling *= 2;
+        }
+        assertEquals(6, callbacks.opens);
+    }
+
+    @Test
+    public void jitterStaysBelowTheCeiling() {
+        random.value = 0.999999;
+        machine.start();
+        machine.onSocketClosed();
+        long delay = scheduler.nextDelay();
+        assertTrue(delay >= ConnectionStateMachine.BASE_BACKOFF_MS / 2);
+        assertTrue(delay < ConnectionStateMachine.BASE_BACKOFF_MS);
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        random.value = 0.999999;
+        machine.start();
+        for (int attempt = 0; attempt < 40; attempt++) {
+            machine.onSocketClosed();
+            long delay = scheduler.nextDelay();
+            assertTrue("attempt " + attempt + ": " + delay, delay <= ConnectionStateMachine.MAX_BACKOFF_MS);
+            scheduler.advance(delay);
+        }
+        machine.onSocketClosed();
+        assertTrue(scheduler.nextDelay() >= ConnectionStateMachine.MAX_BACKOFF_MS / 2);
+        assertTrue(scheduler.nextDelay() <= ConnectionStateMachine.MAX_BACKOFF_MS);
+    }
+
+    @Test
+    public void stableConnectionResetsBackoff() {
+        random.value = 0;
+        machine.start();
+        failTimes(4);
+        assertEquals(4, machine.getAttempt());
+
+        scheduler.advance(scheduler.nextDelay());
+        machine.onSocketOpen();
+        assertEquals(State.OPEN, machine.getState());
+        scheduler.advance(ConnectionStateMachine.STABLE_CONNECTION_MS);
+        machine.onSocketClosed();
+        assertEquals(1, machine.getAttempt());
+        assertEquals(ConnectionStateMachine.BASE_BACKOFF_MS / 2, scheduler.nextDelay());
+    }
+
+    @Test
+    public void shortLivedConnectionKeepsBackingOff() {
+        random.value = 0;
+        machine.start();
+        failTimes(4);
+
+        scheduler.advance(scheduler.nextDelay());
+        machine.onSocketOpen();
+        assertEquals(State.OPEN, machine.getState());
+        scheduler.advance(ConnectionStateMachine.STABLE_CONNECTION_MS - 1);
+        machine.onSocketClosed();
+        assertEquals(5, machine.getAttempt());
+        assertEquals((ConnectionStateMachine.BASE_BACKOFF_MS << 4) / 2, scheduler.nextDelay());
+    }
+
+    @Test
+    public void networkLostDuringBackoffWaitsForNetwork() {
+        machine.start();
+        machine.onSocketClosed();
+        assertEquals(State.BACKOFF, machine.getState());
+
+        machine.onNetworkLost();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(0, scheduler.pending());
+        scheduler.advance(ConnectionStateMachine.MAX_BACKOFF_MS * 2);
+        assertEquals(1, callbacks.opens);
+    }
+
+    @Test
+    public void networkAvailableReconnectsRightAway() {
+        random.value = 0;
+        machine.start();
+        failTimes(6);
+        assertEquals(State.BACKOFF, machine.getState());
+
+        machine.onNetworkAvailable();
+        assertEquals(State.CONNECTING, machine.getState());
+        assertEquals(0, machine.getAttempt());
+        assertEquals(0, scheduler.pending());
+        // The next failure starts over at the base delay
+        machine.onSocketClosed();
+        assertEquals(ConnectionStateMachine.BASE_BACKOFF_MS / 2, scheduler.nextDelay());
+    }
+
+    @Test
+    public void socketClosedWithoutNetworkGoesIdle() {
+        connect();
+        machine.onNetworkLost();
+        // An open socket is left to fail on its own
+        assertEquals(State.OPEN, machine.getState());
+
+        machine.onSocketClosed();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(0, scheduler.pending());
+
+        machine.onNetworkAvailable();
+        assertEquals(State.CONNECTING, machine.getState());
+        assertEquals(2, callbacks.opens);
+    }
+
+    @Test
+    public void startWithoutNetworkWaitsForNetwork() {
+        machine.onNetworkLost();
+        machine.start();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(0, callbacks.opens);
+
+        machine.onNetworkAvailable();
+        assertEquals(State.CONNECTING, machine.getState());
+    }
+
+    @Test
+    public void networkAvailableBeforeStartDoesNotConnect() {
+        machine.onNetworkAvailable();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(0, callbacks.opens);
+    }
+
+    @Test
+    public void stopClosesAndCancelsBackoff() {
+        connect();
+        machine.stop();
+        assertEquals(State.IDLE, machine.getState());
+        assertEquals(1, callbacks.closes);
+
+        machine.start();
+        machine.onSocketClosed();
+        machine.stop();
+        assertEquals(0, scheduler.pending());
+        // Nothing to close while backing off
+        assertEquals(1, callbacks.closes);
+        scheduler.advance(ConnectionStateMachine.MAX_BACKOFF_MS);
+        assertEquals(2, callbacks.opens);
+    }
+
+    @Test
+    public void lateCallbacksAreIgnored() {
+        machine.start();
+        machine.onSocketClosed();
+        // A close or open of the previous socket arriving while backing off
+        machine.onSocketClosed();
+        machine.onSocketOpen();
+        assertEquals(State.BACKOFF, machine.getState());
+        assertEquals(1, scheduler.pending());
+        assertFalse(machine.isOpen());
+    }
+
+    private void connect() {
+        machine.start();
+        machine.onSocketOpen();
+        assertEquals(State.OPEN, machine.getState());
+    }
+
+    /**
+     * Fail this many connection attempts in a row, ending in BACKOFF
+     */
+    private void failTimes(int count) {
+        for (int i = 0; i < count; i++) {
+            machine.onSocketClosed();
+            if (i < count - 1) {
+                scheduler.advance(scheduler.nextDelay());
+            }
+        }
+    }
+}
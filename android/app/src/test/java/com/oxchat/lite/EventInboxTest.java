@@ -0,0 +1,183 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class EventInboxTest {
+    // Small enough that a few hundred events force compactions
+    private static final long MAX_BYTES = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] event(long n) {
+        return ("{\"id\":\"" + n + "\",\"content\":\"message " + n + " padded to a realistic size\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long id(String event) {
+        int start = event.indexOf("\"id\":\"") + 6;
+        return Long.parseLong(event.substring(start, event.indexOf('"', start)));
+    }
+
+    private static void assertSequence(List<String> events, long first, long last) {
+        assertEquals(last - first + 1, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(first + i, id(events.get(i)));
+        }
+    }
+
+    @Test
+    public void drainsEverythingAfterAnOffset() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 100; n++) {
+            assertEquals(n, inbox.append(event(n)));
+        }
+        EventInbox.Batch all = inbox.drain(0);
+        assertSequence(all.events, 1, 100);
+        assertEquals(100, all.lastOffset);
+        assertFalse(all.gap);
+        // Every index slot boundary and the records between them
+        for (long after : new long[]{31, 32, 33, 64, 99}) {
+            assertSequence(inbox.drain(after).events, after + 1, 100);
+        }
+        EventInbox.Batch none = inbox.drain(100);
+        assertTrue(none.events.isEmpty());
+        assertEquals(100, none.lastOffset);
+    }
+
+    @Test
+    public void onlyADeliveredBatchIsAcknowledged() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 50; n++) {
+            inbox.append(event(n));
+        }
+        // The app asked, but the batch never reached it
+        EventInbox.Batch lost = inbox.drain(20);
+        assertEquals(0, acknowledgedInHeader());
+        EventInbox.Batch delivered = inbox.drain(20);
+        assertSequence(delivered.events, 21, 50);
+        inbox.acknowledge(delivered);
+        assertEquals(20, acknowledgedInHeader());
+        // An older batch delivered late doesn't move the acknowledgement back
+        inbox.acknowledge(inbox.drain(10));
+        assertEquals(20, acknowledgedInHeader());
+        assertSequence(lost.events, 21, 50);
+    }
+
+    /**
+     * Acknowledged offset as stored in the log header, after magic, version and base offset
+     */
+    private long acknowledgedInHeader() throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "events.log"), "r")) {
+            file.seek(4 + 1 + 8);
+            return file.readLong();
+        }
+    }
+
+    @Test
+    public void acknowledgedEventsAreCompactedFirst() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        long n = 1;
+        while (inbox.append(event(n)) > 0 && new File(folder.getRoot(), "events.log").length() < MAX_BYTES / 2) {
+            n++;
+        }
+        long acknowledged = n - 10;
+        inbox.acknowledge(inbox.drain(acknowledged));
+        // Push past the cap, the acknowledged events make the room
+        long appended = n;
+        while (new File(folder.getRoot(), "events.log").length() + 200 < MAX_BYTES) {
+            appended = inbox.append(event(appended + 1));
+        }
+        appended = inbox.append(event(appended + 1));
+        EventInbox.Batch batch = inbox.drain(acknowledged);
+        assertFalse(batch.gap);
+        assertSequence(batch.events, acknowledged + 1, appended);
+    }
+
+    @Test
+    public void compactionDroppingUnacknowledgedEventsReportsAGap() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 1000; n++) {
+            assertEquals(n, inbox.append(event(n)));
+        }
+        EventInbox.Batch batch = inbox.drain(0);
+        assertTrue(batch.gap);
+        assertEquals(1000, batch.lastOffset);
+        long first = id(batch.events.get(0));
+        assertSequence(batch.events, first, 1000);
+    }
+
+    @Test
+    public void reopenAfterCompactionKeepsOffsetsAndAcknowledgement() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 1000; n++) {
+            inbox.append(event(n));
+        }
+        inbox.acknowledge(inbox.drain(990));
+        inbox.sync();
+        EventInbox reopened = new EventInbox(folder.getRoot(), MAX_BYTES);
+        assertSequence(reopened.drain(990).events, 991, 1000);
+        assertSequence(reopened.drain(900).events, 901, 1000);
+        assertEquals(1001, reopened.append(event(1001)));
+    }
+
+    @Test
+    public void missingIndexIsRebuiltOnLoad() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 1000; n++) {
+            inbox.append(event(n));
+        }
+        inbox.sync();
+        // A crash after compaction deleted the index and renamed the new log, before the new index was written
+        assertTrue(new File(folder.getRoot(), "events.idx").delete());
+        EventInbox reopened = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long after : new long[]{900, 931, 960, 999}) {
+            assertSequence(reopened.drain(after).events, after + 1, 1000);
+        }
+        assertTrue(new File(folder.getRoot(), "events.idx").length() > 0);
+        assertEquals(1001, reopened.append(event(1001)));
+        assertSequence(reopened.drain(999).events, 1000, 1001);
+    }
+
+    @Test
+    public void offsetsKeepCountingAfterClear() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 10; n++) {
+            inbox.append(event(n));
+        }
+        inbox.clear();
+        EventInbox.Batch empty = inbox.drain(10);
+        assertTrue(empty.events.isEmpty());
+        assertFalse(empty.gap);
+        assertEquals(11, inbox.append(event(11)));
+        assertSequence(inbox.drain(10).events, 11, 11);
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnLoad() throws Exception {
+        EventInbox inbox = new EventInbox(folder.getRoot(), MAX_BYTES);
+        for (long n = 1; n <= 40; n++) {
+            inbox.append(event(n));
+        }
+        inbox.sync();
+        File log = new File(folder.getRoot(), "events.log");
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        EventInbox reopened = new EventInbox(folder.getRoot(), MAX_BYTES);
+        assertSequence(reopened.drain(0).events, 1, 39);
+        assertEquals(40, reopened.append(event(40)));
+        assertSequence(reopened.drain(30).events, 31, 40);
+    }
+}
@@ -0,0 +1,82 @@
+package com.oxchat.lite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event id and AUTH event JSON by EventSerializer against the Jackson tree and MessageDigest path it replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EventSerializerBenchmark {
+    private static final String PUBKEY = "79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798";
+    private static final String SIG = "e2c6b8d3c4a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5"
+            + "d4c3b2a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5d4c3";
+
+    // auth: the kind 22242 event the service signs; message: a group message of 3 KB text with emoji
+    @Param({"auth", "message"})
+    public String event;
+
+    private int kind;
+    private String[][] tags;
+    private String content;
+    private final EventSerializer serializer = new EventSerializer();
+
+    @Setup
+    public void setUp() {
+        switch (event) {
+            case "auth" -> {
+                kind = TestEvents.KIND_AUTH;
+                tags = new String[][]{{"relay", "wss://relay.0xchat.com"},
+                        {"challenge", "3f9c2a71-5b0e-4d8a-9c61-2e7f0b4d8a15"}};
+                content = "";
+            }
+            case "message" -> {
+                kind = 9;
+                tags = new String[][]{{"h", "a1b2c3d4"}, {"p", PUBKEY}};
+                StringBuilder text = new StringBuilder();
+                while (text.length() < 3000) {
+                    text.append("Grüße aus dem Gruppenchat 😀 \"quoted\" line\n");
+                }
+                content = text.toString();
+            }
+            default -> throw new IllegalArgumentException(event);
+        }
+    }
+
+    @Benchmark
+    public String idSerializer() {
+        return Hex.encode(serializer.computeId(PUBKEY, 1700000000L, kind, tags, content));
+    }
+
+    @Benchmark
+    public String idJackson() throws Exception {
+        return JacksonEventSerializer.computeId(PUBKEY, 1700000000L, kind, tags, content);
+    }
+
+    @Benchmark
+    public void idAndJsonSerializer(Blackhole blackhole) {
+        String id = Hex.encode(serializer.computeId(PUBKEY, 1700000000L, kind, tags, content));
+        blackhole.consume(serializer.serializeEvent(id, PUBKEY, 1700000000L, kind, tags, content, SIG));
+    }
+
+    @Benchmark
+    public void idAndJsonJackson(Blackhole blackhole) throws Exception {
+        String id = JacksonEventSerializer.computeId(PUBKEY, 1700000000L, kind, tags, content);
+        blackhole.consume(JacksonEventSerializer.serializeEvent(id, PUBKEY, 1700000000L, kind, tags, content, SIG));
+    }
+}
@@ -0,0 +1,112 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class EventSerializerTest {
+    private static final String PUBKEY = "79be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798";
+    private static final String SIG = "e2c6b8d3c4a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5"
+            + "d4c3b2a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5d4c3";
+
+    @Test
+    public void goldenVectors() throws Exception {
+        JSONArray vectors = loadVectors();
+        assertTrue(vectors.length() > 0);
+        EventSerializer serializer = new EventSerializer();
+        for (int i = 0; i < vectors.length(); i++) {
+            JSONObject vector = vectors.getJSONObject(i);
+            byte[] id = serializer.computeId(vector.getString("pubkey"), vector.getLong("created_at"),
+                    vector.getInt("kind"), tags(vector.getJSONArray("tags")), vector.getString("content"));
+            assertEquals(vector.getString("name"), vector.getString("id"), Hex.encode(id));
+        }
+    }
+
+    @Test
+    public void controlCharactersAreUnicodeEscapes() throws Exception {
+        String[][] tags = {{"t", "a\u001fb"}};
+        String json = new EventSerializer().serializeEvent("00", PUBKEY, 1, 1, tags, "ctrl\u0001x\u0000", SIG);
+        assertTrue(json, json.contains("\"ctrl\\u0001x\\u0000\""));
+        assertTrue(json, json.contains("\"a\\u001Fb\""));
+        assertEquals(JacksonEventSerializer.serializeEvent("00", PUBKEY, 1, 1, tags, "ctrl\u0001x\u0000", SIG), json);
+    }
+
+    @Test
+    public void randomEventsMatchJackson() throws Exception {
+        Random random = new Random(42);
+        EventSerializer serializer = new EventSerializer();
+        for (int i = 0; i < 2000; i++) {
+            long createdAt = random.nextLong();
+            int kind = random.nextInt();
+            String[][] tags = new String[random.nextInt(6)][];
+            for (int t = 0; t < tags.length; t++) {
+                tags[t] = new String[1 + random.nextInt(4)];
+                for (int v = 0; v < tags[t].length; v++) {
+                    tags[t][v] = randomString(random, 40);
+                }
+            }
+            String content = randomString(random, random.nextInt(10) == 0 ? 3000 : 200);
+
+            String expectedId = JacksonEventSerializer.computeId(PUBKEY, createdAt, kind, tags, content);
+            assertEquals(expectedId, Hex.encode(serializer.computeId(PUBKEY, createdAt, kind, tags, content)));
+            // Compared as UTF-8, where Jackson's unpaired surrogates become '?' too
+            byte[] expectedEvent = JacksonEventSerializer.serializeEvent(expectedId, PUBKEY, createdAt, kind, tags,
+                    content, SIG).getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(expectedEvent, serializer.serializeEventUtf8(expectedId, PUBKEY, createdAt, kind, tags,
+                    content, SIG));
+        }
+    }
+
+    /**
+     * Mostly ASCII with control characters, escapes, multi-byte characters, emoji and the odd unpaired surrogate
+     */
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int pick = random.nextInt(100);
+            if (pick < 60) {
+                s.append((char) (0x20 + random.nextInt(0x60)));
+            } else if (pick < 70) {
+                s.append((char) random.nextInt(0x20));
+            } else if (pick < 75) {
+                s.append("\"\\/".charAt(random.nextInt(3)));
+            } else if (pick < 85) {
+                s.append((char) (0x80 + random.nextInt(0x780)));
+            } else if (pick < 93) {
+                s.append((char) (0x800 + random.nextInt(0xd000)));
+            } else if (pick < 99) {
+                s.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            } else {
+                s.append((char) (0xd800 + random.nextInt(0x800)));
+            }
+        }
+        return s.toString();
+    }
+
+    private static JSONArray loadVectors() throws Exception {
+        try (InputStream in = EventSerializerTest.class.getClassLoader().getResourceAsStream("event_vectors.json")) {
+            return new JSONArray(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String[][] tags(JSONArray array) throws Exception {
+        String[][] tags = new String[array.length()][];
+        for (int i = 0; i < tags.length; i++) {
+            JSONArray tag = array.getJSONArray(i);
+            tags[i] = new String[tag.length()];
+            for (int j = 0; j < tag.length(); j++) {
+                tags[i][j] = tag.getString(j);
+            }
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,80 @@
+package com.oxchat.lite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler and Clock on one real thread, what HandlerScheduler is in the app
+ * Relay connections are confined to it, tests look at their state through call()
+ */
+final class ExecutorScheduler implements ConnectionStateMachine.Scheduler, ConnectionStateMachine.Clock {
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<Runnable, List<ScheduledFuture<?>>> pending = new HashMap<>();
+
+    @Override
+    public synchronized void schedule(final Runnable task, long delayMs) {
+        if (executor.isShutdown()) {
+            // Socket callbacks still coming in after the test
+            return;
+        }
+        List<ScheduledFuture<?>> futures = pending.get(task);
+        if (futures == null) {
+            futures = new ArrayList<>();
+            pending.put(task, futures);
+        }
+        // Drop futures that already ran, a task rescheduled forever mustn't grow the list
+        for (int i = futures.size() - 1; i >= 0; i--) {
+            if (futures.get(i).isDone()) {
+                futures.remove(i);
+            }
+        }
+        futures.add(executor.schedule(task, Math.max(0, delayMs), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        List<ScheduledFuture<?>> futures = pending.remove(task);
+        if (futures == null) return;
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Run on the scheduler thread and wait for the result
+     */
+    <T> T call(Callable<T> task) throws Exception {
+        try {
+            return executor.submit(task).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    void run(final Runnable task) throws Exception {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() {
+                task.run();
+                return null;
+            }
+        });
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,217 @@
+package com.oxchat.lite;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Stand-in Nostr relay on a MockWebServer WebSocket
+ * Answers REQ with EOSE, checks AUTH events (signature, challenge and relay tags) and answers them with OK, and can
+ * be scripted to send AUTH challenges, EVENTs, EOSE, CLOSED and COUNT or to drop the socket without a close frame
+ * Every frame the client sends is kept for the test to take in order
+ */
+final class FakeRelay {
+    private MockWebServer server = new MockWebServer();
+    private final BlockingQueue<JSONArray> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger authAccepted = new AtomicInteger();
+    private volatile WebSocket socket;
+    private volatile boolean authenticated;
+
+    // Sent as ["AUTH", challenge] on every new connection, null for none
+    volatile String authChallenge;
+    // Close REQs with auth-required until an AUTH was accepted on the connection
+    volatile boolean requireAuth;
+    // Answer REQs with EOSE
+    volatile boolean answerRequests = true;
+    // Answer COUNTs with this count, or close them when negative
+    volatile long countAnswer = -1;
+    // Answer COUNTs at all, a relay that leaves them hanging when false
+    volatile boolean answerCounts = true;
+
+    FakeRelay start() throws IOException {
+        // A fixed port makes MockWebServer bind with SO_REUSEADDR, which disconnect() needs to come back on it
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        start(port);
+        return this;
+    }
+
+    private void start(int port) throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().withWebSocketUpgrade(new RelaySocket());
+            }
+        });
+        server.start(port);
+    }
+
+    void shutdown() throws IOException {
+        socket = null;
+        server.shutdown();
+    }
+
+    String url() {
+        return "ws://" + server.getHostName() + ":" + server.getPort() + "/";
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    int authAccepted() {
+        return authAccepted.get();
+    }
+
+    boolean send(String frame) {
+        WebSocket current = socket;
+        return current != null && current.send(frame);
+    }
+
+    boolean sendEvent(String subscriptionId, String event) {
+        return send("[\"EVENT\"," + JSONObject.quote(subscriptionId) + "," + event + "]");
+    }
+
+    boolean sendEose(String subscriptionId) {
+        return send("[\"EOSE\"," + JSONObject.quote(subscriptionId) + "]");
+    }
+
+    boolean sendClosed(String subscriptionId, String message) {
+        return send("[\"CLOSED\"," + JSONObject.quote(subscriptionId) + "," + JSONObject.quote(message) + "]");
+    }
+
+    boolean sendAuthChallenge(String challenge) {
+        return send("[\"AUTH\"," + JSONObject.quote(challenge) + "]");
+    }
+
+    /**
+     * Bytes the server socket has queued but not written yet
+     */
+    long queueSize() {
+        WebSocket current = socket;
+        return current != null ? current.queueSize() : 0;
+    }
+
+    /**
+     * Drop the connection without a close frame, like a relay restart: the server goes away and comes back on the
+     * same port (a server-side OkHttp WebSocket can't be cancelled on its own)
+     */
+    void disconnect() throws IOException {
+        int port = server.getPort();
+        shutdown();
+        server = new MockWebServer();
+        start(port);
+    }
+
+    /**
+     * Wait until the client connected this many times in total
+     */
+    boolean awaitConnections(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (connections.get() < count || socket == null) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Next client frame of this type, skipping others; null on timeout
+     */
+    JSONArray take(String type, long timeoutMs) throws InterruptedException, JSONException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            JSONArray frame = left > 0 ? received.poll(left, TimeUnit.MILLISECONDS) : null;
+            if (frame == null || type.equals(frame.getString(0))) {
+                return frame;
+            }
+        }
+    }
+
+    private void onFrame(WebSocket webSocket, JSONArray frame) throws JSONException {
+        String type = frame.getString(0);
+        String subscriptionId = frame.optString(1);
+        switch (type) {
+            case "REQ":
+                if (requireAuth && !authenticated) {
+                    webSocket.send("[\"CLOSED\"," + JSONObject.quote(subscriptionId) + ",\"auth-required: sign in first\"]");
+                } else if (answerRequests) {
+                    webSocket.send("[\"EOSE\"," + JSONObject.quote(subscriptionId) + "]");
+                }
+                break;
+            case "COUNT":
+                if (!answerCounts) {
+                    break;
+                }
+                if (countAnswer >= 0) {
+                    webSocket.send("[\"COUNT\"," + JSONObject.quote(subscriptionId) + ",{\"count\":" + countAnswer + "}]");
+                } else {
+                    webSocket.send("[\"CLOSED\"," + JSONObject.quote(subscriptionId) + ",\"unsupported: COUNT\"]");
+                }
+                break;
+            case "AUTH":
+                JSONObject event = frame.getJSONObject(1);
+                boolean valid = event.getInt("kind") == TestEvents.KIND_AUTH
+                        && TestEvents.isValid(event)
+                        && authChallenge != null && authChallenge.equals(TestEvents.tag(event, "challenge"))
+                        && url().equals(TestEvents.tag(event, "relay"));
+                if (valid) {
+                    authenticated = true;
+                    authAccepted.incrementAndGet();
+                }
+                webSocket.send("[\"OK\"," + JSONObject.quote(event.getString("id")) + "," + valid + ","
+                        + JSONObject.quote(valid ? "" : "invalid: bad AUTH event") + "]");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private final class RelaySocket extends WebSocketListener {
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            authenticated = false;
+            socket = webSocket;
+            String challenge = authChallenge;
+            if (challenge != null) {
+                webSocket.send("[\"AUTH\"," + JSONObject.quote(challenge) + "]");
+            }
+            connections.incrementAndGet();
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            try {
+                JSONArray frame = new JSONArray(text);
+                received.add(frame);
+                onFrame(webSocket, frame);
+            } catch (JSONException e) {
+                webSocket.send("[\"NOTICE\",\"invalid: " + e.getMessage().replace('"', '\'') + "\"]");
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(1000, null);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.oxchat.lite;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scheduler and Clock on virtual time: tasks run only when the test advances the clock, in due order
+ */
+final class FakeScheduler implements ConnectionStateMachine.Scheduler, ConnectionStateMachine.Clock {
+    private static final class Task {
+        final Runnable runnable;
+        final long dueAt;
+        final long sequence;
+
+        Task(Runnable runnable, long dueAt, long sequence) {
+            this.runnable = runnable;
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private long now;
+    private long sequence;
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        tasks.add(new Task(task, now + Math.max(0, delayMs), sequence++));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        Iterator<Task> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return now;
+    }
+
+    /**
+     * Move the clock forward, running every task that falls due on the way
+     */
+    void advance(long ms) {
+        long target = now + ms;
+        while (true) {
+            Task next = null;
+            for (Task task : tasks) {
+                if (task.dueAt <= target && (next == null || task.dueAt < next.dueAt
+                        || (task.dueAt == next.dueAt && task.sequence < next.sequence))) {
+                    next = task;
+                }
+            }
+            if (next == null) break;
+            tasks.remove(next);
+            now = next.dueAt;
+            next.runnable.run();
+        }
+        now = target;
+    }
+
+    /**
+     * Delay until the next pending task, -1 if there is none
+     */
+    long nextDelay() {
+        long next = -1;
+        for (Task task : tasks) {
+            if (next < 0 || task.dueAt - now < next) {
+                next = task.dueAt - now;
+            }
+        }
+        return next;
+    }
+
+    int pending() {
+        return tasks.size();
+    }
+}
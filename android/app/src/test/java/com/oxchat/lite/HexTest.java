@@ -0,0 +1,57 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class HexTest {
+    private static final String KEY = "7f3b0a8e5c1d2f4a6b8c9d0e1f2a3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c";
+
+    @Test
+    public void stringRoundTrip() {
+        byte[] bytes = Hex.decode(KEY);
+        assertEquals(32, bytes.length);
+        assertEquals(KEY, Hex.encode(bytes));
+        assertArrayEquals(bytes, Hex.decode(KEY.toUpperCase()));
+    }
+
+    @Test
+    public void asciiBytesDecodeLikeTheString() {
+        byte[] ascii = ("xx" + KEY.toUpperCase() + "yy").getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(Hex.decode(KEY), Hex.decode(ascii, 2, KEY.length()));
+    }
+
+    @Test
+    public void asciiRoundTrip() {
+        byte[] bytes = Hex.decode(KEY);
+        assertArrayEquals(KEY.getBytes(StandardCharsets.US_ASCII), Hex.encodeAscii(bytes));
+        byte[] ascii = Hex.encodeAscii(bytes);
+        assertArrayEquals(bytes, Hex.decode(ascii, 0, ascii.length));
+    }
+
+    @Test
+    public void asciiRejectsNonHexWithoutEchoingIt() {
+        byte[] ascii = "0a1z".getBytes(StandardCharsets.US_ASCII);
+        try {
+            Hex.decode(ascii, 0, ascii.length);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertFalse(e.getMessage(), e.getMessage().contains("z"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void asciiRejectsOddLength() {
+        Hex.decode(new byte[]{'a', 'b', 'c'}, 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void asciiRejectsHighBytes() {
+        Hex.decode(new byte[]{'a', (byte) 0xc3}, 0, 2);
+    }
+}
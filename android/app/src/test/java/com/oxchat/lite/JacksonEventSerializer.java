@@ -0,0 +1,76 @@
+package com.oxchat.lite;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * The Jackson tree path EventSerializer replaced, what nostr-java does: reference output for the tests and the
+ * baseline of the benchmark
+ */
+final class JacksonEventSerializer {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private JacksonEventSerializer() {
+    }
+
+    /**
+     * [0,pubkey,created_at,kind,tags,content]
+     */
+    static String serializeForId(String pubkey, long createdAt, int kind, String[][] tags, String content)
+            throws Exception {
+        ArrayNode array = NODES.arrayNode();
+        array.add(0);
+        array.add(pubkey);
+        array.add(createdAt);
+        array.add(kind);
+        array.add(tags(tags));
+        array.add(content);
+        return MAPPER.writeValueAsString(array);
+    }
+
+    static String computeId(String pubkey, long createdAt, int kind, String[][] tags, String content) throws Exception {
+        String serialized = serializeForId(pubkey, createdAt, kind, tags, content);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(serialized.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            String digits = Integer.toHexString(0xff & b);
+            if (digits.length() == 1) {
+                hex.append('0');
+            }
+            hex.append(digits);
+        }
+        return hex.toString();
+    }
+
+    static String serializeEvent(String id, String pubkey, long createdAt, int kind, String[][] tags, String content,
+                                 String sig) throws Exception {
+        ObjectNode event = NODES.objectNode();
+        event.put("id", id);
+        event.put("pubkey", pubkey);
+        event.put("created_at", createdAt);
+        event.put("kind", kind);
+        event.set("tags", tags(tags));
+        event.put("content", content);
+        event.put("sig", sig);
+        return MAPPER.writeValueAsString(event);
+    }
+
+    private static ArrayNode tags(String[][] tags) {
+        ArrayNode array = NODES.arrayNode();
+        for (String[] tag : tags) {
+            ArrayNode tagNode = NODES.arrayNode();
+            for (String value : tag) {
+                tagNode.add(value);
+            }
+            array.add(tagNode);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,27 @@
+package com.oxchat.lite;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this source set whose name matches the benchmarks property, e.g.
+ * ./gradlew :app:testDebugUnitTest --tests com.oxchat.lite.JmhBenchmarks -Pbenchmarks=RelayFrameParser
+ * Skipped in a normal test run
+ *
+ * Benchmarks run in the test JVM (no fork): compare results of one run with each other, not across machines
+ */
+public class JmhBenchmarks {
+    @Test
+    public void run() throws Exception {
+        String include = System.getProperty("benchmarks", "");
+        Assume.assumeFalse("Set -Pbenchmarks=<regex> to run the JMH benchmarks", include.isEmpty());
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .forks(0)
+                .shouldFailOnError(true)
+                .build())
+                .run();
+    }
+}
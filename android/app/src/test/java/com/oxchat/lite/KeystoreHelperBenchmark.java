@@ -0,0 +1,85 @@
+package com.oxchat.lite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Key file store and load by KeystoreHelper (binary, temp file + fsync + rename) against the Base64 file written in
+ * place it replaced, with a software AES key: the Keystore lookup the cached key saves only exists on a device
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KeystoreHelperBenchmark {
+    private static final String PRIVKEY = "7f3b0a8e5c1d2f4a6b8c9d0e1f2a3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c";
+
+    private File dir;
+    private File binaryFile;
+    private File legacyFile;
+    private SecretKey key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        key = generator.generateKey();
+        KeystoreHelper.setSecretKeySource(() -> key);
+        dir = Files.createTempDirectory("keystore-bench").toFile();
+        binaryFile = new File(dir, "binary.dat");
+        legacyFile = new File(dir, "legacy.dat");
+        KeystoreHelper.storePrivateKey(binaryFile, PRIVKEY);
+        LegacyKeyFile.store(legacyFile, key, PRIVKEY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        KeystoreHelper.setSecretKeySource(null);
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean storeBinary() {
+        return KeystoreHelper.storePrivateKey(binaryFile, PRIVKEY);
+    }
+
+    @Benchmark
+    public File storeLegacy() throws Exception {
+        LegacyKeyFile.store(legacyFile, key, PRIVKEY);
+        return legacyFile;
+    }
+
+    @Benchmark
+    public byte loadBinary() {
+        byte[] privkey = KeystoreHelper.getPrivateKey(binaryFile);
+        byte first = privkey[0];
+        Arrays.fill(privkey, (byte) 0);
+        return first;
+    }
+
+    @Benchmark
+    public String loadLegacy() throws Exception {
+        return LegacyKeyFile.load(legacyFile, key);
+    }
+}
@@ -0,0 +1,75 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+public class KeystoreHelperTest {
+    private static final String PRIVKEY = "7f3b0a8e5c1d2f4a6b8c9d0e1f2a3b4c5d6e7f8091a2b3c4d5e6f708192a3b4c";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+        KeystoreHelper.setSecretKeySource(() -> key);
+        file = new File(folder.getRoot(), "encrypted_privkey.dat");
+    }
+
+    @After
+    public void tearDown() {
+        KeystoreHelper.setSecretKeySource(null);
+    }
+
+    @Test
+    public void storedKeyLoadsAsBytes() {
+        assertTrue(KeystoreHelper.storePrivateKey(file, PRIVKEY));
+        assertArrayEquals(Hex.decode(PRIVKEY), KeystoreHelper.getPrivateKey(file));
+        assertFalse(new File(file.getPath() + KeystoreHelper.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void storeReplacesTheOldKey() {
+        String other = PRIVKEY.replace('7', '8');
+        assertTrue(KeystoreHelper.storePrivateKey(file, PRIVKEY));
+        assertTrue(KeystoreHelper.storePrivateKey(file, other));
+        assertArrayEquals(Hex.decode(other), KeystoreHelper.getPrivateKey(file));
+    }
+
+    @Test
+    public void tamperedHeaderFailsDecryption() throws Exception {
+        assertTrue(KeystoreHelper.storePrivateKey(file, PRIVKEY));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // IV length byte, authenticated as associated data
+            raf.seek(5);
+            assertEquals(12, raf.read());
+            raf.seek(5);
+            raf.write(11);
+        }
+        assertNull(KeystoreHelper.getPrivateKey(file));
+    }
+
+    @Test
+    public void missingFileLoadsNothing() {
+        assertNull(KeystoreHelper.getPrivateKey(file));
+    }
+}
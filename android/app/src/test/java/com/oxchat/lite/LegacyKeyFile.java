@@ -0,0 +1,52 @@
+package com.oxchat.lite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * The key file KeystoreHelper wrote before the binary format: Base64 text of IV + ciphertext, written in place
+ * without fsync; the baseline of the benchmark. java.util.Base64 stands in for android.util.Base64
+ */
+final class LegacyKeyFile {
+    private static final int GCM_IV_LENGTH = 12;
+
+    private LegacyKeyFile() {
+    }
+
+    static void store(File file, SecretKey key, String plaintext) throws Exception {
+        Cipher cipher = Cipher.getInstance(KeystoreHelper.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        byte[] encryptedBytes = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+        byte[] iv = cipher.getIV();
+        byte[] combined = new byte[iv.length + encryptedBytes.length];
+        System.arraycopy(iv, 0, combined, 0, iv.length);
+        System.arraycopy(encryptedBytes, 0, combined, iv.length, encryptedBytes.length);
+        String encryptedData = Base64.getMimeEncoder().encodeToString(combined);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(encryptedData.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static String load(File file, SecretKey key) throws Exception {
+        byte[] fileData;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            fileData = new byte[(int) file.length()];
+            fis.read(fileData);
+        }
+        byte[] combined = Base64.getMimeDecoder().decode(new String(fileData, StandardCharsets.UTF_8));
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        byte[] encryptedBytes = new byte[combined.length - GCM_IV_LENGTH];
+        System.arraycopy(combined, 0, iv, 0, GCM_IV_LENGTH);
+        System.arraycopy(combined, GCM_IV_LENGTH, encryptedBytes, 0, encryptedBytes.length);
+        Cipher cipher = Cipher.getInstance(KeystoreHelper.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(KeystoreHelper.GCM_TAG_LENGTH, iv));
+        return new String(cipher.doFinal(encryptedBytes), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,71 @@
+package com.oxchat.lite;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The org.json path frames took before RelayFrameParser: a full JSONArray tree per frame, read into the same
+ * RelayFrame fields so both do the same work
+ */
+final class OrgJsonFrameParser {
+    private OrgJsonFrameParser() {
+    }
+
+    static RelayFrame parse(String message) throws JSONException {
+        JSONArray array = new JSONArray(message);
+        RelayFrame frame = new RelayFrame();
+        frame.typeName = array.getString(0);
+        switch (frame.typeName) {
+            case "EVENT":
+                frame.type = RelayFrame.Type.EVENT;
+                frame.subscriptionId = array.getString(1);
+                JSONObject event = array.getJSONObject(2);
+                frame.eventId = event.getString("id");
+                frame.pubkey = event.getString("pubkey");
+                frame.createdAt = event.getLong("created_at");
+                frame.kind = event.getInt("kind");
+                frame.content = event.getString("content");
+                frame.sig = event.getString("sig");
+                JSONArray tags = event.getJSONArray("tags");
+                frame.tags = new String[tags.length()][];
+                for (int i = 0; i < tags.length(); i++) {
+                    JSONArray tag = tags.getJSONArray(i);
+                    frame.tags[i] = new String[tag.length()];
+                    for (int j = 0; j < tag.length(); j++) {
+                        frame.tags[i][j] = tag.getString(j);
+                    }
+                    if (frame.groupId == null && tag.length() > 1 && "h".equals(frame.tags[i][0])) {
+                        frame.groupId = frame.tags[i][1];
+                    }
+                }
+                break;
+            case "EOSE":
+                frame.type = RelayFrame.Type.EOSE;
+                frame.subscriptionId = array.getString(1);
+                break;
+            case "OK":
+                frame.type = RelayFrame.Type.OK;
+                frame.eventId = array.getString(1);
+                frame.accepted = array.getBoolean(2);
+                frame.message = array.optString(3, null);
+                break;
+            case "NOTICE":
+                frame.type = RelayFrame.Type.NOTICE;
+                frame.message = array.getString(1);
+                break;
+            case "CLOSED":
+                frame.type = RelayFrame.Type.CLOSED;
+                frame.subscriptionId = array.getString(1);
+                frame.message = array.optString(2, null);
+                break;
+            case "AUTH":
+                frame.type = RelayFrame.Type.AUTH;
+                frame.message = array.getString(1);
+                break;
+            default:
+                break;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,66 @@
+package com.oxchat.lite;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RelayConnection.Listener that keeps every frame for the test, and optionally reacts to them on the connection thread
+ */
+final class RecordingListener implements RelayConnection.Listener {
+    interface FrameHandler {
+        void onFrame(RelayConnection relay, RelayFrame frame);
+    }
+
+    final BlockingQueue<RelayFrame> frames = new LinkedBlockingQueue<>();
+    final AtomicInteger opens = new AtomicInteger();
+    final AtomicInteger events = new AtomicInteger();
+    // Keeping EVENTs costs memory under load, counting them is enough there
+    volatile boolean keepEvents = true;
+    volatile FrameHandler handler;
+
+    @Override
+    public void onRelayOpen(RelayConnection relay) {
+        opens.incrementAndGet();
+    }
+
+    @Override
+    public void onRelayFrame(RelayConnection relay, RelayFrame frame) {
+        FrameHandler current = handler;
+        if (current != null) {
+            current.onFrame(relay, frame);
+        }
+        if (frame.type == RelayFrame.Type.EVENT) {
+            events.incrementAndGet();
+            if (!keepEvents) return;
+        }
+        frames.add(frame);
+    }
+
+    /**
+     * Next frame of this type, skipping others; null on timeout
+     */
+    RelayFrame take(RelayFrame.Type type, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            RelayFrame frame = left > 0 ? frames.poll(left, TimeUnit.MILLISECONDS) : null;
+            if (frame == null || frame.type == type) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Wait until this many EVENTs arrived in total
+     */
+    boolean awaitEvents(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (events.get() < count) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+}
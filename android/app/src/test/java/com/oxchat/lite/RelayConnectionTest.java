@@ -0,0 +1,183 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Collections;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+
+public class RelayConnectionTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final RecordingListener listener = new RecordingListener();
+    private final TestEvents events = new TestEvents();
+    private FakeRelay relay;
+    private RelayConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        relay = new FakeRelay().start();
+        connection = new RelayConnection(relay.url(), httpClient, scheduler, scheduler, 0, listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.run(() -> connection.disconnect());
+        scheduler.shutdown();
+        relay.shutdown();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    @Test
+    public void requestIsAnsweredWithEose() throws Exception {
+        connect();
+        scheduler.run(() -> connection.sendRequest("sub-1", "[\"REQ\",\"sub-1\",{\"kinds\":[9]}]"));
+
+        JSONArray request = relay.take("REQ", TIMEOUT_MS);
+        assertNotNull(request);
+        assertEquals("sub-1", request.getString(1));
+        RelayFrame eose = listener.take(RelayFrame.Type.EOSE, TIMEOUT_MS);
+        assertNotNull(eose);
+        assertEquals("sub-1", eose.subscriptionId);
+    }
+
+    @Test
+    public void eventsArriveInOrder() throws Exception {
+        connect();
+        String subscriptionId = subscribe();
+        String[] ids = new String[50];
+        for (int i = 0; i < ids.length; i++) {
+            String event = events.groupMessage("group", 1700000000L + i, "message " + i);
+            ids[i] = new org.json.JSONObject(event).getString("id");
+            relay.sendEvent(subscriptionId, event);
+        }
+
+        for (String id : ids) {
+            RelayFrame frame = listener.take(RelayFrame.Type.EVENT, TIMEOUT_MS);
+            assertNotNull(frame);
+            assertEquals(id, frame.eventId);
+            assertEquals("group", frame.groupId);
+        }
+    }
+
+    @Test
+    public void authChallengeIsAnswered() throws Exception {
+        relay.authChallenge = "challenge-1";
+        relay.requireAuth = true;
+        listener.handler = (relayConnection, frame) -> {
+            if (frame.type == RelayFrame.Type.AUTH) {
+                relayConnection.onAuthChallenge();
+                relayConnection.sendAuth(events.auth(relayConnection.url, frame.message));
+            }
+        };
+        connect();
+
+        RelayFrame ok = listener.take(RelayFrame.Type.OK, TIMEOUT_MS);
+        assertNotNull(ok);
+        assertTrue(ok.message, ok.accepted);
+        assertEquals(1, relay.authAccepted());
+        assertEquals(ConnectionStateMachine.State.AUTHENTICATING, scheduler.call(() -> connection.getState()));
+
+        scheduler.run(() -> connection.sendRequest("sub-1", "[\"REQ\",\"sub-1\",{\"kinds\":[9]}]"));
+        assertNotNull(listener.take(RelayFrame.Type.EOSE, TIMEOUT_MS));
+    }
+
+    @Test
+    public void requestBeforeAuthIsClosed() throws Exception {
+        relay.requireAuth = true;
+        connect();
+        scheduler.run(() -> connection.sendRequest("sub-1", "[\"REQ\",\"sub-1\",{\"kinds\":[9]}]"));
+
+        RelayFrame closed = listener.take(RelayFrame.Type.CLOSED, TIMEOUT_MS);
+        assertNotNull(closed);
+        assertEquals("sub-1", closed.subscriptionId);
+        assertTrue(closed.message, closed.message.startsWith("auth-required:"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void unknownFramesShareOneCounter() throws Exception {
+        connect();
+        PushMetrics.get().reset();
+        relay.send("[\"FOO\",\"a\"]");
+        relay.send("[\"BAR-1\"]");
+        relay.send("[\"BAR-2\",{}]");
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(listener.take(RelayFrame.Type.UNKNOWN, TIMEOUT_MS));
+        }
+        Map<String, Long> counters = (Map<String, Long>) PushMetrics.get().snapshot().get("counters");
+        assertEquals(Long.valueOf(3), counters.get(PushMetrics.FRAMES_PREFIX + "UNKNOWN"));
+        for (String counter : counters.keySet()) {
+            assertFalse(counter, counter.startsWith(PushMetrics.FRAMES_PREFIX + "FOO"));
+            assertFalse(counter, counter.startsWith(PushMetrics.FRAMES_PREFIX + "BAR"));
+        }
+    }
+
+    @Test
+    public void eventsOfOtherSubscriptionsKeepOnlyTheirId() throws Exception {
+        connect();
+        subscribe();
+        relay.sendEvent("sub-gone", events.groupMessage("group", 1700000000L, "late"));
+
+        RelayFrame frame = listener.take(RelayFrame.Type.EVENT, TIMEOUT_MS);
+        assertNotNull(frame);
+        assertEquals("sub-gone", frame.subscriptionId);
+        assertNull(frame.eventId);
+        assertNull(frame.content);
+        assertNull(frame.tags);
+    }
+
+    @Test
+    public void reconnectsAfterAbruptDisconnect() throws Exception {
+        connect();
+        relay.disconnect();
+
+        // First backoff is 1-2 seconds
+        assertTrue(relay.awaitConnections(2, TIMEOUT_MS));
+        assertTrue(awaitOpen());
+        assertEquals(2, listener.opens.get());
+
+        relay.sendEvent(subscribe(), events.groupMessage("group", 1700000000L, "after reconnect"));
+        assertNotNull(listener.take(RelayFrame.Type.EVENT, TIMEOUT_MS));
+    }
+
+    private void connect() throws Exception {
+        scheduler.run(() -> connection.connectIfIdle());
+        assertTrue(relay.awaitConnections(1, TIMEOUT_MS));
+        assertTrue(awaitOpen());
+    }
+
+    /**
+     * Watch "group", the connection reads EVENTs of its own subscriptions only
+     * @return the subscription id
+     */
+    private String subscribe() throws Exception {
+        return scheduler.call(() -> {
+            connection.subscriptions.update(Collections.singletonList("group"));
+            return connection.subscriptions.ids().iterator().next();
+        });
+    }
+
+    private boolean awaitOpen() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!scheduler.call(() -> connection.isOpen())) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
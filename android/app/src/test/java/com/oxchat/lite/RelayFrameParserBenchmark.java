@@ -0,0 +1,75 @@
+package com.oxchat.lite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okio.ByteString;
+
+/**
+ * RelayFrameParser against the org.json tree it replaced, on recorded frames, for text and binary WebSocket messages
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RelayFrameParserBenchmark {
+    @Param({"event", "event_large", "eose", "ok", "auth"})
+    public String frame;
+
+    private String text;
+    private ByteString bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<String> frames = RelayFrames.load();
+        switch (frame) {
+            case "event" -> text = frames.get(RelayFrames.EVENT);
+            case "event_large" -> text = frames.get(RelayFrames.EVENT_LARGE);
+            case "eose" -> text = frames.get(RelayFrames.EOSE);
+            case "ok" -> text = frames.get(RelayFrames.OK);
+            case "auth" -> text = frames.get(RelayFrames.AUTH);
+            default -> throw new IllegalArgumentException(frame);
+        }
+        bytes = ByteString.encodeUtf8(text);
+    }
+
+    @Benchmark
+    public RelayFrame streamingText() throws Exception {
+        return RelayFrameParser.parse(text);
+    }
+
+    @Benchmark
+    public RelayFrame streamingBinary() throws Exception {
+        return RelayFrameParser.parse(bytes);
+    }
+
+    @Benchmark
+    public RelayFrame streamingTextSkipped() throws Exception {
+        // An EVENT of a subscription the service no longer has, only its subscription id is read
+        return RelayFrameParser.parse(text, Collections.<String>emptySet());
+    }
+
+    @Benchmark
+    public RelayFrame orgJsonText() throws Exception {
+        return OrgJsonFrameParser.parse(text);
+    }
+
+    @Benchmark
+    public RelayFrame orgJsonBinary() throws Exception {
+        // What onMessage(ByteString) did: decode to a String, then build the tree
+        return OrgJsonFrameParser.parse(bytes.utf8());
+    }
+}
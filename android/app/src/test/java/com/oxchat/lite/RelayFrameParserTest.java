@@ -0,0 +1,100 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import okio.ByteString;
+
+public class RelayFrameParserTest {
+    @Test
+    public void recordedFramesMatchTheOrgJsonTree() throws Exception {
+        for (String text : RelayFrames.load()) {
+            RelayFrame expected = OrgJsonFrameParser.parse(text);
+            assertSameFrame(text, expected, RelayFrameParser.parse(text));
+            assertSameFrame(text, expected, RelayFrameParser.parse(ByteString.encodeUtf8(text)));
+        }
+    }
+
+    @Test
+    public void countFrame() throws Exception {
+        RelayFrame frame = RelayFrameParser.parse("[\"COUNT\",\"count-1\",{\"count\":42,\"approximate\":true}]");
+        assertEquals(RelayFrame.Type.COUNT, frame.type);
+        assertEquals("count-1", frame.subscriptionId);
+        assertEquals(42, frame.count);
+        assertTrue(frame.approximate);
+    }
+
+    @Test
+    public void unknownFrameKeepsItsType() throws Exception {
+        RelayFrame frame = RelayFrameParser.parse("[\"FOO\",{\"bar\":[1,2,3]},\"baz\"]");
+        assertEquals(RelayFrame.Type.UNKNOWN, frame.type);
+        assertEquals("FOO", frame.typeName);
+    }
+
+    @Test
+    public void eventWithNonStringTagHasNoTags() throws Exception {
+        RelayFrame frame = RelayFrameParser.parse("[\"EVENT\",\"s\",{\"id\":\"00\",\"pubkey\":\"01\",\"created_at\":1,"
+                + "\"kind\":9,\"tags\":[[\"h\",1]],\"content\":\"\",\"sig\":\"02\"}]");
+        assertEquals(RelayFrame.Type.EVENT, frame.type);
+        assertNull(frame.tags);
+        assertFalse(frame.content == null);
+    }
+
+    @Test
+    public void eventOfOtherSubscriptionIsSkipped() throws Exception {
+        String text = "[\"EVENT\",\"other\",{\"id\":\"00\",\"pubkey\":\"01\",\"created_at\":1,\"kind\":9,"
+                + "\"tags\":[[\"h\",\"g\"]],\"content\":\"x\",\"sig\":\"02\"}]";
+        RelayFrame frame = RelayFrameParser.parse(ByteString.encodeUtf8(text), Collections.singleton("s"));
+        assertEquals(RelayFrame.Type.EVENT, frame.type);
+        assertEquals("other", frame.subscriptionId);
+        assertNull(frame.eventId);
+        assertNull(frame.content);
+        assertNull(frame.groupId);
+
+        RelayFrame wanted = RelayFrameParser.parse(text, Collections.singleton("other"));
+        assertEquals("00", wanted.eventId);
+        assertEquals("x", wanted.content);
+    }
+
+    @Test
+    public void malformedEventsAreNotWellFormed() throws Exception {
+        String[] frames = {
+                "[\"EVENT\",\"s\"]",
+                "[\"EVENT\",\"s\",{\"id\":\"00\",\"created_at\":1,\"kind\":9,\"tags\":[],\"content\":\"\",\"sig\":\"02\"}]",
+                "[\"EVENT\",\"s\",{\"id\":\"00\",\"pubkey\":\"01\",\"created_at\":1,\"kind\":9,\"tags\":[],\"content\":\"\"}]",
+                "[\"EVENT\",\"s\",{\"id\":\"00\",\"pubkey\":\"01\",\"created_at\":1,\"kind\":9,\"tags\":[[\"h\",1]],"
+                        + "\"content\":\"\",\"sig\":\"02\"}]",
+                "[\"EVENT\",\"s\",{\"id\":\"00\",\"pubkey\":\"01\",\"kind\":9,\"tags\":[],\"content\":\"\",\"sig\":\"02\"}]",
+        };
+        for (String text : frames) {
+            RelayFrame frame = RelayFrameParser.parse(text);
+            assertEquals(text, RelayFrame.Type.EVENT, frame.type);
+            assertFalse(text, EventVerifier.isWellFormed(frame));
+        }
+        RelayFrame complete = RelayFrameParser.parse("[\"EVENT\",\"s\",{\"id\":\"00\",\"pubkey\":\"01\",\"created_at\":1,"
+                + "\"kind\":9,\"tags\":[[\"h\",\"g\"]],\"content\":\"\",\"sig\":\"02\"}]");
+        assertTrue(EventVerifier.isWellFormed(complete));
+    }
+
+    private static void assertSameFrame(String text, RelayFrame expected, RelayFrame actual) {
+        assertEquals(text, expected.type, actual.type);
+        assertEquals(text, expected.subscriptionId, actual.subscriptionId);
+        assertEquals(text, expected.eventId, actual.eventId);
+        assertEquals(text, expected.kind, actual.kind);
+        assertEquals(text, expected.createdAt, actual.createdAt);
+        assertEquals(text, expected.groupId, actual.groupId);
+        assertEquals(text, expected.pubkey, actual.pubkey);
+        assertArrayEquals(text, expected.tags, actual.tags);
+        assertEquals(text, expected.content, actual.content);
+        assertEquals(text, expected.sig, actual.sig);
+        assertEquals(text, expected.accepted, actual.accepted);
+        assertEquals(text, expected.message, actual.message);
+    }
+}
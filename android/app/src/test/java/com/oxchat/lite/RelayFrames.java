@@ -0,0 +1,39 @@
+package com.oxchat.lite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorded relay frames from relay_frames.txt, one frame per line: NIP-29 and NIP-EE group EVENTs, EOSE, OK, AUTH,
+ * CLOSED and NOTICE as a push relay sends them
+ */
+final class RelayFrames {
+    static final int EVENT = 0;
+    // 3.2 KB NIP-EE ciphertext
+    static final int EVENT_LARGE = 5;
+    static final int EOSE = 6;
+    static final int OK = 7;
+    static final int AUTH = 9;
+
+    private RelayFrames() {
+    }
+
+    static List<String> load() throws IOException {
+        List<String> frames = new ArrayList<>();
+        try (InputStream in = RelayFrames.class.getClassLoader().getResourceAsStream("relay_frames.txt");
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    frames.add(line);
+                }
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,69 @@
+package com.oxchat.lite;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes EVENT frames through a FakeRelay, as fast as the socket takes them or at a fixed rate
+ * Frames are rendered up front from a pool of signed events, so the generator costs the client side nothing
+ */
+final class RelayLoadGenerator {
+    // OkHttp closes a socket whose send queue passes 16 MiB, stay well below
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+    static final class Result {
+        final int sent;
+        final long elapsedNanos;
+
+        Result(int sent, long elapsedNanos) {
+            this.sent = sent;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double framesPerSecond() {
+            return elapsedNanos > 0 ? sent * 1e9 / elapsedNanos : 0;
+        }
+    }
+
+    private final FakeRelay relay;
+    private final String[] frames;
+
+    /**
+     * @param events signed event objects, cycled through
+     */
+    RelayLoadGenerator(FakeRelay relay, String subscriptionId, String[] events) {
+        this.relay = relay;
+        this.frames = new String[events.length];
+        for (int i = 0; i < events.length; i++) {
+            frames[i] = "[\"EVENT\",\"" + subscriptionId + "\"," + events[i] + "]";
+        }
+    }
+
+    /**
+     * Send count frames on the calling thread
+     * @param framesPerSecond target rate, 0 for as fast as the socket drains
+     * @return what was sent before the socket went away, and how long it took
+     */
+    Result run(int count, int framesPerSecond) {
+        long intervalNanos = framesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / framesPerSecond : 0;
+        long start = System.nanoTime();
+        int sent = 0;
+        while (sent < count) {
+            if (intervalNanos > 0) {
+                long due = start + sent * intervalNanos;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            while (relay.queueSize() > MAX_QUEUED_BYTES) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            if (!relay.send(frames[sent % frames.length])) {
+                break;
+            }
+            sent++;
+        }
+        return new Result(sent, System.nanoTime() - start);
+    }
+}
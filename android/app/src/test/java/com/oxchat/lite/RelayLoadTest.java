@@ -0,0 +1,134 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Load through the whole relay client path (socket, parse, hand-off to the connection thread) against FakeRelay
+ * Prints throughput, reconnect time and AUTH latency for comparing runs on the same machine; asserts only that
+ * nothing is lost
+ */
+public class RelayLoadTest {
+    private static final int BURST_FRAMES = 20000;
+    private static final int AUTH_ROUNDS = 200;
+    private static final long TIMEOUT_MS = 60000;
+
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final RecordingListener listener = new RecordingListener();
+    private FakeRelay relay;
+    private RelayConnection connection;
+    private RelayLoadGenerator generator;
+
+    @Before
+    public void setUp() throws Exception {
+        relay = new FakeRelay().start();
+        connection = new RelayConnection(relay.url(), httpClient, scheduler, scheduler, 0, listener);
+        listener.keepEvents = false;
+        TestEvents events = new TestEvents();
+        String[] pool = new String[256];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = events.groupMessage("group-" + (i % 16), 1700000000L + i, "load message " + i);
+        }
+        // The connection reads only EVENTs of its own subscriptions in full
+        connection.subscriptions.update(Collections.singletonList("group"));
+        generator = new RelayLoadGenerator(relay, connection.subscriptions.ids().iterator().next(), pool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.run(() -> connection.disconnect());
+        scheduler.shutdown();
+        relay.shutdown();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    @Test
+    public void burstIsDeliveredCompletely() throws Exception {
+        connect(1);
+        long start = System.nanoTime();
+        RelayLoadGenerator.Result result = generator.run(BURST_FRAMES, 0);
+        assertEquals(BURST_FRAMES, result.sent);
+        assertTrue(listener.awaitEvents(BURST_FRAMES, TIMEOUT_MS));
+        long deliveredNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "relay load: %d EVENT frames sent at %.0f/s, delivered at %.0f/s",
+                BURST_FRAMES, result.framesPerSecond(), BURST_FRAMES * 1e9 / deliveredNanos));
+    }
+
+    @Test
+    public void pacedBurstIsDeliveredCompletely() throws Exception {
+        connect(1);
+        RelayLoadGenerator.Result result = generator.run(5000, 5000);
+        assertEquals(5000, result.sent);
+        assertTrue(listener.awaitEvents(5000, TIMEOUT_MS));
+
+        System.out.println(String.format(Locale.US, "relay load: 5000 EVENT frames paced at 5000/s, sent at %.0f/s",
+                result.framesPerSecond()));
+    }
+
+    @Test
+    public void burstAfterReconnectIsDeliveredCompletely() throws Exception {
+        connect(1);
+        generator.run(BURST_FRAMES / 2, 0);
+        assertTrue(listener.awaitEvents(BURST_FRAMES / 2, TIMEOUT_MS));
+
+        long dropAt = System.nanoTime();
+        relay.disconnect();
+        connect(2);
+        long reconnectMs = (System.nanoTime() - dropAt) / 1000000;
+        RelayLoadGenerator.Result result = generator.run(BURST_FRAMES / 2, 0);
+        assertEquals(BURST_FRAMES / 2, result.sent);
+        assertTrue(listener.awaitEvents(BURST_FRAMES, TIMEOUT_MS));
+
+        System.out.println(String.format(Locale.US, "relay load: reconnected in %dms (backoff included), second burst sent at %.0f/s",
+                reconnectMs, result.framesPerSecond()));
+    }
+
+    @Test
+    public void authLatency() throws Exception {
+        final TestEvents events = new TestEvents();
+        listener.handler = (relayConnection, frame) -> {
+            if (frame.type == RelayFrame.Type.AUTH) {
+                relayConnection.sendAuth(events.auth(relayConnection.url, frame.message));
+            }
+        };
+        connect(1);
+        long[] latencies = new long[AUTH_ROUNDS];
+        for (int i = 0; i < AUTH_ROUNDS; i++) {
+            relay.authChallenge = "challenge-" + i;
+            long start = System.nanoTime();
+            relay.sendAuthChallenge(relay.authChallenge);
+            RelayFrame ok = listener.take(RelayFrame.Type.OK, TIMEOUT_MS);
+            assertNotNull(ok);
+            assertTrue(ok.message, ok.accepted);
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        assertEquals(AUTH_ROUNDS, relay.authAccepted());
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "relay load: AUTH challenge to OK p50=%dus p90=%dus p99=%dus over %d rounds",
+                latencies[AUTH_ROUNDS / 2], latencies[AUTH_ROUNDS * 9 / 10], latencies[AUTH_ROUNDS * 99 / 100], AUTH_ROUNDS));
+    }
+
+    private void connect(int connections) throws Exception {
+        scheduler.run(() -> connection.connectIfIdle());
+        assertTrue(relay.awaitConnections(connections, TIMEOUT_MS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!scheduler.call(() -> connection.isOpen())) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
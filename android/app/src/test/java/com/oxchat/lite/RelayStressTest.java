@@ -0,0 +1,204 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Several relays flooding EVENTs while connections are dropped, closed and reopened from both ends, the way the push
+ * service runs them: every connection confined to one thread
+ * Checks that each callback runs on that thread and never overlaps another, and that every relay recovers and delivers
+ * a complete burst once the churn stops
+ */
+public class RelayStressTest {
+    private static final int RELAYS = 3;
+    private static final int FRAMES_PER_RELAY = 20000;
+    private static final int CHURN_ROUNDS = 100;
+    private static final int FINAL_BURST = 2000;
+    private static final long TIMEOUT_MS = 60000;
+
+    /**
+     * Keeps unsynchronized state like the service does, and checks it is only ever touched from the connection thread
+     */
+    private static final class ConfinedListener implements RelayConnection.Listener {
+        final AtomicReference<Thread> owner = new AtomicReference<>();
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        // Plain maps, safe only under confinement
+        final Map<String, Integer> events = new HashMap<>();
+        final Map<String, Integer> opens = new HashMap<>();
+
+        @Override
+        public void onRelayOpen(RelayConnection relay) {
+            enter();
+            opens.merge(relay.url, 1, Integer::sum);
+            exit();
+        }
+
+        @Override
+        public void onRelayFrame(RelayConnection relay, RelayFrame frame) {
+            enter();
+            if (frame.type == RelayFrame.Type.EVENT) {
+                events.merge(relay.url, 1, Integer::sum);
+            }
+            exit();
+        }
+
+        private void enter() {
+            if (inside.incrementAndGet() != 1 || owner.get() != Thread.currentThread()) {
+                violations.incrementAndGet();
+            }
+        }
+
+        private void exit() {
+            inside.decrementAndGet();
+        }
+    }
+
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final ConfinedListener listener = new ConfinedListener();
+    private final List<FakeRelay> relays = new ArrayList<>();
+    private final List<RelayConnection> connections = new ArrayList<>();
+    private final List<RelayLoadGenerator> generators = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler.run(() -> listener.owner.set(Thread.currentThread()));
+        TestEvents events = new TestEvents();
+        String[] pool = new String[64];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = events.groupMessage("group-" + (i % 8), 1700000000L + i, "stress " + i);
+        }
+        for (int i = 0; i < RELAYS; i++) {
+            FakeRelay relay = new FakeRelay().start();
+            relays.add(relay);
+            RelayConnection connection = new RelayConnection(relay.url(), httpClient, scheduler, scheduler, 0, listener);
+            // The connection reads only EVENTs of its own subscriptions in full
+            connection.subscriptions.update(Collections.singletonList("group"));
+            connections.add(connection);
+            generators.add(new RelayLoadGenerator(relay, connection.subscriptions.ids().iterator().next(), pool));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (RelayConnection connection : connections) {
+            scheduler.run(() -> connection.disconnect());
+        }
+        scheduler.shutdown();
+        for (FakeRelay relay : relays) {
+            relay.shutdown();
+        }
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    @Test
+    public void connectionsStayConfinedAndRecoverUnderChurn() throws Exception {
+        for (RelayConnection connection : connections) {
+            scheduler.run(() -> connection.connectIfIdle());
+        }
+        for (FakeRelay relay : relays) {
+            assertTrue(relay.awaitConnections(1, TIMEOUT_MS));
+        }
+
+        // Floods run until the churn is over, whatever reaches a socket that is being dropped is lost
+        List<Thread> floods = new ArrayList<>();
+        for (final RelayLoadGenerator generator : generators) {
+            Thread flood = new Thread(() -> {
+                int sent = 0;
+                while (sent < FRAMES_PER_RELAY && !Thread.currentThread().isInterrupted()) {
+                    int burst = generator.run(500, 0).sent;
+                    sent += burst;
+                    if (burst == 0) {
+                        // Socket gone, wait for the reconnect
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            flood.start();
+            floods.add(flood);
+        }
+
+        Random random = new Random(7);
+        for (int round = 0; round < CHURN_ROUNDS; round++) {
+            int index = random.nextInt(RELAYS);
+            final RelayConnection connection = connections.get(index);
+            switch (random.nextInt(3)) {
+                case 0:
+                    // Relay restart; a network change follows so the test doesn't wait out the backoff
+                    relays.get(index).disconnect();
+                    scheduler.run(() -> connection.onNetworkAvailable());
+                    break;
+                case 1:
+                    scheduler.run(() -> {
+                        connection.disconnect();
+                        connection.connectIfIdle();
+                    });
+                    break;
+                default:
+                    scheduler.run(() -> connection.onNetworkLost());
+                    Thread.sleep(random.nextInt(20));
+                    scheduler.run(() -> connection.onNetworkAvailable());
+                    break;
+            }
+            Thread.sleep(random.nextInt(50));
+        }
+        for (Thread flood : floods) {
+            flood.interrupt();
+            flood.join(TIMEOUT_MS);
+        }
+
+        // Churn is over: every relay must come back and deliver a whole burst
+        Map<String, Integer> before = new HashMap<>();
+        for (int i = 0; i < RELAYS; i++) {
+            final RelayConnection connection = connections.get(i);
+            scheduler.run(() -> connection.onNetworkAvailable());
+            awaitOpen(connection);
+            before.put(connection.url, scheduler.call(() -> listener.events.getOrDefault(connection.url, 0)));
+            assertEquals(FINAL_BURST, generators.get(i).run(FINAL_BURST, 0).sent);
+        }
+        for (final RelayConnection connection : connections) {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (scheduler.call(() -> listener.events.getOrDefault(connection.url, 0)) < before.get(connection.url) + FINAL_BURST) {
+                assertTrue("final burst incomplete on " + connection.url, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+
+        assertEquals(0, listener.violations.get());
+        int total = 0;
+        for (RelayConnection connection : connections) {
+            total += scheduler.call(() -> listener.events.getOrDefault(connection.url, 0));
+            assertTrue(scheduler.call(() -> listener.opens.getOrDefault(connection.url, 0)) >= 1);
+        }
+        System.out.println("relay stress: " + total + " EVENT frames delivered over " + RELAYS + " relays, "
+                + CHURN_ROUNDS + " forced reconnects");
+    }
+
+    private void awaitOpen(final RelayConnection connection) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!scheduler.call(() -> connection.isOpen())) {
+            assertTrue("no reconnect to " + connection.url, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
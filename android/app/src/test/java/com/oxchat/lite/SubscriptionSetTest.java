@@ -0,0 +1,93 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SubscriptionSetTest {
+
+    private static List<String> sendAll(SubscriptionSet set) {
+        List<String> ids = new ArrayList<>();
+        for (SubscriptionSet.Shard shard : set.pending()) {
+            set.onRequestSent(shard, 0);
+            ids.add(shard.id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void resetWithNewIdsClosesTheOpenRequests() {
+        SubscriptionSet set = new SubscriptionSet(8, 2);
+        set.update(Arrays.asList("a", "b", "c"));
+        List<String> sent = sendAll(set);
+        assertEquals(2, sent.size());
+
+        List<String> replaced = set.reset(true);
+
+        assertEquals(sent, replaced);
+        List<String> resent = sendAll(set);
+        assertEquals(2, resent.size());
+        for (String id : resent) {
+            assertFalse(sent.contains(id));
+        }
+        // Late EVENTs of a replaced REQ don't belong to any shard
+        assertNull(set.find(sent.get(0)));
+    }
+
+    @Test
+    public void resetSkipsRequestsTheRelayClosed() {
+        SubscriptionSet set = new SubscriptionSet(8, 2);
+        set.update(Arrays.asList("a", "b", "c"));
+        List<String> sent = sendAll(set);
+        // Closed for missing AUTH, there is nothing left to CLOSE
+        set.onClosedByRelay(set.find(sent.get(0)));
+
+        assertEquals(Collections.singletonList(sent.get(1)), set.reset(true));
+    }
+
+    @Test
+    public void resetForNewSocketKeepsIds() {
+        SubscriptionSet set = new SubscriptionSet(8, 2);
+        set.update(Arrays.asList("a", "b", "c"));
+        List<String> sent = sendAll(set);
+
+        // The old socket took its REQs with it
+        assertTrue(set.reset(false).isEmpty());
+        assertEquals(sent, sendAll(set));
+        assertFalse(set.allEoseReceived());
+    }
+
+    @Test
+    public void updateTouchesOnlyChangedShards() {
+        SubscriptionSet set = new SubscriptionSet(8, 2);
+        set.update(Arrays.asList("a", "b", "c", "d"));
+        List<String> sent = sendAll(set);
+        SubscriptionSet.Shard unchanged = set.find(sent.get(1));
+
+        List<String> closed = set.update(Arrays.asList("c", "d", "e"));
+
+        assertEquals(Collections.singletonList(sent.get(0)), closed);
+        List<SubscriptionSet.Shard> pending = set.pending();
+        assertEquals(1, pending.size());
+        assertTrue(pending.get(0).groups.contains("e"));
+        assertSame(unchanged, set.find(sent.get(1)));
+        assertFalse(unchanged.dirty);
+    }
+
+    @Test
+    public void groupsBeyondTheLastShardOverflow() {
+        SubscriptionSet set = new SubscriptionSet(2, 2);
+        set.update(Arrays.asList("a", "b", "c", "d", "e"));
+        assertEquals(2, set.size());
+        assertEquals(1, set.overflow());
+    }
+}
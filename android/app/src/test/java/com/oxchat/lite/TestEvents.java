@@ -0,0 +1,100 @@
+package com.oxchat.lite;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import fr.acinq.secp256k1.Secp256k1;
+
+/**
+ * Signed Nostr events for tests, built with the production serializer and secp256k1
+ */
+final class TestEvents {
+    static final int KIND_AUTH = 22242;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    final byte[] privateKey;
+    final String pubkey;
+    private final Secp256k1 secp256k1 = Secp256k1.get();
+    private final EventSerializer serializer = new EventSerializer();
+
+    TestEvents() {
+        this(randomKey());
+    }
+
+    TestEvents(byte[] privateKey) {
+        this.privateKey = privateKey;
+        // x-only key: the X coordinate of the uncompressed point
+        this.pubkey = Hex.encode(Arrays.copyOfRange(secp256k1.pubkeyCreate(privateKey), 1, 33));
+    }
+
+    static byte[] randomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Signed event object as a relay would deliver it
+     */
+    String event(long createdAt, int kind, String[][] tags, String content) {
+        byte[] id = serializer.computeId(pubkey, createdAt, kind, tags, content);
+        byte[] aux = new byte[32];
+        random.nextBytes(aux);
+        String sig = Hex.encode(secp256k1.signSchnorr(id, privateKey, aux));
+        return serializer.serializeEvent(Hex.encode(id), pubkey, createdAt, kind, tags, content, sig);
+    }
+
+    /**
+     * NIP-29 group message with an "h" tag
+     */
+    String groupMessage(String groupId, long createdAt, String content) {
+        return event(createdAt, 9, new String[][]{{"h", groupId}}, content);
+    }
+
+    /**
+     * NIP-42 AUTH frame answering a challenge
+     */
+    String auth(String relayUrl, String challenge) {
+        String event = event(System.currentTimeMillis() / 1000, KIND_AUTH,
+                new String[][]{{"relay", relayUrl}, {"challenge", challenge}}, "");
+        return "[\"AUTH\"," + event + "]";
+    }
+
+    /**
+     * Whether an event object has the id of its content and a valid signature
+     */
+    static boolean isValid(JSONObject event) throws JSONException {
+        JSONArray tagsJson = event.getJSONArray("tags");
+        String[][] tags = new String[tagsJson.length()][];
+        for (int i = 0; i < tags.length; i++) {
+            JSONArray tag = tagsJson.getJSONArray(i);
+            tags[i] = new String[tag.length()];
+            for (int j = 0; j < tag.length(); j++) {
+                tags[i][j] = tag.getString(j);
+            }
+        }
+        byte[] id = new EventSerializer().computeId(event.getString("pubkey"), event.getLong("created_at"),
+                event.getInt("kind"), tags, event.getString("content"));
+        return Hex.encode(id).equals(event.getString("id"))
+                && Secp256k1.get().verifySchnorr(Hex.decode(event.getString("sig")), id, Hex.decode(event.getString("pubkey")));
+    }
+
+    /**
+     * Value of the first tag with this name, null if there is none
+     */
+    static String tag(JSONObject event, String name) throws JSONException {
+        JSONArray tags = event.getJSONArray("tags");
+        for (int i = 0; i < tags.length(); i++) {
+            JSONArray tag = tags.getJSONArray(i);
+            if (tag.length() > 1 && name.equals(tag.getString(0))) {
+                return tag.getString(1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+package com.oxchat.lite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import okhttp3.OkHttpClient;
+
+public class UnreadCounterTest {
+    private static final long TIMEOUT_MS = 10000;
+    // Virtual times handed to the counter, the relay itself runs on real time
+    private static final long COUNT_TIMEOUT_MS = 1000;
+    private static final long TTL_MS = 60000;
+
+    private final ExecutorScheduler scheduler = new ExecutorScheduler();
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final RecordingListener listener = new RecordingListener();
+    private final UnreadCounter counter = new UnreadCounter(UnreadCounter.DEFAULT_KINDS, TTL_MS, COUNT_TIMEOUT_MS);
+    private FakeRelay relay;
+    private RelayConnection connection;
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        relay = new FakeRelay().start();
+        connection = new RelayConnection(relay.url(), httpClient, scheduler, scheduler, 0, listener);
+        scheduler.run(() -> connection.connectIfIdle());
+        assertTrue(relay.awaitConnections(1, TIMEOUT_MS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!scheduler.call(() -> connection.isOpen())) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        scheduler.run(() -> counter.setMarkers(Collections.singletonMap("group", 1700000000L)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.run(() -> connection.disconnect());
+        scheduler.shutdown();
+        relay.shutdown();
+        httpClient.dispatcher().executorService().shutdown();
+    }
+
+    @Test
+    public void relayIsSkippedOnlyAfterRepeatedTimeouts() throws Exception {
+        relay.answerCounts = false;
+        for (int round = 1; round < UnreadCounter.MAX_TIMEOUTS; round++) {
+            assertEquals(1, pump());
+            assertTrue(expire());
+        }
+        // One more silent round and the relay is left alone
+        assertEquals(1, pump());
+        assertTrue(expire());
+        assertEquals(0, pump());
+
+        // Only for the TTL
+        now += TTL_MS;
+        assertEquals(1, pump());
+    }
+
+    @Test
+    public void answerStartsTheTimeoutsOver() throws Exception {
+        relay.answerCounts = false;
+        for (int round = 1; round < UnreadCounter.MAX_TIMEOUTS; round++) {
+            assertEquals(1, pump());
+            assertTrue(expire());
+        }
+        relay.answerCounts = true;
+        relay.countAnswer = 3;
+        assertEquals(1, pump());
+        // The relay may still have seen a timed out COUNT after the switch, its late answer isn't ours anymore
+        boolean answered = false;
+        while (!answered) {
+            RelayFrame answer = listener.take(RelayFrame.Type.COUNT, TIMEOUT_MS);
+            assertNotNull(answer);
+            answered = scheduler.call(() -> counter.onCount(answer.subscriptionId, answer.count, now));
+        }
+        assertEquals(3, scheduler.call(() -> counter.totals(Collections.emptyMap())).messages);
+
+        // A new event asks again, and the relay may once more time out a few times
+        scheduler.run(() -> counter.onNewEvents(Collections.singletonList("group")));
+        relay.answerCounts = false;
+        for (int round = 1; round < UnreadCounter.MAX_TIMEOUTS; round++) {
+            assertEquals(1, pump());
+            assertTrue(expire());
+        }
+        assertEquals(1, pump());
+    }
+
+    @Test
+    public void closedCountIsFinal() throws Exception {
+        relay.countAnswer = -1;
+        assertEquals(1, pump());
+        RelayFrame closed = listener.take(RelayFrame.Type.CLOSED, TIMEOUT_MS);
+        assertNotNull(closed);
+        assertTrue(scheduler.call(() -> counter.onClosed(closed.subscriptionId, closed.message)));
+
+        now += 10 * TTL_MS;
+        assertEquals(0, pump());
+    }
+
+    private int pump() throws Exception {
+        return scheduler.call(() -> {
+            counter.refresh(now);
+            return counter.pump(Collections.singletonList(connection), now);
+        });
+    }
+
+    private boolean expire() throws Exception {
+        now += COUNT_TIMEOUT_MS;
+        Map<String, RelayConnection> relays = Collections.singletonMap(connection.url, connection);
+        return scheduler.call(() -> counter.expire(relays, now));
+    }
+}
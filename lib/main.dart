@@ -10,6 +10,8 @@ import 'package:flutter_localizations/flutter_localizations.dart';
 import 'package:ox_common/component.dart';
 import 'package:ox_common/login/login_manager.dart';
 import 'package:ox_common/login/account_path_manager.dart';
+import 'package:ox_common/push/group_message_waiter.dart';
+import 'package:ox_common/push/push_inbox.dart';
 import 'package:ox_common/push/push_notification_manager.dart';
 import 'package:ox_common/scheme/scheme_helper.dart';
 import 'package:ox_common/utils/chat_prompt_tone.dart';
@@ -59,6 +61,37 @@ void main() async {
   });
 }
 
+/// Entrypoint of the headless engine the Android push service starts when
+/// pushes arrive while the app is closed. Fetches the new messages so the
+/// chats are up to date when the notification is opened; the native side
+/// destroys the engine once it is idle or over its time budget.
+@pragma('vm:entry-point')
+void backgroundSyncMain() {
+  const channel = MethodChannel('com.oxchat.lite/background_sync');
+  // Well inside the native run budget, which stops the engine anyway
+  const fetchTimeout = Duration(seconds: 45);
+  final initialized = AppInitializer.shared.initialize();
+  channel.setMethodCallHandler((call) async {
+    if (call.method != 'sync') return null;
+    // Groups of the pushed events, their new messages are what is fetched
+    final groupIds = (call.arguments as List?)?.whereType<String>().toSet() ?? <String>{};
+    await initialized;
+    if (!LoginManager.instance.isLoginCircle) return false;
+    await ThreadPoolManager.sharedInstance.initialize();
+    final waiter = GroupMessageWaiter(groupIds: groupIds);
+    Connect.sharedInstance.checkAndReconnectIfNeeded();
+    final connected = await Connect.sharedInstance
+        .waitForRelayConnection(relayKind: RelayKind.circleRelay);
+    if (!connected) return false;
+    // The relay catch-up of the connection brings the messages in
+    final fetched = await waiter.wait(fetchTimeout);
+    if (!fetched) {
+      LogUtil.w('backgroundSync: ${waiter.missing} of ${groupIds.length} groups got no message');
+    }
+    return fetched;
+  });
+}
+
 class MainApp extends StatefulWidget {
   final String routeName;
 
@@ -242,6 +275,9 @@ class MainState extends State<MainApp>
         CLUserPushNotificationManager.instance.updatePushTokenIfNeeded();
         // For handling notification permission being granted
         CLUserPushNotificationManager.instance.checkAndUpdatePermissionStatus();
+        if (CLUserPushNotificationManager.instance.allowReceiveNotification) {
+          PushInbox.instance.drain();
+        }
         break;
       case AppLifecycleState.paused:
         PromptToneManager.sharedInstance.isAppPaused = true;
@@ -0,0 +1,60 @@
+import 'dart:async';
+
+import 'package:chatcore/chat-core.dart';
+import 'package:ox_common/utils/ox_chat_binding.dart';
+import 'package:ox_common/utils/ox_chat_observer.dart';
+import 'package:ox_common/utils/ox_userinfo_manager.dart';
+
+/// Waits until chatcore has delivered group messages fetched from the
+/// relays: a message for each of [groupIds] and each message of [messageIds].
+class GroupMessageWaiter with OXChatObserver {
+  GroupMessageWaiter({
+    Iterable<String> groupIds = const [],
+    Iterable<String> messageIds = const [],
+  })  : _groupIds = groupIds.toSet(),
+        _messageIds = messageIds.toSet();
+
+  final Set<String> _groupIds;
+  final Set<String> _messageIds;
+  final Completer<bool> _done = Completer<bool>();
+
+  /// Messages already in the database don't arrive again, they count as
+  /// delivered.
+  Future<void> skipStored() async {
+    if (_messageIds.isEmpty) return;
+    final stored = await Messages.sharedInstance
+        .loadMessageDBFromDBWithMsgIds(_messageIds.toList());
+    for (final message in stored) {
+      _delivered(message);
+    }
+  }
+
+  /// Whether everything arrived within [timeout].
+  Future<bool> wait(Duration timeout) async {
+    if (_isComplete) return true;
+    // Sets the chatcore callbacks that feed OXChatBinding
+    OXUserInfoManager.sharedInstance;
+    OXChatBinding.sharedInstance.addObserver(this);
+    try {
+      return await _done.future.timeout(timeout, onTimeout: () => false);
+    } finally {
+      OXChatBinding.sharedInstance.removeObserver(this);
+    }
+  }
+
+  @override
+  void didGroupMessageCallBack(MessageDBISAR message) {
+    _delivered(message);
+  }
+
+  /// Groups and messages still waited for.
+  int get missing => _groupIds.length + _messageIds.length;
+
+  bool get _isComplete => _groupIds.isEmpty && _messageIds.isEmpty;
+
+  void _delivered(MessageDBISAR message) {
+    _groupIds.remove(message.groupId);
+    _messageIds.remove(message.messageId);
+    if (_isComplete && !_done.isCompleted) _done.complete(true);
+  }
+}
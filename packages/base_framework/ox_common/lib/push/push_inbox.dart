@@ -0,0 +1,81 @@
+import 'dart:async';
+import 'dart:convert';
+import 'dart:io';
+
+import 'package:chatcore/chat-core.dart';
+import 'package:flutter/services.dart';
+import 'package:ox_common/log_util.dart';
+import 'package:shared_preferences/shared_preferences.dart';
+
+import 'group_message_waiter.dart';
+
+/// Verified push events the Android push service kept in its inbox while the
+/// app was closed, drained when the app starts or comes back.
+///
+/// chatcore decrypts and stores messages itself, so the drained events tell
+/// the app which messages its relay catch-up has to bring in. The offset is
+/// only saved once the catch-up ran, an app killed on the way drains the same
+/// events again next time.
+class PushInbox {
+  static final PushInbox instance = PushInbox._internal();
+  static const MethodChannel _channel = MethodChannel('com.oxchat.global/perferences');
+  static const String _offsetKey = 'push_inbox_offset';
+  static const Duration _catchUpTimeout = Duration(seconds: 30);
+
+  PushInbox._internal();
+
+  Future<void>? _draining;
+
+  Future<void> drain() {
+    if (!Platform.isAndroid) return Future.value();
+    return _draining ??= _drain().whenComplete(() => _draining = null);
+  }
+
+  Future<void> _drain() async {
+    final prefs = await SharedPreferences.getInstance();
+    final afterOffset = prefs.getInt(_offsetKey) ?? 0;
+    Map? drained;
+    try {
+      drained = await _channel.invokeMethod<Map>('drainPushInbox', {'afterOffset': afterOffset});
+    } catch (e) {
+      LogUtil.e('PushInbox: drain failed: $e');
+      return;
+    }
+    if (drained == null) return;
+    final events = (drained['events'] as List?)?.cast<String>() ?? const <String>[];
+    final lastOffset = (drained['lastOffset'] as num?)?.toInt() ?? afterOffset;
+    final gap = drained['gap'] == true;
+    if (events.isEmpty && !gap) {
+      if (lastOffset != afterOffset) await prefs.setInt(_offsetKey, lastOffset);
+      return;
+    }
+
+    final messageIds = <String>[];
+    for (final event in events) {
+      try {
+        final id = (jsonDecode(event) as Map)['id'];
+        if (id is String) messageIds.add(id);
+      } catch (e) {
+        LogUtil.w('PushInbox: skipping unreadable event: $e');
+      }
+    }
+    final waiter = GroupMessageWaiter(messageIds: messageIds);
+    await waiter.skipStored();
+    Connect.sharedInstance.checkAndReconnectIfNeeded();
+    final connected = await Connect.sharedInstance
+        .waitForRelayConnection(relayKind: RelayKind.circleRelay);
+    if (!connected) {
+      LogUtil.w('PushInbox: relay not connected, keeping ${events.length} events for the next drain');
+      return;
+    }
+    // A gap means events were dropped from the full inbox, the catch-up
+    // started by the connection brings those in as well. Once connected the
+    // catch-up is chatcore's, events it didn't bring in by the timeout (e.g.
+    // stored under another id) are not waited for again
+    if (!await waiter.wait(_catchUpTimeout)) {
+      LogUtil.w('PushInbox: ${waiter.missing} of ${messageIds.length} drained events not seen after the catch-up');
+    }
+    await prefs.setInt(_offsetKey, lastOffset);
+    LogUtil.d('PushInbox: ${events.length} events up to offset $lastOffset arrived${gap ? ', after a gap' : ''}');
+  }
+}
@@ -13,6 +13,7 @@ import 'package:ox_localizable/ox_localizable.dart';
 import 'package:chatcore/chat-core.dart';
 import 'package:ox_common/log_util.dart';
 
+import 'push_inbox.dart';
 import 'push_integration.dart';
 
 class CLUserPushNotificationManager implements PushPermissionChecker {
@@ -23,7 +24,7 @@ class CLUserPushNotificationManager implements PushPermissionChecker {
   CLUserPushNotificationManager._internal() {
     NotificationHelper.sharedInstance.permissionChecker = this;
     _setupAuthHandler();
-    _startAuthCheckTimer();
+    _allowReceiveNotificationNotifier.addListener(_updateAuthCheckTimer);
   }
 
   void _setupAuthHandler() {
@@ -79,9 +80,11 @@ class CLUserPushNotificationManager implements PushPermissionChecker {
     await checkAndUpdatePermissionStatus();
     
     // Check for pending AUTH challenges from Android push service
-    if (Platform.isAndroid) {
+    if (Platform.isAndroid && allowReceiveNotification) {
       _checkPendingAuth();
       await _ensureAndroidPushServiceStarted();
+      // Messages the push service received while the app was closed
+      PushInbox.instance.drain();
     }
   }
 
@@ -121,10 +124,12 @@ class CLUserPushNotificationManager implements PushPermissionChecker {
     }
   }
 
-  // Start timer to periodically check for pending AUTH challenges
-  void _startAuthCheckTimer() {
-    if (Platform.isAndroid) {
-      _authCheckTimer?.cancel();
+  // Periodically check for pending AUTH challenges while push is on, the
+  // push service only runs then
+  void _updateAuthCheckTimer() {
+    _authCheckTimer?.cancel();
+    _authCheckTimer = null;
+    if (Platform.isAndroid && allowReceiveNotification) {
       _authCheckTimer = Timer.periodic(const Duration(seconds: 2), (timer) {
         _checkPendingAuth();
       });